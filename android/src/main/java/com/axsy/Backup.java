@@ -0,0 +1,211 @@
+/**
+ * Copyright (c) 2020, Axsy
+ */
+
+package com.axsy;
+
+import net.sqlcipher.database.SQLiteStatement;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+import com.facebook.common.logging.FLog;
+
+/**
+ * Online backup of a database: the (already encrypted) database file is copied in steps of a few pages,
+ * each step queued behind the work waiting in the runner, so the runner is never held for long.
+ * Reads keep being served between the steps, while writes through the runner are held back until the
+ * copy is done (as for a re-key). Each step holds a read transaction, so that other connections can't
+ * write to the file meanwhile; the copy restarts if they committed between two steps, and after too
+ * many restarts the backup fails.
+ */
+final class Backup extends DBTask
+{
+    private static final String TAG = SQLitePlugin.TAG;
+
+    private static final int MAX_RESTARTS = 8;
+
+    final String dbname;
+    final File destFile;
+    final File tmpFile;
+    final int pagesPerStep;
+    final CallbackContext cbc;
+
+    /**
+     * Work held back until the copy is done (only accessed from the db thread)
+     */
+    final List<DBQuery> deferred = new ArrayList<DBQuery>();
+
+    private RandomAccessFile src;
+    private FileOutputStream dest;
+    private long stepSize;
+    private long position;
+    private long dataVersion;
+    private int restarts = 0;
+
+    Backup(String dbname, File destFile, int pagesPerStep, CallbackContext cbc)
+    {
+        this.dbname = dbname;
+        this.destFile = destFile;
+        this.tmpFile = new File(destFile.getAbsolutePath() + "-tmp");
+        this.pagesPerStep = Math.max(pagesPerStep, 1);
+        this.cbc = cbc;
+    }
+
+    boolean isReadOnly()
+    {
+        return true;
+    }
+
+    /**
+     * @return whether the query has to wait for the end of the copy
+     */
+    boolean defer(DBQuery dbq)
+    {
+        if (dbq.task == this)
+            return false;
+
+        if (this.deferred.isEmpty() && dbq.isReadOnly())
+            return false;
+
+        this.deferred.add(dbq);
+        return true;
+    }
+
+    void cancel(String reason)
+    {
+        cleanup();
+        this.tmpFile.delete();
+        for (DBQuery dbq : this.deferred)
+        {
+            if (dbq.cbc != null)
+                dbq.cbc.error(reason);
+        }
+        this.cbc.error("database backup cancelled: " + reason);
+    }
+
+    public void run(DBRunner r, CallbackContext unused) throws Exception
+    {
+        try
+        {
+            if (this.src == null)
+            {
+                // never copy pages of a transaction in progress:
+                if (r.mydb.inTransaction())
+                {
+                    r.park(new DBQuery(this, null));
+                    return;
+                }
+                r.startBackup(this);
+                start(r);
+            } else if (r.dataVersion() != this.dataVersion)
+            {
+                if (this.restarts >= MAX_RESTARTS)
+                    throw new IllegalStateException("database kept being written by other connections, gave up after " +
+                            MAX_RESTARTS + " restarts");
+                restart(r);
+            }
+
+            long length;
+            boolean changed;
+            r.mydb.rawExecSQL("BEGIN");
+            try
+            {
+                // (read within the transaction, so the file is the one it stands for)
+                changed = (r.dataVersion() != this.dataVersion);
+                FileChannel srcChannel = this.src.getChannel();
+                length = srcChannel.size();
+                long end = changed ? this.position : Math.min(this.position + this.stepSize, length);
+                while (this.position < end)
+                {
+                    this.position += srcChannel.transferTo(this.position, end - this.position, this.dest.getChannel());
+                }
+            } finally
+            {
+                r.mydb.rawExecSQL("COMMIT");
+            }
+            r.metrics.increment("backupSteps");
+            r.manager.sendProgress(DBManager.BACKUP_PROGRESS_EVENT, dbname, "backup", length == 0 ? 1 : (double) this.position / length);
+
+            if (changed || this.position < length)
+            {
+                // let queued work run before the next step:
+                r.q.put(new DBQuery(this, null));
+                return;
+            }
+
+            finish(r);
+        } catch (Exception e)
+        {
+            FLog.e(TAG, "couldn't backup database", e);
+            cleanup();
+            this.tmpFile.delete();
+            cbc.error("couldn't backup database: " + e.getMessage());
+        }
+        r.finishBackup(this);
+    }
+
+    private void start(DBRunner r) throws Exception
+    {
+        // make sure all committed pages are in the database file:
+        r.mydb.rawExecSQL("PRAGMA wal_checkpoint(TRUNCATE)");
+
+        SQLiteStatement pageSize = r.mydb.compileStatement("PRAGMA page_size");
+        try
+        {
+            this.stepSize = pageSize.simpleQueryForLong() * this.pagesPerStep;
+        } finally
+        {
+            DBManager.closeQuietly(pageSize);
+        }
+
+        this.destFile.getAbsoluteFile().getParentFile().mkdirs();
+        this.src = new RandomAccessFile(r.manager.getContext().getDatabasePath(dbname), "r");
+        this.dest = new FileOutputStream(this.tmpFile);
+        this.position = 0;
+        this.dataVersion = r.dataVersion();
+    }
+
+    private void restart(DBRunner r) throws Exception
+    {
+        cleanup();
+        this.restarts++;
+        r.metrics.increment("backupRestarts");
+        start(r);
+    }
+
+    private void finish(DBRunner r) throws Exception
+    {
+        this.dest.getFD().sync();
+        cleanup();
+        if (!this.tmpFile.renameTo(this.destFile))
+            throw new IOException("couldn't write backup file");
+
+        // the backup has the same key and cipher settings as the database:
+        Properties cipherSettings = r.manager.readCipherSettings(r.manager.getContext().getDatabasePath(dbname));
+        if (cipherSettings != null)
+            r.manager.writeCipherSettings(this.destFile, cipherSettings);
+
+        r.metrics.increment("backups");
+        Map<String, Object> result = new HashMap<String, Object>();
+        result.put("path", this.destFile.getAbsolutePath());
+        result.put("bytes", (double) this.destFile.length());
+        cbc.success(result);
+    }
+
+    private void cleanup()
+    {
+        DBManager.closeQuietly(this.src);
+        DBManager.closeQuietly(this.dest);
+        this.src = null;
+        this.dest = null;
+    }
+}
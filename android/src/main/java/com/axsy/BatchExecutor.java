@@ -0,0 +1,519 @@
+/**
+ * Copyright (c) 2020, Axsy
+ */
+
+package com.axsy;
+
+import android.annotation.SuppressLint;
+import android.database.Cursor;
+import android.util.Base64;
+
+import net.sqlcipher.AbstractWindowedCursor;
+import net.sqlcipher.CursorWindow;
+import net.sqlcipher.CursorWindowAllocation;
+import net.sqlcipher.CustomCursorWindowAllocation;
+import net.sqlcipher.database.SQLiteDatabase;
+import net.sqlcipher.database.SQLiteException;
+import net.sqlcipher.database.SQLiteStatement;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.facebook.common.logging.FLog;
+
+/**
+ * Executes the statements of batches on the connection of a runner, in its db thread,
+ * and builds their results.
+ */
+final class BatchExecutor
+{
+    private static final String TAG = SQLitePlugin.TAG;
+
+    private static final long CURSOR_WINDOW_GROWTH = 1024 * 1024;
+
+    private static final Object CURSOR_WINDOW_LOCK = new Object();
+
+    private final DBRunner runner;
+
+    BatchExecutor(DBRunner runner)
+    {
+        this.runner = runner;
+    }
+
+    /**
+     * Executes a batch request and sends the results via cbc.
+     *
+     * @param queries     Array of query strings
+     * @param queryParams Array of query parameters, decoded (null for none)
+     * @param queryIDs    Array of query ids
+     * @param cursorWindowSizes Array of cursor window sizes (0 for the default size), null for the size of the open options
+     * @param cbc         Callback context from Cordova API
+     */
+    @SuppressLint("NewApi")
+    void executeSqlBatch(String[] queries, StatementParams[] queryParams, String[] queryIDs,
+                         long[] cursorWindowSizes, BatchReferences refs, CallbackContext cbc)
+    {
+
+        SQLiteDatabase mydb = this.runner.mydb;
+
+        if (mydb == null)
+        {
+            // not allowed - can only happen if someone has closed (and possibly deleted) a database and then re-used the database
+            cbc.error("database has been closed");
+            return;
+        }
+
+        List<Map<String, Object>> batchResults = new ArrayList<Map<String, Object>>();
+        executeStatements(queries, queryParams, queryIDs, cursorWindowSizes, 0, queries.length, refs,
+                batchResults, cbc);
+
+        long start = DBManager.trace.begin();
+        cbc.success(batchResults);
+        DBManager.trace.complete("callback", "bridge", start, this.runner.dbname);
+    }
+
+    /**
+     * Execute the statements from (inclusive) to (exclusive) of a batch, adding their results
+     * to batchResults.
+     *
+     * @param refs - references of the batch to the results of its statements, null if none
+     *
+     * @return error message of the first statement that failed, null if none did
+     */
+    String executeStatements(String[] queries, StatementParams[] queryParams, String[] queryIDs,
+                             long[] cursorWindowSizes, int from, int to, BatchReferences refs,
+                             List<Map<String, Object>> batchResults, CallbackContext cbc)
+    {
+        DBRunner runner = this.runner;
+        SQLiteDatabase mydb = runner.mydb;
+        String dbname = runner.dbname;
+        SlowQueryLog slowQueries = runner.slowQueries;
+
+        String query;
+        String query_id;
+        String firstError = null;
+
+        for (int i = from; i < to; i++)
+        {
+            query_id = queryIDs[i];
+
+            Map<String, Object> queryResult = null;
+            String errorMessage = "unknown";
+            long start = System.nanoTime();
+            StatementParams params = (queryParams != null) ? queryParams[i] : null;
+
+            try
+            {
+                boolean needRawQuery = true;
+                query = queries[i];
+                QueryType queryType = runner.getQueryType(query);
+                boolean skipped = refs != null && refs.isSkipped(i);
+                if (refs != null && !skipped)
+                    params = refs.resolve(i, params);
+
+                if (skipped)
+                {
+                    needRawQuery = false;
+                    queryResult = new HashMap<String, Object>();
+                    queryResult.put("rowsAffected", 0.0);
+                    queryResult.put("skipped", true);
+                } else if (queryType == QueryType.update || queryType == QueryType.delete)
+                {
+                    SQLiteStatement myStatement = null;
+                    int rowsAffected = -1; // (assuming invalid)
+
+                    try
+                    {
+                        long phase = DBManager.trace.begin();
+                        myStatement = mydb.compileStatement(query);
+                        DBManager.trace.complete("compile", "statement", phase, dbname);
+                        if (params != null)
+                        {
+                            phase = DBManager.trace.begin();
+                            params.bind(myStatement);
+                            DBManager.trace.complete("bind", "statement", phase, dbname);
+                        }
+
+                        phase = DBManager.trace.begin();
+                        rowsAffected = myStatement.executeUpdateDelete();
+                        DBManager.trace.complete("step", "statement", phase, dbname);
+                        // Indicate valid results:
+                        needRawQuery = false;
+                    } catch (SQLiteException ex)
+                    {
+                        // Indicate problem & stop this query:
+                        errorMessage = ex.getMessage();
+                        FLog.e(TAG, "SQLiteStatement.executeUpdateDelete() failed", ex);
+                        needRawQuery = false;
+                    } finally
+                    {
+                        DBManager.closeQuietly(myStatement);
+                    }
+
+                    if (rowsAffected != -1)
+                    {
+                        queryResult = new HashMap<String, Object>();
+                        queryResult.put("rowsAffected", (double) rowsAffected);
+                    }
+                }
+
+                // INSERT:
+                else if (queryType == QueryType.insert && params != null)
+                {
+                    FLog.d(TAG, "INSERT");
+                    needRawQuery = false;
+
+                    long phase = DBManager.trace.begin();
+                    SQLiteStatement myStatement = mydb.compileStatement(query);
+                    DBManager.trace.complete("compile", "statement", phase, dbname);
+
+                    phase = DBManager.trace.begin();
+                    params.bind(myStatement);
+                    DBManager.trace.complete("bind", "statement", phase, dbname);
+
+                    long insertId; // (invalid) = -1
+
+                    try
+                    {
+                        phase = DBManager.trace.begin();
+                        insertId = myStatement.executeInsert();
+                        DBManager.trace.complete("step", "statement", phase, dbname);
+
+                        // statement has finished with no constraint violation:
+                        queryResult = new HashMap<String, Object>();
+                        if (insertId != -1)
+                        {
+                            queryResult.put("insertId", (double) insertId);
+                            queryResult.put("rowsAffected", 1.0);
+                        } else
+                        {
+                            queryResult.put("rowsAffected", 0.0);
+                        }
+                    } catch (SQLiteException ex)
+                    {
+                        // report error result with the error message
+                        // could be constraint violation or some other error
+                        errorMessage = ex.getMessage();
+                        FLog.e(TAG, "SQLiteDatabase.executeInsert() failed", ex);
+                    } finally
+                    {
+                        DBManager.closeQuietly(myStatement);
+                    }
+                } else if (queryType == QueryType.begin)
+                {
+                    needRawQuery = false;
+                    try
+                    {
+                        mydb.beginTransaction();
+
+                        queryResult = new HashMap<String, Object>();
+                        queryResult.put("rowsAffected", 0.0);
+                    } catch (SQLiteException ex)
+                    {
+                        errorMessage = ex.getMessage();
+                        FLog.e(TAG, "SQLiteDatabase.beginTransaction() failed", ex);
+                    }
+                } else if (queryType == QueryType.commit)
+                {
+                    needRawQuery = false;
+                    try
+                    {
+                        mydb.setTransactionSuccessful();
+                        mydb.endTransaction();
+
+                        queryResult = new HashMap<String, Object>();
+                        queryResult.put("rowsAffected", 0.0);
+                    } catch (SQLiteException ex)
+                    {
+                        errorMessage = ex.getMessage();
+                        FLog.e(TAG, "SQLiteDatabase.setTransactionSuccessful/endTransaction() failed", ex);
+                    }
+                } else if (queryType == QueryType.rollback)
+                {
+                    needRawQuery = false;
+                    try
+                    {
+                        mydb.endTransaction();
+
+                        queryResult = new HashMap<String, Object>();
+                        queryResult.put("rowsAffected", 0.0);
+                    } catch (SQLiteException ex)
+                    {
+                        errorMessage = ex.getMessage();
+                        FLog.e(TAG, "SQLiteDatabase.endTransaction() failed", ex);
+                    }
+                }
+
+                // raw query for other statements:
+                if (needRawQuery)
+                {
+                    queryResult = this.executeSqlStatementQuery(mydb, query, params,
+                            cursorWindowSizes != null ? cursorWindowSizes[i] : runner.cursorWindowSize, dbname, cbc);
+                    if (queryResult != null)
+                        runner.recordSetting(query);
+                }
+            } catch (Exception ex)
+            {
+                errorMessage = ex.getMessage();
+                FLog.e(TAG, "SQLitePlugin.executeSql[Batch](): failed", ex);
+            }
+
+            if (slowQueries != null)
+            {
+                double durationMillis = (System.nanoTime() - start) / 1e6;
+                if (durationMillis >= slowQueries.thresholdMillis)
+                {
+                    logSlowQuery(mydb, slowQueries, queries[i], params,
+                            durationMillis, queryResult);
+                    runner.metrics.increment("slowQueries");
+                }
+            }
+
+            if (refs != null)
+                refs.set(i, queryResult);
+            pushResult(batchResults, query_id, queryResult, errorMessage);
+            if (queryResult == null && firstError == null)
+                firstError = errorMessage;
+        }
+        return firstError;
+    }
+
+    /**
+     * Add the result of a statement to the results of its batch.
+     *
+     * @param queryResult  - result of the statement, null if it failed
+     * @param errorMessage - why it failed
+     */
+    static void pushResult(List<Map<String, Object>> batchResults, String queryId, Map<String, Object> queryResult,
+                           String errorMessage)
+    {
+        if (queryResult != null)
+        {
+            Map<String, Object> r = new HashMap<String, Object>();
+            r.put("qid", queryId);
+
+            r.put("type", "success");
+            r.put("result", queryResult);
+
+            batchResults.add(r);
+        } else
+        {
+            Map<String, Object> r = new HashMap<String, Object>();
+            r.put("qid", queryId);
+            r.put("type", "error");
+
+            Map<String, Object> er = new HashMap<String, Object>();
+            er.put("message", errorMessage);
+            r.put("result", er);
+
+            batchResults.add(r);
+        }
+    }
+
+    /**
+     * Record a slow statement with its query plan. Parameter values are not recorded.
+     */
+    private void logSlowQuery(SQLiteDatabase mydb, SlowQueryLog slowQueries, String query, StatementParams queryParams,
+                              double durationMillis, Map<String, Object> queryResult)
+    {
+        int rowsReturned = 0;
+        int rowsAffected = 0;
+        if (queryResult != null)
+        {
+            if (queryResult.get("rows") instanceof List)
+                rowsReturned = ((List<?>) queryResult.get("rows")).size();
+            if (queryResult.get("rowsAffected") instanceof Number)
+                rowsAffected = ((Number) queryResult.get("rowsAffected")).intValue();
+        }
+
+        List<String> plan = new ArrayList<String>();
+        QueryType queryType = QueryType.of(query);
+        if (queryType != QueryType.begin && queryType != QueryType.commit && queryType != QueryType.rollback)
+        {
+            Cursor cur = null;
+            try
+            {
+                // the plan only needs the parameters to be bound, not their exact types:
+                cur = rawQuery(mydb, "EXPLAIN QUERY PLAN " + query,
+                        (queryParams != null) ? queryParams.toStringArray() : new String[0]);
+                int detail = cur.getColumnIndex("detail");
+                while (detail >= 0 && cur.moveToNext())
+                {
+                    plan.add(cur.getString(detail));
+                }
+            } catch (Exception ex)
+            {
+                FLog.v(TAG, "EXPLAIN QUERY PLAN failed", ex);
+            } finally
+            {
+                if (cur != null)
+                    cur.close();
+            }
+        }
+
+        FLog.w(TAG, "slow query (" + durationMillis + " ms): " + query);
+        slowQueries.add(new SlowQueryLog.Entry(query, SlowQueryLog.redact(queryParams),
+                durationMillis, rowsReturned, rowsAffected, plan));
+    }
+
+    /**
+     * Execute Sql Statement Query
+     *
+     * @param mydb        - database
+     * @param query       - SQL query to execute
+     * @param queryParams - parameters to the query
+     * @param cursorWindowSize - size of the cursor window in bytes, 0 for the default size
+     * @param dbname      - database name (for tracing)
+     * @param cbc         - callback object
+     * @return results in string form
+     */
+    private Map<String, Object> executeSqlStatementQuery(SQLiteDatabase mydb,
+                                                         String query, StatementParams queryParams,
+                                                         long cursorWindowSize, String dbname,
+                                                         CallbackContext cbc) throws Exception
+    {
+        Map<String, Object> rowsResult = new HashMap<String, Object>();
+
+        Cursor cur = null;
+        try
+        {
+            try
+            {
+                long phase = DBManager.trace.begin();
+                String[] params = (queryParams != null) ? queryParams.toStringArray() : new String[0];
+                DBManager.trace.complete("bind", "statement", phase, dbname);
+
+                // compiles the query (and with a custom window size, steps through it):
+                phase = DBManager.trace.begin();
+                cur = rawQuery(mydb, query, params, cursorWindowSize);
+                DBManager.trace.complete("compile", "statement", phase, dbname);
+            } catch (Exception ex)
+            {
+                ex.printStackTrace();
+                String errorMessage = ex.getMessage();
+                FLog.v(TAG, "SQLitePlugin.executeSql[Batch](): Error=" + errorMessage);
+                throw ex;
+            }
+
+            // If query result has rows
+            long phase = DBManager.trace.begin();
+            boolean hasRows = cur != null && cur.moveToFirst();
+            DBManager.trace.complete("step", "statement", phase, dbname);
+            if (hasRows)
+            {
+                phase = DBManager.trace.begin();
+                List<Map<String, Object>> rowsArrayResult = new ArrayList<Map<String, Object>>();
+                int colCount = cur.getColumnCount();
+                String[] keys = new String[colCount];
+                for (int i = 0; i < colCount; ++i)
+                {
+                    keys[i] = cur.getColumnName(i);
+                }
+
+                // Build up JSON result object for each row
+                do
+                {
+                    Map<String, Object> row = new LinkedHashMap<String, Object>(colCount * 2);
+                    for (int i = 0; i < colCount; ++i)
+                    {
+                        bindRow(row, keys[i], cur, i);
+                    }
+
+                    rowsArrayResult.add(row);
+                } while (cur.moveToNext());
+
+                rowsResult.put("rows", rowsArrayResult);
+                DBManager.trace.complete("build result", "statement", phase, dbname);
+            }
+        } finally
+        {
+            DBManager.closeQuietly(cur);
+        }
+
+        return rowsResult;
+    }
+
+    /**
+     * Run a query, with a cursor window of the given size. A window large enough for the whole
+     * result avoids re-running the query each time the window overflows.
+     *
+     * NOTE: SQLCipher only allows the window allocation to be set process-wide, and reads it when a window
+     * is created, on the first fill of a cursor. Every cursor of the plugin is given its window here instead,
+     * created under a lock with the allocation swapped in, so that a swap never leaks into another cursor.
+     *
+     * @param mydb             - database
+     * @param query            - SQL query to execute
+     * @param params           - parameters to the query, may be null
+     * @param cursorWindowSize - size of the cursor window in bytes, 0 for the default size
+     */
+    static Cursor rawQuery(SQLiteDatabase mydb, String query, Object[] params, long cursorWindowSize)
+    {
+        CursorWindow window;
+        synchronized (CURSOR_WINDOW_LOCK)
+        {
+            if (cursorWindowSize <= 0)
+            {
+                window = new CursorWindow(true);
+            } else
+            {
+                CursorWindowAllocation defaultAllocation = CursorWindow.getCursorWindowAllocation();
+                CursorWindow.setCursorWindowAllocation(new CustomCursorWindowAllocation(
+                        Math.min(cursorWindowSize, CURSOR_WINDOW_GROWTH), CURSOR_WINDOW_GROWTH, cursorWindowSize));
+                try
+                {
+                    window = new CursorWindow(true);
+                } finally
+                {
+                    CursorWindow.setCursorWindowAllocation(defaultAllocation);
+                }
+            }
+        }
+
+        Cursor cur = null;
+        try
+        {
+            cur = mydb.rawQuery(query, (params != null) ? params : new Object[0]);
+        } finally
+        {
+            if (cur instanceof AbstractWindowedCursor)
+                ((AbstractWindowedCursor) cur).setWindow(window);
+            else
+                window.close();
+        }
+        return cur;
+    }
+
+    static Cursor rawQuery(SQLiteDatabase mydb, String query, Object[] params)
+    {
+        return rawQuery(mydb, query, params, 0);
+    }
+
+    @SuppressLint("NewApi")
+    private static void bindRow(Map<String, Object> row, String key, Cursor cur, int i)
+    {
+        int curType = cur.getType(i);
+
+        switch (curType)
+        {
+            case Cursor.FIELD_TYPE_NULL:
+                row.put(key, null);
+                break;
+            case Cursor.FIELD_TYPE_INTEGER:
+                row.put(key, (double) cur.getLong(i));
+                break;
+            case Cursor.FIELD_TYPE_FLOAT:
+                row.put(key, cur.getDouble(i));
+                break;
+            case Cursor.FIELD_TYPE_BLOB:
+                row.put(key, new String(Base64.encode(cur.getBlob(i), Base64.DEFAULT)));
+                break;
+            case Cursor.FIELD_TYPE_STRING:
+            default: /* (not expected) */
+                row.put(key, cur.getString(i));
+                break;
+        }
+    }
+}
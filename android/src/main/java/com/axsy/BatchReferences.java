@@ -0,0 +1,182 @@
+/**
+ * Copyright (c) 2020, Axsy
+ */
+
+package com.axsy;
+
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Results of the statements of a batch that later statements of the same batch refer to, so that
+ * dependent statements run in one round trip.
+ *
+ * A reference is "$ref:N.path": N is the position of a statement in the batch (0-based, the BEGIN of a
+ * transaction included), or relative when negative (-1 for the previous statement); path is a value of
+ * its result, e.g. $ref:0.insertId, $ref:-1.rowsAffected, $ref:2.rows[0].id, $ref:2.rows.length.
+ *
+ * With the refs statement option, parameters that are references are replaced by the values.
+ * With the skipIf statement option ("$ref:..." or "!$ref:..."), the statement is skipped when the
+ * value is truthy (falsy when negated); its result is {rowsAffected: 0, skipped: true}.
+ */
+final class BatchReferences
+{
+    private static final String PREFIX = "$ref:";
+    private static final Pattern REFERENCE = Pattern.compile("^\\$ref:(-?\\d+)((?:\\.\\w+|\\[\\d+\\])*)$");
+    private static final Pattern STEP = Pattern.compile("\\.(\\w+)|\\[(\\d+)\\]");
+    private static final Object FAILED = new Object();
+
+    private final boolean[] resolveParams;
+    private final String[] skipConditions;
+    private final boolean[] referenced;
+    private final Object[] results;
+
+    private BatchReferences(boolean[] resolveParams, String[] skipConditions, boolean[] referenced)
+    {
+        this.resolveParams = resolveParams;
+        this.skipConditions = skipConditions;
+        this.referenced = referenced;
+        this.results = new Object[referenced.length];
+    }
+
+    /**
+     * @param resolveParams  - statements whose parameters may be references (null for none)
+     * @param skipConditions - skip condition of each statement (null for none)
+     * @return references of the batch, null if it has none
+     */
+    static BatchReferences create(int size, StatementParams[] queryParams, boolean[] resolveParams,
+                                  String[] skipConditions)
+    {
+        boolean[] referenced = new boolean[size];
+        boolean any = false;
+        for (int i = 0; i < size; i++)
+        {
+            if (skipConditions != null && skipConditions[i] != null)
+            {
+                any = true;
+                mark(referenced, i, skipConditions[i].startsWith("!") ? skipConditions[i].substring(1) : skipConditions[i]);
+            }
+
+            StatementParams params = (queryParams != null) ? queryParams[i] : null;
+            if (resolveParams == null || !resolveParams[i] || params == null)
+                continue;
+            for (int p = 0; p < params.size(); p++)
+            {
+                if (isReference(params, p))
+                {
+                    any = true;
+                    mark(referenced, i, (String) params.get(p));
+                }
+            }
+        }
+        return any ? new BatchReferences(resolveParams, skipConditions, referenced) : null;
+    }
+
+    private static boolean isReference(StatementParams params, int p)
+    {
+        return params.getType(p) == StatementParams.STRING && ((String) params.get(p)).startsWith(PREFIX);
+    }
+
+    private static void mark(boolean[] referenced, int index, String reference)
+    {
+        Matcher matcher = REFERENCE.matcher(reference);
+        if (!matcher.matches())
+            return; // (reported when resolved)
+        int target = Integer.parseInt(matcher.group(1));
+        target = (target < 0) ? index + target : target;
+        if (target >= 0 && target < referenced.length)
+            referenced[target] = true;
+    }
+
+    /**
+     * Keep the result of a statement, if later statements refer to it.
+     *
+     * @param result - null if the statement failed
+     */
+    void set(int index, Map<String, Object> result)
+    {
+        if (this.referenced[index])
+            this.results[index] = (result != null) ? result : FAILED;
+    }
+
+    /**
+     * @return whether the statement is to be skipped, according to its skip condition
+     * @throws IllegalArgumentException if the condition can't be resolved
+     */
+    boolean isSkipped(int index)
+    {
+        String condition = (this.skipConditions != null) ? this.skipConditions[index] : null;
+        if (condition == null)
+            return false;
+
+        boolean negated = condition.startsWith("!");
+        Object value = value(index, negated ? condition.substring(1) : condition);
+        boolean truthy = (value instanceof Number) ? ((Number) value).doubleValue() != 0 :
+                (value instanceof Boolean) ? (Boolean) value :
+                (value instanceof String) ? ((String) value).length() > 0 :
+                value != null;
+        return truthy != negated;
+    }
+
+    /**
+     * @return parameters of the statement with the references replaced by their values
+     * @throws IllegalArgumentException if a reference can't be resolved
+     */
+    StatementParams resolve(int index, StatementParams params)
+    {
+        if (params == null || this.resolveParams == null || !this.resolveParams[index])
+            return params;
+
+        Object[] resolved = new Object[params.size()];
+        for (int p = 0; p < params.size(); p++)
+        {
+            resolved[p] = params.get(p);
+            if (isReference(params, p))
+            {
+                resolved[p] = value(index, (String) resolved[p]);
+                if (resolved[p] instanceof Map || resolved[p] instanceof List)
+                    throw new IllegalArgumentException(params.get(p) + ": not a single value");
+            }
+        }
+        return StatementParams.of(resolved);
+    }
+
+    private Object value(int index, String reference)
+    {
+        Matcher matcher = REFERENCE.matcher(reference);
+        if (!matcher.matches())
+            throw new IllegalArgumentException("invalid reference: " + reference);
+
+        int target = Integer.parseInt(matcher.group(1));
+        target = (target < 0) ? index + target : target;
+        if (target < 0 || target >= index)
+            throw new IllegalArgumentException(reference + ": not an earlier statement");
+        Object value = this.results[target];
+        if (value == FAILED)
+            throw new IllegalArgumentException(reference + ": statement " + target + " failed");
+        if (value == null)
+            throw new IllegalArgumentException(reference + ": statement " + target + " has no result");
+
+        Matcher step = STEP.matcher(matcher.group(2));
+        while (step.find())
+        {
+            String key = step.group(1);
+            if (key != null && value instanceof Map && ((Map<?, ?>) value).containsKey(key))
+            {
+                value = ((Map<?, ?>) value).get(key);
+            } else if (key != null && value instanceof List && "length".equals(key))
+            {
+                value = (double) ((List<?>) value).size();
+            } else if (key == null && value instanceof List && Integer.parseInt(step.group(2)) < ((List<?>) value).size())
+            {
+                value = ((List<?>) value).get(Integer.parseInt(step.group(2)));
+            } else
+            {
+                throw new IllegalArgumentException(reference + ": no such value");
+            }
+        }
+        return value;
+    }
+}
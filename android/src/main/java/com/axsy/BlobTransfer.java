@@ -0,0 +1,224 @@
+/**
+ * Copyright (c) 2020, Axsy
+ */
+
+package com.axsy;
+
+import android.database.Cursor;
+
+import net.sqlcipher.database.SQLiteDatabase;
+import net.sqlcipher.database.SQLiteStatement;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Transfer between a file and a BLOB column of a row, in chunks, written from the file or read into it.
+ * Reports {path, bytes}.
+ */
+final class BlobTransfer extends DBTask
+{
+    /**
+     * Largest chunk, which must fit in a cursor window to be read back
+     */
+    static final int MAX_CHUNK_SIZE = 1024 * 1024;
+
+    final boolean write;
+    final String table;
+    final String column;
+    final long rowid;
+    final File file;
+    final int chunkSize;
+
+    /**
+     * @param write - whether the file is written into the column, rather than the column read into the file
+     */
+    BlobTransfer(boolean write, String table, String column, long rowid, File file, int chunkSize)
+    {
+        this.write = write;
+        this.table = table;
+        this.column = column;
+        this.rowid = rowid;
+        this.file = file;
+        this.chunkSize = chunkSize;
+    }
+
+    void run(DBRunner r, CallbackContext cbc) throws Exception
+    {
+        long bytes;
+        if (this.write)
+        {
+            bytes = writeBlobFromFile(r.mydb, this.table, this.column, this.rowid, this.file, this.chunkSize);
+            r.writeCount++;
+        } else
+        {
+            bytes = readBlobToFile(r.mydb, this.table, this.column, this.rowid, this.file, this.chunkSize);
+        }
+        Map<String, Object> result = new HashMap<String, Object>();
+        result.put("path", this.file.getAbsolutePath());
+        result.put("bytes", (double) bytes);
+        cbc.success(result);
+    }
+
+    boolean isReadOnly()
+    {
+        return !this.write;
+    }
+
+    /**
+     * Write the content of a file into a BLOB column, in fixed-size chunks so that the file is never
+     * held in the Java heap as a whole. The value stays a plain BLOB of the column, readable with SQL.
+     *
+     * NOTE: SQLCipher for Android has no incremental blob I/O, so each chunk is appended to the value with
+     * SQL, in a single transaction. SQLite rewrites the whole value on every append and holds it in native
+     * memory meanwhile: the I/O grows with the square of the size over the chunk size, which should be as
+     * large as possible for large files. The bytes are concatenated as text, which keeps them as they are
+     * with the (default) UTF-8 database encoding only.
+     *
+     * @return number of bytes written
+     */
+    private static long writeBlobFromFile(SQLiteDatabase mydb, String table, String column, long rowid,
+                                          File file, int chunkSize) throws Exception
+    {
+        String target = DBManager.quoteIdentifier(table);
+        String col = DBManager.quoteIdentifier(column);
+        SQLiteStatement clear = null;
+        SQLiteStatement append = null;
+        FileInputStream in = null;
+        long bytes = 0;
+
+        // (a chunk must fit in a cursor window to be read back)
+        chunkSize = Math.min(chunkSize, MAX_CHUNK_SIZE);
+
+        mydb.beginTransaction();
+        try
+        {
+            clear = mydb.compileStatement("UPDATE " + target + " SET " + col + " = X'' WHERE rowid = ?");
+            clear.bindLong(1, rowid);
+            if (clear.executeUpdateDelete() != 1)
+                throw new IllegalArgumentException("no row " + rowid + " in " + table);
+
+            append = mydb.compileStatement("UPDATE " + target + " SET " + col + " = CAST(" + col + " || ? AS BLOB)" +
+                    " WHERE rowid = ?");
+            in = new FileInputStream(file);
+            byte[] chunk = new byte[chunkSize];
+            int len;
+            while ((len = readFully(in, chunk)) > 0)
+            {
+                byte[] value = chunk;
+                if (len < chunkSize)
+                {
+                    value = new byte[len];
+                    System.arraycopy(chunk, 0, value, 0, len);
+                }
+                append.bindBlob(1, value);
+                append.bindLong(2, rowid);
+                append.executeUpdateDelete();
+                bytes += len;
+            }
+
+            mydb.setTransactionSuccessful();
+        } finally
+        {
+            mydb.endTransaction();
+            DBManager.closeQuietly(in);
+            DBManager.closeQuietly(clear);
+            DBManager.closeQuietly(append);
+        }
+        return bytes;
+    }
+
+    /**
+     * Read a BLOB column into a file, one chunk at a time so that the value is never held in the Java heap
+     * as a whole.
+     *
+     * NOTE: the chunks are read with substr(), which has SQLite load the whole value (in native memory)
+     * for every chunk.
+     *
+     * @return number of bytes read
+     */
+    private static long readBlobToFile(SQLiteDatabase mydb, String table, String column, long rowid,
+                                       File file, int chunkSize) throws Exception
+    {
+        String source = DBManager.quoteIdentifier(table);
+        String col = DBManager.quoteIdentifier(column);
+        String type;
+        long length;
+
+        // (a chunk must fit in a cursor window)
+        chunkSize = Math.min(chunkSize, MAX_CHUNK_SIZE);
+
+        Cursor cur = BatchExecutor.rawQuery(mydb, "SELECT typeof(" + col + "), ifnull(length(" + col + "), 0) FROM " + source +
+                        " WHERE rowid = ?", new Object[]{rowid});
+        try
+        {
+            if (cur == null || !cur.moveToFirst())
+                throw new IllegalArgumentException("no row " + rowid + " in " + table);
+            type = cur.getString(0);
+            length = cur.getLong(1);
+        } finally
+        {
+            DBManager.closeQuietly(cur);
+        }
+
+        if (!"blob".equals(type) && !"null".equals(type))
+            throw new IllegalArgumentException(table + "." + column + " is not a BLOB");
+        String chunkQuery = "SELECT substr(" + col + ", ? * " + chunkSize + " + 1, " + chunkSize + ") FROM " + source +
+                " WHERE rowid = ?";
+
+        FileOutputStream out = null;
+        long bytes = 0;
+        try
+        {
+            file.getAbsoluteFile().getParentFile().mkdirs();
+            out = new FileOutputStream(file);
+            for (long seq = 0; seq * chunkSize < length; seq++)
+            {
+                cur = BatchExecutor.rawQuery(mydb, chunkQuery, new Object[]{seq, rowid});
+                try
+                {
+                    if (cur == null || !cur.moveToFirst())
+                        break;
+                    byte[] chunk = cur.getBlob(0);
+                    if (chunk == null || chunk.length == 0)
+                        break;
+                    out.write(chunk);
+                    bytes += chunk.length;
+                } finally
+                {
+                    DBManager.closeQuietly(cur);
+                }
+            }
+            out.getFD().sync();
+        } catch (Exception e)
+        {
+            DBManager.closeQuietly(out);
+            out = null;
+            file.delete();
+            throw e;
+        } finally
+        {
+            DBManager.closeQuietly(out);
+        }
+        return bytes;
+    }
+
+    /**
+     * @return number of bytes read into the buffer, less than its size only at end of stream
+     */
+    private static int readFully(InputStream in, byte[] buffer) throws IOException
+    {
+        int total = 0;
+        int len;
+        while (total < buffer.length && (len = in.read(buffer, total, buffer.length - total)) > 0)
+        {
+            total += len;
+        }
+        return total;
+    }
+}
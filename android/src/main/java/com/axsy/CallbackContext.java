@@ -5,31 +5,80 @@
  */
 package com.axsy;
 
+import java.util.List;
+import java.util.Map;
+
+import com.facebook.react.bridge.Arguments;
 import com.facebook.react.bridge.Callback;
 import com.facebook.react.bridge.WritableArray;
 import com.facebook.react.bridge.WritableMap;
 
 
-
+/**
+ * Receives the result of a request. The runners produce plain Java results (Map, List, String,
+ * Double, Boolean or null), converted to the bridge types here, when the request came from JS.
+ */
 public class CallbackContext {
 
     private static final String LOG_TAG = CallbackContext.class.getSimpleName();
 
     private Callback successCallback;
     private Callback errorCallback;
+    private SQLiteEngine.ResultCallback resultCallback;
 
     public CallbackContext(Callback success, Callback error) {
         this.successCallback = success;
         this.errorCallback = error;
     }
 
+    /**
+     * Callback context of a request that did not come from JS: results are passed on unconverted.
+     */
+    CallbackContext(SQLiteEngine.ResultCallback callback) {
+        this.resultCallback = callback;
+    }
+
+    private void succeed(Object message) {
+        if (resultCallback != null) {
+            resultCallback.success(message);
+        } else {
+            successCallback.invoke(message);
+        }
+    }
+
+    private void fail(Object message) {
+        if (resultCallback != null) {
+            resultCallback.error(String.valueOf(message));
+        } else {
+            errorCallback.invoke(message);
+        }
+    }
+
+    /**
+     * Helper for success callbacks that just returns the Status.OK by default
+     *
+     * @param message The message to add to the success result.
+     */
+    public void success(Map<String, Object> message) {
+        succeed(resultCallback != null ? message : Arguments.makeNativeMap(message));
+    }
+
+    /**
+     * Helper for success callbacks that just returns the Status.OK by default
+     *
+     * @param message The message to add to the success result.
+     */
+    public void success(List<?> message) {
+        succeed(resultCallback != null ? message : Arguments.makeNativeArray(message));
+    }
+
     /**
      * Helper for success callbacks that just returns the Status.OK by default
      *
      * @param message The message to add to the success result.
      */
     public void success(WritableMap message) {
-        successCallback.invoke(message);
+        succeed(resultCallback != null ? message.toHashMap() : message);
     }
 
     /**
@@ -38,7 +87,7 @@ public class CallbackContext {
      * @param message The message to add to the success result.
      */
     public void success(String message) {
-        successCallback.invoke(message);
+        succeed(message);
     }
 
     /**
@@ -47,14 +96,14 @@ public class CallbackContext {
      * @param message The message to add to the success result.
      */
     public void success(WritableArray message) {
-        successCallback.invoke(message);
+        succeed(resultCallback != null ? message.toArrayList() : message);
     }
 
     /**
      * Helper for success callbacks that just returns the Status.OK by default
      */
     public void success() {
-        successCallback.invoke("Success");
+        succeed("Success");
     }
 
     /**
@@ -63,7 +112,7 @@ public class CallbackContext {
      * @param message The message to add to the error result.
      */
     public void error(WritableMap message) {
-        errorCallback.invoke(message);
+        fail(message);
     }
 
     /**
@@ -72,6 +121,6 @@ public class CallbackContext {
      * @param message The message to add to the error result.
      */
     public void error(String message) {
-        errorCallback.invoke(message);
+        fail(message);
     }
 }
\ No newline at end of file
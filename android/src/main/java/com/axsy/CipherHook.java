@@ -0,0 +1,68 @@
+/**
+ * Copyright (c) 2020, Axsy
+ */
+
+package com.axsy;
+
+import android.database.Cursor;
+
+import net.sqlcipher.database.SQLiteDatabase;
+import net.sqlcipher.database.SQLiteDatabaseHook;
+import net.sqlcipher.database.SQLiteException;
+
+import java.util.Properties;
+
+/**
+ * Keys the database according to its cipher format and recorded settings
+ */
+final class CipherHook implements SQLiteDatabaseHook
+{
+    /**
+     * Cipher settings that can be re-tuned, applied after keying on every open
+     */
+    static final String[] CIPHER_PRAGMAS = {"cipher_page_size", "kdf_iter"};
+
+    private final CipherMode cipherMode;
+    private final Properties cipherSettings;
+
+    CipherHook(CipherMode cipherMode, Properties cipherSettings)
+    {
+        this.cipherMode = cipherMode;
+        this.cipherSettings = cipherSettings;
+    }
+
+    public void preKey(SQLiteDatabase database)
+    {
+    }
+
+    public void postKey(SQLiteDatabase database)
+    {
+        if (cipherMode == CipherMode.migrate)
+        {
+            Cursor cur = BatchExecutor.rawQuery(database, "PRAGMA cipher_migrate", null);
+            try
+            {
+                if (cur != null && cur.moveToFirst() && !"0".equals(cur.getString(0)))
+                    throw new SQLiteException("cipher migration failed");
+            } finally
+            {
+                if (cur != null)
+                    cur.close();
+            }
+            return;
+        }
+
+        if (cipherMode == CipherMode.legacy)
+            database.rawExecSQL("PRAGMA cipher_compatibility = 3");
+
+        if (cipherSettings != null)
+        {
+            for (String pragma : CIPHER_PRAGMAS)
+            {
+                String value = cipherSettings.getProperty(pragma);
+                if (value != null)
+                    database.rawExecSQL("PRAGMA " + pragma + " = " + Integer.parseInt(value));
+            }
+        }
+    }
+}
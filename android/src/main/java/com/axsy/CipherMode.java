@@ -0,0 +1,15 @@
+/**
+ * Copyright (c) 2020, Axsy
+ */
+
+package com.axsy;
+
+/**
+ * How a database is keyed when opened
+ */
+enum CipherMode
+{
+    current,
+    legacy,  // SQLCipher 3 format, opened in compatibility mode
+    migrate  // SQLCipher 3 format, migrated to the current format on open
+}
@@ -0,0 +1,53 @@
+/**
+ * Copyright (c) 2020, Axsy
+ */
+
+package com.axsy;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * SQLiteEngine on top of the database runners: requests are queued as the plugin actions queue them,
+ * without going through the bridge, and the plain Java results of the runners are passed on as they are.
+ */
+final class DBEngine implements SQLiteEngine
+{
+    private final DBManager manager;
+
+    DBEngine(DBManager manager)
+    {
+        this.manager = manager;
+    }
+
+    public void open(String dbname, String key, Map<String, Object> options, SQLiteEngine.ResultCallback callback)
+    {
+        this.manager.startDatabase(dbname, key, options, new CallbackContext(callback));
+    }
+
+    public void executeBatch(String dbname, List<String> queries, List<List<Object>> params,
+                             SQLiteEngine.ResultCallback callback)
+    {
+        int size = queries.size();
+        String[] queryIDs = new String[size];
+        StatementParams[] queryParams = new StatementParams[size];
+        for (int i = 0; i < size; i++)
+        {
+            queryIDs[i] = String.valueOf(i);
+            List<Object> values = (params != null) ? params.get(i) : null;
+            queryParams[i] = StatementParams.of((values != null) ? values.toArray() : new Object[0]);
+        }
+        this.manager.queueBatch(dbname, new DBQuery(queries.toArray(new String[size]), queryIDs, queryParams,
+                null, new CallbackContext(callback)));
+    }
+
+    public void close(String dbname, SQLiteEngine.ResultCallback callback)
+    {
+        this.manager.closeDatabase(dbname, new CallbackContext(callback));
+    }
+
+    public void delete(String dbname, SQLiteEngine.ResultCallback callback)
+    {
+        this.manager.deleteDatabase(dbname, new CallbackContext(callback));
+    }
+}
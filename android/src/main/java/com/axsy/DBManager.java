@@ -0,0 +1,1140 @@
+/**
+ * Copyright (c) 2020, Axsy
+ */
+
+package com.axsy;
+
+import android.annotation.SuppressLint;
+import android.content.ComponentCallbacks2;
+import android.content.Context;
+import android.database.Cursor;
+
+import net.sqlcipher.database.SQLiteDatabase;
+import net.sqlcipher.database.SQLiteDatabaseHook;
+import net.sqlcipher.database.SQLiteException;
+import net.sqlcipher.database.SQLiteStatement;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import com.facebook.common.logging.FLog;
+
+/**
+ * The database runners of the process, and what they share: the database files (opening, cipher settings,
+ * export, restore), the thread pool, the native libraries and the events sent to JS.
+ *
+ * The runners outlive the module instances of successive JS contexts, so their map and what goes with it
+ * are static; a manager only carries the Android context its runners were started with.
+ */
+final class DBManager
+{
+    private static final String TAG = SQLitePlugin.TAG;
+
+    static final String LIVE_QUERY_EVENT = "SQLiteLiveQuery";
+
+    static final String REKEY_PROGRESS_EVENT = "SQLiteRekeyProgress";
+
+    static final String BACKUP_PROGRESS_EVENT = "SQLiteBackupProgress";
+
+    static final String IMPORT_PROGRESS_EVENT = "SQLiteImportProgress";
+
+    /**
+     * Suffix of the file recording the cipher format and settings of a database
+     */
+    private static final String CIPHER_SETTINGS_SUFFIX = "-cipher";
+
+    static final String CIPHER_VERSION = "version";
+
+    /**
+     * Suffixes of the rollback journal and WAL files that go with a database file
+     */
+    private static final String[] JOURNAL_SUFFIXES = {"-journal", "-wal", "-shm"};
+
+    private static final long COPY_CHUNK_SIZE = 1024 * 1024;
+
+    /**
+     * Memory pressure tiers, each one doing what the previous ones do:
+     * drop the compiled statement caches, release the page caches, close idle connections
+     */
+    static final int MEMORY_TIER_STATEMENTS = 1;
+    static final int MEMORY_TIER_CACHES = 2;
+    static final int MEMORY_TIER_CLOSE = 3;
+
+    /**
+     * How long a runner held by copyTable waits for the target runner to start the copy before failing it,
+     * and how long a copy waits for its turn before letting its source runner serve the work queued meanwhile
+     */
+    private static final long COPY_START_MILLIS = 2000;
+    private static final long COPY_RETRY_MILLIS = 10;
+
+    /**
+     * Held while a copyTable holds a runner for another one (static, like the runner map):
+     * copies run one at a time so that copies in opposite directions can't wait for each other.
+     */
+    private static final Semaphore copyLock = new Semaphore(1);
+
+    /**
+     * Multiple database runner map (static).
+     * NOTE: no public static accessor to db (runner) map since it would not work with db threading.
+     */
+    static final ConcurrentHashMap<String, DBRunner> dbrmap = new ConcurrentHashMap<String, DBRunner>();
+
+    /**
+     * Execution trace shared by all databases, off until startTracing (static, like the runner map)
+     */
+    static final TraceLog trace = new TraceLog();
+
+    /**
+     * Capture of the executed batches, off until startRecording
+     */
+    static final WorkloadRecorder recorder = new WorkloadRecorder();
+
+    /**
+     * Thread pool shared by the module instances of successive JS contexts, since the database
+     * runners outlive them (static, like the runner map)
+     */
+    private static final ExecutorService sharedThreadPool = Executors.newCachedThreadPool();
+
+    /**
+     * Receiver of the events of the current JS context; null between a JS context teardown
+     * and the creation of the next one
+     */
+    private static volatile EventListener listener;
+
+    /**
+     * Receives the events of the databases (live query changes, progress of long operations)
+     */
+    interface EventListener
+    {
+        void onEvent(String eventName, Map<String, Object> params);
+    }
+
+    private final Context context;
+
+    /**
+     * Released once the native libraries are loaded (in the background, off the module creation path)
+     */
+    private final CountDownLatch libsLoaded = new CountDownLatch(1);
+    private volatile Throwable libsError;
+
+    /**
+     * @param context - Android context, whose application context opens the databases
+     */
+    DBManager(Context context)
+    {
+        this.context = context.getApplicationContext();
+        sharedThreadPool.execute(new Runnable()
+        {
+            public void run()
+            {
+                try
+                {
+                    SQLiteDatabase.loadLibs(DBManager.this.context);
+                } catch (Throwable t)
+                {
+                    FLog.e(TAG, "couldn't load SQLCipher libraries", t);
+                    libsError = t;
+                } finally
+                {
+                    libsLoaded.countDown();
+                }
+            }
+        });
+    }
+
+    /**
+     * Send the events to a new receiver, in place of the previous one.
+     */
+    static synchronized void setEventListener(EventListener eventListener)
+    {
+        listener = eventListener;
+    }
+
+    /**
+     * Stop sending the events to a receiver, unless another one replaced it meanwhile.
+     */
+    static synchronized void clearEventListener(EventListener eventListener)
+    {
+        if (listener == eventListener)
+            listener = null;
+    }
+
+    Context getContext()
+    {
+        return this.context;
+    }
+
+    ExecutorService getThreadPool()
+    {
+        return sharedThreadPool;
+    }
+
+    /**
+     * Put a task in the queue of the database runner, to be executed in the db thread.
+     *
+     * @param dbname - The name of the database
+     * @param task   - task to run
+     * @param cbc    - JS callback context, passed on to the task
+     */
+    void queueTask(String dbname, DBTask task, CallbackContext cbc)
+    {
+        DBRunner r = dbrmap.get(dbname);
+        if (r != null)
+        {
+            try
+            {
+                r.q.put(new DBQuery(task, cbc));
+            } catch (Exception e)
+            {
+                FLog.e(TAG, "couldn't add to queue", e);
+                if (cbc != null)
+                    cbc.error("couldn't add to queue");
+            }
+        } else
+        {
+            if (cbc != null)
+                cbc.error("database not open");
+        }
+    }
+
+    /**
+     * Put a batch in the queue of its database runner, to be executed in the db thread.
+     *
+     * @param dbname - The name of the database
+     * @param q      - batch, with its callback context
+     */
+    void queueBatch(String dbname, DBQuery q)
+    {
+        DBRunner r = dbrmap.get(dbname);
+        if (r != null)
+        {
+            try
+            {
+                q.queueDepth = r.q.size();
+                r.q.put(q);
+            } catch (Exception e)
+            {
+                FLog.e(TAG, "couldn't add to queue", e);
+                q.cbc.error("couldn't add to queue");
+            }
+        } else
+        {
+            q.cbc.error("database not open");
+        }
+    }
+
+    /**
+     * Emit a progress event to JS.
+     *
+     * @param eventName - name of the event
+     * @param dbname    - The name of the database
+     * @param phase     - phase of the operation
+     * @param progress  - progress of the phase, between 0 and 1
+     */
+    void sendProgress(String eventName, String dbname, String phase, double progress)
+    {
+        Map<String, Object> params = new HashMap<String, Object>();
+        params.put("dbname", dbname);
+        params.put("phase", phase);
+        params.put("progress", progress);
+        sendEvent(eventName, params);
+    }
+
+    /**
+     * Emit an event to JS.
+     *
+     * @param eventName - name of the event
+     * @param params    - event payload
+     */
+    void sendEvent(String eventName, Map<String, Object> params)
+    {
+        // (runners outlive the JS context that opened them, send to the current one)
+        EventListener eventListener = listener;
+        if (eventListener != null)
+            eventListener.onEvent(eventName, params);
+    }
+
+    /**
+     * Clean up and close all open databases.
+     *
+     * Each database is closed in its own db thread, once the requests already queued are done.
+     */
+    void closeAllOpenDatabases()
+    {
+        for (DBRunner r : dbrmap.values())
+        {
+            r.markClosing();
+            r.q.offer(new DBQuery(false, null));
+        }
+    }
+
+    /**
+     * Detach the open databases from the JS context that is going away. They are kept open for a new
+     * JS context to re-attach to (reattachTimeout open option), and closed otherwise.
+     */
+    void detachAll()
+    {
+        for (DBRunner r : dbrmap.values())
+        {
+            r.detach();
+            r.q.offer(new DBQuery(new DBTask()
+            {
+                public void run(DBRunner r, CallbackContext cbc) throws Exception
+                {
+                    r.releaseDetached();
+                }
+            }, null));
+        }
+    }
+
+    /**
+     * @param dbname  - The name of the database file
+     * @param options - open options, as for the JS openDatabase
+     * @param cbc     - callback context
+     */
+    void startDatabase(String dbname, String key, Map<String, Object> options, CallbackContext cbc)
+    {
+        // TODO: is it an issue that we can orphan an existing thread?  What should we do here?
+        // If we re-use the existing DBRunner it might be in the process of closing...
+        DBRunner r = dbrmap.get(dbname);
+
+        // Brody TODO: It may be better to terminate the existing db thread here & start a new one, instead.
+        if (r != null && r.attach())
+        {
+            // don't orphan the existing thread; re-use the open (and keyed) connection, which is
+            // what happens when a new JS context (reload) re-opens its databases.
+            if (key == null ? r.key != null : !key.equals(r.key))
+            {
+                cbc.error("database already open with a different key");
+                return;
+            }
+            r.metrics.increment("reattaches");
+            cbc.success("database started");
+        } else
+        {
+            r = new DBRunner(this, dbname, key, options, cbc);
+            dbrmap.put(dbname, r);
+            this.getThreadPool().execute(r);
+        }
+    }
+
+    /**
+     * Close a database (in another thread).
+     *
+     * @param dbName - The name of the database file
+     * @param cbc    - JS callback
+     */
+    void closeDatabase(String dbName, CallbackContext cbc)
+    {
+        DBRunner r = dbrmap.get(dbName);
+        if (r != null)
+        {
+            try
+            {
+                r.markClosing();
+                r.q.put(new DBQuery(false, cbc));
+            } catch (Exception e)
+            {
+                if (cbc != null)
+                {
+                    cbc.error("couldn't close database" + e);
+                }
+                FLog.e(TAG, "couldn't close database", e);
+            }
+        } else
+        {
+            if (cbc != null)
+            {
+                cbc.success("database closed");
+            }
+        }
+    }
+
+    /**
+     * @param dbname - The name of the database file
+     * @param cbc    - callback
+     */
+    void deleteDatabase(String dbname, CallbackContext cbc)
+    {
+        DBRunner r = dbrmap.get(dbname);
+        if (r != null)
+        {
+            try
+            {
+                r.markClosing();
+                r.q.put(new DBQuery(true, cbc));
+            } catch (Exception e)
+            {
+                if (cbc != null)
+                {
+                    cbc.error("couldn't close database" + e);
+                }
+                FLog.e(TAG, "couldn't close database", e);
+            }
+        } else
+        {
+            boolean deleteResult = this.deleteDatabaseNow(dbname);
+            if (deleteResult)
+            {
+                cbc.success("database deleted");
+            } else
+            {
+                cbc.error("couldn't delete database");
+            }
+        }
+    }
+
+    /**
+     * Delete a database.
+     *
+     * @param dbname The name of the database file
+     * @return true if successful or false if an exception was encountered
+     */
+    @SuppressLint("NewApi")
+    boolean deleteDatabaseNow(String dbname)
+    {
+        File dbfile = this.getContext().getDatabasePath(dbname);
+        new File(dbfile.getAbsolutePath() + CIPHER_SETTINGS_SUFFIX).delete();
+        return this.getContext().deleteDatabase(dbfile.getAbsolutePath());
+    }
+
+    /**
+     * Get a database from the db map.
+     *
+     * @param dbname The name of the database.
+     */
+    SQLiteDatabase getDatabase(String dbname)
+    {
+        DBRunner r = dbrmap.get(dbname);
+        return (r == null) ? null : r.mydb;
+    }
+
+    /**
+     * Wait for the native libraries, which every database runner needs before opening.
+     */
+    void awaitLibraries() throws Exception
+    {
+        libsLoaded.await();
+        if (libsError != null)
+            throw new Exception("couldn't load SQLCipher libraries: " + libsError.getMessage());
+    }
+
+    /**
+     * Copy the rows of a table from a database into another one, with INSERT ... SELECT run by the
+     * thread of the target database, which attaches the source meanwhile. The source runner is held
+     * (runs nothing else) until the copy is done, so that the copy reads the source without contending
+     * with its runner for the file locks. The copy fails if the target runner doesn't start it within
+     * COPY_START_MILLIS, rather than holding the source runner behind the work queued on the target.
+     * Reports {rowsAffected}.
+     *
+     * @param source     - name of the source database
+     * @param target     - name of the target database
+     * @param where      - condition on the source rows, empty for all
+     * @param params     - parameters of the condition, null for none
+     * @param onConflict - IGNORE or REPLACE (upper case), empty to fail on conflicts
+     *
+     * NOTE: the where condition is SQL, inserted as is in the INSERT ... SELECT: it must come from the app
+     * itself, never from user input; values go in params.
+     */
+    void copyTable(final String source, final String target, final String table, final String where,
+                   final StatementParams params, final String onConflict, CallbackContext cbc)
+    {
+
+        DBRunner sourceRunner = dbrmap.get(source);
+        if (sourceRunner == null || dbrmap.get(target) == null)
+        {
+            cbc.error("database not open");
+            return;
+        }
+        if (source.equals(target) || table.length() == 0)
+        {
+            cbc.error(table.length() == 0 ? "no table" : "can't copy a table to its own database");
+            return;
+        }
+        if (onConflict.length() > 0 && !onConflict.equals("IGNORE") && !onConflict.equals("REPLACE"))
+        {
+            cbc.error("invalid onConflict: " + onConflict);
+            return;
+        }
+
+        final String sourceKey = sourceRunner.key;
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch copied = new CountDownLatch(1);
+        // (whoever claims the copy, the copy itself or the held runner giving up, reports and releases the lock)
+        final AtomicBoolean claimed = new AtomicBoolean();
+
+        final DBTask copy = new DBTask()
+        {
+            public void run(DBRunner r, CallbackContext cbc) throws Exception
+            {
+                if (!claimed.compareAndSet(false, true))
+                    return; // (the source runner gave up waiting)
+                started.countDown();
+                try
+                {
+                    cbc.success(r.copyTableFrom(source, sourceKey, table, where, params, onConflict));
+                } finally
+                {
+                    copied.countDown();
+                    copyLock.release();
+                }
+            }
+        };
+
+        this.queueTask(source, new DBTask()
+        {
+            public void run(DBRunner r, CallbackContext cbc) throws Exception
+            {
+                if (!copyLock.tryAcquire(COPY_RETRY_MILLIS, TimeUnit.MILLISECONDS))
+                {
+                    // another copy holds a runner: serve the work queued meanwhile, then try again
+                    r.q.put(new DBQuery(this, cbc));
+                    return;
+                }
+
+                DBRunner targetRunner = dbrmap.get(target);
+                if (targetRunner == null)
+                {
+                    copyLock.release();
+                    cbc.error("database not open");
+                    return;
+                }
+
+                long start = System.nanoTime();
+                targetRunner.q.put(new DBQuery(copy, cbc));
+                if (!started.await(COPY_START_MILLIS, TimeUnit.MILLISECONDS) && claimed.compareAndSet(false, true))
+                {
+                    copyLock.release();
+                    r.metrics.increment("copyTimeouts");
+                    cbc.error(target + " is busy, the copy didn't start in time");
+                } else
+                {
+                    // (the copy is running)
+                    copied.await();
+                }
+                r.metrics.add("copyHeldMillis", (System.nanoTime() - start) / 1000000);
+            }
+
+            boolean isReadOnly()
+            {
+                return true;
+            }
+        }, cbc);
+    }
+
+    /**
+     * Restore a database from a backup. The backup is copied in the background; if the database is open,
+     * its runner keeps serving it until the copy is swapped in.
+     *
+     * @param dbname      - The name of the database
+     * @param restoreFile - backup file
+     * @param cbc         - JS callback
+     */
+    void restoreDatabase(final String dbname, final File restoreFile, final CallbackContext cbc)
+    {
+        this.getThreadPool().execute(new Runnable()
+        {
+            public void run()
+            {
+                final File dbfile = getContext().getDatabasePath(dbname);
+                final File tmpFile = new File(dbfile.getAbsolutePath() + "-restore");
+                try
+                {
+                    copyFile(restoreFile, tmpFile, BACKUP_PROGRESS_EVENT, dbname, "restore");
+                    final Properties cipherSettings = readCipherSettings(restoreFile);
+
+                    DBRunner r = dbrmap.get(dbname);
+                    if (r != null)
+                    {
+                        r.q.put(new DBQuery(new DBTask()
+                        {
+                            public void run(DBRunner r, CallbackContext cbc) throws Exception
+                            {
+                                try
+                                {
+                                    r.replaceDatabaseFile(tmpFile, r.key, cipherSettings);
+                                } finally
+                                {
+                                    tmpFile.delete();
+                                }
+                                r.metrics.increment("restores");
+                                cbc.success("database restored");
+                            }
+                        }, cbc));
+                    } else
+                    {
+                        dbfile.getParentFile().mkdirs();
+                        // (a hot journal or WAL of the replaced database would be replayed onto the backup)
+                        deleteJournalFiles(dbfile);
+                        if (!tmpFile.renameTo(dbfile))
+                            throw new IOException("couldn't replace database file");
+                        if (cipherSettings != null)
+                            writeCipherSettings(dbfile, cipherSettings);
+                        else
+                            new File(dbfile.getAbsolutePath() + CIPHER_SETTINGS_SUFFIX).delete();
+                        cbc.success("database restored");
+                    }
+                } catch (Exception e)
+                {
+                    FLog.e(TAG, "couldn't restore database", e);
+                    tmpFile.delete();
+                    cbc.error("couldn't restore database: " + e.getMessage());
+                }
+            }
+        });
+    }
+
+    /**
+     * Open a database and read the pages of the given tables and indexes into its cache.
+     *
+     * @param database - open options as for the JS openDatabase ("name", "key", ...), plus
+     *                 "warm": names of the tables and indexes to read, and "cacheSize": page cache size
+     */
+    void prewarmDatabase(Map<String, Object> database)
+    {
+        final String dbname = (String) database.get("name");
+        if (dbname == null)
+            return;
+
+        CallbackContext cbc = new CallbackContext(new SQLiteEngine.ResultCallback()
+        {
+            public void success(Object result)
+            {
+            }
+
+            public void error(String message)
+            {
+                FLog.e(TAG, "couldn't pre-warm database " + dbname + ": " + message);
+            }
+        });
+
+        startDatabase(dbname, (String) database.get("key"), database, cbc);
+
+        final Object cacheSize = database.get("cacheSize");
+        final List<?> warm = (database.get("warm") instanceof List) ? (List<?>) database.get("warm") : null;
+        this.queueTask(dbname, new DBTask()
+        {
+            public void run(DBRunner r, CallbackContext cbc) throws Exception
+            {
+                long start = System.nanoTime();
+                if (cacheSize instanceof Number)
+                {
+                    String setting = "PRAGMA cache_size = " + ((Number) cacheSize).longValue();
+                    r.mydb.rawExecSQL(setting);
+                    r.recordSetting(setting);
+                }
+                if (warm != null)
+                {
+                    for (Object name : warm)
+                    {
+                        warmPages(r.mydb, String.valueOf(name));
+                    }
+                }
+                r.metrics.add("prewarmMillis", (System.nanoTime() - start) / 1000000);
+                cbc.success("database pre-warmed");
+            }
+
+            boolean isReadOnly()
+            {
+                return true;
+            }
+        }, cbc);
+    }
+
+    /**
+     * Read the b-tree pages of a table or index (not its overflow pages) into the page cache,
+     * by counting its entries with that b-tree.
+     */
+    private void warmPages(SQLiteDatabase mydb, String name)
+    {
+        Cursor cur = null;
+        try
+        {
+            cur = BatchExecutor.rawQuery(mydb, "SELECT type, tbl_name FROM sqlite_master WHERE name = ?", new String[]{name});
+            if (!cur.moveToFirst())
+            {
+                FLog.w(TAG, "nothing to pre-warm: " + name);
+                return;
+            }
+            String type = cur.getString(0);
+            String table = cur.getString(1);
+            closeQuietly(cur);
+
+            cur = BatchExecutor.rawQuery(mydb, "SELECT count(*) FROM " + quoteIdentifier(table) +
+                    ("index".equals(type) ? " INDEXED BY " + quoteIdentifier(name) : " NOT INDEXED"), null);
+            cur.moveToFirst();
+        } catch (Exception e)
+        {
+            FLog.w(TAG, "couldn't pre-warm " + name, e);
+        } finally
+        {
+            closeQuietly(cur);
+        }
+    }
+
+    /**
+     * @return memory pressure tier for a trim memory level, 0 for none
+     */
+    static int getMemoryTier(int level)
+    {
+        switch (level)
+        {
+            case ComponentCallbacks2.TRIM_MEMORY_RUNNING_MODERATE:
+            case ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN:
+                return MEMORY_TIER_STATEMENTS;
+            case ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW:
+            case ComponentCallbacks2.TRIM_MEMORY_BACKGROUND:
+                return MEMORY_TIER_CACHES;
+            case ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL:
+            case ComponentCallbacks2.TRIM_MEMORY_MODERATE:
+            case ComponentCallbacks2.TRIM_MEMORY_COMPLETE:
+                return MEMORY_TIER_CLOSE;
+            default:
+                return (level > ComponentCallbacks2.TRIM_MEMORY_COMPLETE) ? MEMORY_TIER_CLOSE : 0;
+        }
+    }
+
+    /**
+     * Ask every open database to release memory, in its own db thread.
+     */
+    void releaseMemory(final int tier)
+    {
+        FLog.v(TAG, "releasing database memory, tier " + tier);
+        for (DBRunner r : dbrmap.values())
+        {
+            r.q.offer(new DBQuery(new DBTask()
+            {
+                public void run(DBRunner r, CallbackContext cbc) throws Exception
+                {
+                    r.releaseMemory(tier);
+                }
+            }, null));
+        }
+    }
+
+    /**
+     * Open a database.
+     *
+     * @param dbname        - The name of the database file
+     * @param key           - encryption key
+     * @param assetFilePath - path to the pre-populated database file
+     * @param openFlags     - the db open options
+     * @param cbc           - JS callback
+     * @param cipherMode    - how to key the database, null to use the cipher format recorded for it
+     * @param autoMigrate   - whether a database that fails to open on first use is migrated from an older
+     *                      cipher format, rather than opened in compatibility mode
+     * @return instance of SQLite database
+     * @throws Exception
+     */
+    SQLiteDatabase openDatabase(String dbname, String key, String assetFilePath, int openFlags, CallbackContext cbc,
+                                CipherMode cipherMode, boolean autoMigrate) throws Exception
+    {
+        InputStream in = null;
+        File dbfile = null;
+        CipherMode recordedCipherMode = null;
+        try
+        {
+            SQLiteDatabase database = this.getDatabase(dbname);
+            if (database != null && database.isOpen())
+            {
+                //this only happens when DBRunner is cycling the db for the locking work around.
+                // otherwise, this should not happen - should be blocked at the execute("open") level
+                if (cbc != null) cbc.error("database already open");
+                throw new Exception("database already open");
+            }
+
+            if (assetFilePath != null && assetFilePath.length() > 0)
+            {
+                if (assetFilePath.compareTo("1") == 0)
+                {
+                    assetFilePath = "www/" + dbname;
+                    in = this.getContext().getAssets().open(assetFilePath);
+                    FLog.v(TAG, "Located pre-populated DB asset in app bundle www subdirectory: " + assetFilePath);
+                } else if (assetFilePath.charAt(0) == '~')
+                {
+                    assetFilePath = assetFilePath.startsWith("~/") ? assetFilePath.substring(2) : assetFilePath.substring(1);
+                    in = this.getContext().getAssets().open(assetFilePath);
+                    FLog.v(TAG, "Located pre-populated DB asset in app bundle subdirectory: " + assetFilePath);
+                } else
+                {
+                    File filesDir = this.getContext().getFilesDir();
+                    assetFilePath = assetFilePath.startsWith("/") ? assetFilePath.substring(1) : assetFilePath;
+                    File assetFile = new File(filesDir, assetFilePath);
+                    in = new FileInputStream(assetFile);
+                    FLog.v(TAG, "Located pre-populated DB asset in Files subdirectory: " + assetFile.getCanonicalPath());
+                    if (openFlags == SQLiteDatabase.OPEN_READONLY)
+                    {
+                        dbfile = assetFile;
+                        FLog.v(TAG, "Detected read-only mode request for external asset.");
+                    }
+                }
+            }
+
+            if (dbfile == null)
+            {
+                openFlags = SQLiteDatabase.OPEN_READWRITE | SQLiteDatabase.CREATE_IF_NECESSARY;
+                dbfile = this.getContext().getDatabasePath(dbname);
+
+                if (!dbfile.exists() && in != null)
+                {
+                    FLog.v(TAG, "Copying pre-populated db asset to destination");
+                    this.createFromAssets(dbname, dbfile, in);
+                }
+
+                if (!dbfile.exists())
+                {
+                    dbfile.getParentFile().mkdirs();
+                }
+            }
+
+            // use the cipher format recorded on a previous open, if any, so a wrong key or a locked
+            // file is not retried blindly with a migration:
+            Properties cipherSettings = readCipherSettings(dbfile);
+            recordedCipherMode = getCipherMode(cipherSettings);
+            CipherMode openCipherMode = (cipherMode != null) ? cipherMode :
+                    (recordedCipherMode != null) ? recordedCipherMode : CipherMode.current;
+
+            FLog.v(TAG, "Opening sqlite db: " + dbfile.getAbsolutePath() + " (cipher: " + openCipherMode + ")");
+            SQLiteDatabaseHook hook = new CipherHook(openCipherMode, cipherSettings);
+
+            SQLiteDatabase mydb = SQLiteDatabase.openOrCreateDatabase(dbfile.getAbsolutePath(), key, null, hook);
+
+            CipherMode openedCipherMode = (openCipherMode == CipherMode.legacy) ? CipherMode.legacy : CipherMode.current;
+            if (openedCipherMode != recordedCipherMode)
+            {
+                // a migrated database is back to the default cipher settings
+                Properties openedSettings = (cipherSettings == null || openCipherMode == CipherMode.migrate) ?
+                        new Properties() : cipherSettings;
+                openedSettings.setProperty(CIPHER_VERSION, openedCipherMode == CipherMode.legacy ? "3" : "4");
+                writeCipherSettings(dbfile, openedSettings);
+            }
+
+            if (cbc != null) // needed for Android locking/closing workaround
+                cbc.success("database open");
+
+            return mydb;
+        } catch (SQLiteException ex)
+        {
+            if (cipherMode == null && recordedCipherMode == null && dbfile != null)
+            {
+                // first open of a database with an unknown cipher format: it may come from an older SQLCipher
+                return openDatabase(dbname, key, assetFilePath, openFlags, cbc,
+                        autoMigrate ? CipherMode.migrate : CipherMode.legacy, autoMigrate);
+            }
+            if (cbc != null) // needed for Android locking/closing workaround
+                cbc.error("can't open database " + ex);
+            throw ex;
+        } finally
+        {
+            closeQuietly(in);
+        }
+    }
+
+    /**
+     * @param dbfile - The File of the db
+     * @return the cipher format and settings recorded for the database, null if unknown
+     */
+    Properties readCipherSettings(File dbfile)
+    {
+        File sidecar = new File(dbfile.getAbsolutePath() + CIPHER_SETTINGS_SUFFIX);
+        if (!sidecar.exists())
+            return null;
+
+        InputStream in = null;
+        try
+        {
+            in = new FileInputStream(sidecar);
+            Properties cipherSettings = new Properties();
+            cipherSettings.load(in);
+            return cipherSettings;
+        } catch (IOException e)
+        {
+            FLog.v(TAG, "Couldn't read cipher settings of: " + dbfile.getAbsolutePath(), e);
+        } finally
+        {
+            closeQuietly(in);
+        }
+        return null;
+    }
+
+    /**
+     * Record the cipher format and settings of a database next to it.
+     *
+     * @param dbfile         - The File of the db
+     * @param cipherSettings - the settings the database was opened with
+     */
+    void writeCipherSettings(File dbfile, Properties cipherSettings)
+    {
+        OutputStream out = null;
+        try
+        {
+            out = new FileOutputStream(dbfile.getAbsolutePath() + CIPHER_SETTINGS_SUFFIX);
+            cipherSettings.store(out, null);
+        } catch (IOException e)
+        {
+            // e.g. read-only location, the format will be detected again on next open
+            FLog.v(TAG, "Couldn't record cipher settings of: " + dbfile.getAbsolutePath(), e);
+        } finally
+        {
+            closeQuietly(out);
+        }
+    }
+
+    /**
+     * @param cipherSettings - recorded cipher settings, may be null
+     * @return the recorded cipher format, null if unknown
+     */
+    static CipherMode getCipherMode(Properties cipherSettings)
+    {
+        String version = (cipherSettings == null) ? null : cipherSettings.getProperty(CIPHER_VERSION);
+        if ("3".equals(version))
+            return CipherMode.legacy;
+        if ("4".equals(version))
+            return CipherMode.current;
+        return null;
+    }
+
+    /**
+     * Export a database into a new encrypted database file with sqlcipher_export, using a separate
+     * connection so the runner of the database can keep serving reads meanwhile.
+     *
+     * @param dbfile         - The File of the db
+     * @param key            - encryption key of the db
+     * @param cipherSettings - recorded cipher settings of the db
+     * @param destFile       - The File to export to
+     * @param destKey        - encryption key of the export
+     * @param destSettings   - cipher settings of the export
+     * @throws Exception
+     */
+    void exportDatabase(File dbfile, String key, Properties cipherSettings,
+                        File destFile, String destKey, Properties destSettings) throws Exception
+    {
+        SQLiteDatabase src = null;
+        SQLiteStatement userVersion = null;
+        try
+        {
+            src = SQLiteDatabase.openDatabase(dbfile.getAbsolutePath(), key, null, SQLiteDatabase.OPEN_READWRITE,
+                    new CipherHook(CipherMode.current, cipherSettings));
+            src.execSQL("ATTACH DATABASE ? AS exported KEY ?", new Object[]{destFile.getAbsolutePath(), destKey});
+            for (String pragma : CipherHook.CIPHER_PRAGMAS)
+            {
+                String value = destSettings.getProperty(pragma);
+                if (value != null)
+                    src.rawExecSQL("PRAGMA exported." + pragma + " = " + Integer.parseInt(value));
+            }
+
+            src.rawExecSQL("SELECT sqlcipher_export('exported')");
+
+            userVersion = src.compileStatement("PRAGMA user_version");
+            src.rawExecSQL("PRAGMA exported.user_version = " + userVersion.simpleQueryForLong());
+
+            src.rawExecSQL("DETACH DATABASE exported");
+        } finally
+        {
+            closeQuietly(userVersion);
+            if (src != null)
+                src.close();
+        }
+    }
+
+    /**
+     * Check that a database file opens with a key, using a separate connection.
+     *
+     * @param file           - The File of the db
+     * @param key            - encryption key
+     * @param cipherSettings - recorded cipher settings of the db, null if unknown
+     * @throws Exception if it doesn't open (wrong key, not a database)
+     */
+    void verifyDatabaseFile(File file, String key, Properties cipherSettings) throws Exception
+    {
+        CipherMode cipherMode = getCipherMode(cipherSettings);
+        SQLiteDatabase candidate = null;
+        try
+        {
+            candidate = SQLiteDatabase.openDatabase(file.getAbsolutePath(), key, null, SQLiteDatabase.OPEN_READONLY,
+                    new CipherHook(cipherMode != null ? cipherMode : CipherMode.current, cipherSettings));
+        } catch (Exception e)
+        {
+            if (cipherMode != null)
+                throw new IllegalArgumentException("database file doesn't open with the key: " + e.getMessage());
+            // unknown cipher format, it may come from an older SQLCipher:
+            try
+            {
+                candidate = SQLiteDatabase.openDatabase(file.getAbsolutePath(), key, null, SQLiteDatabase.OPEN_READONLY,
+                        new CipherHook(CipherMode.legacy, cipherSettings));
+            } catch (Exception legacyError)
+            {
+                throw new IllegalArgumentException("database file doesn't open with the key: " + e.getMessage());
+            }
+        } finally
+        {
+            if (candidate != null)
+                candidate.close();
+        }
+    }
+
+    /**
+     * @param path - absolute path, or path relative to the app files directory
+     * @return the corresponding File
+     */
+    File resolveFile(String path)
+    {
+        return path.startsWith("/") ? new File(path) : new File(this.getContext().getFilesDir(), path);
+    }
+
+    /**
+     * Copy a file, reporting progress.
+     *
+     * @param src       - file to copy
+     * @param dest      - destination file
+     * @param eventName - name of the progress event
+     * @param dbname    - The name of the database the copy is for
+     * @param phase     - phase reported in progress events
+     * @throws IOException
+     */
+    private void copyFile(File src, File dest, String eventName, String dbname, String phase) throws IOException
+    {
+        FileInputStream in = null;
+        FileOutputStream out = null;
+        try
+        {
+            in = new FileInputStream(src);
+            out = new FileOutputStream(dest);
+            FileChannel inChannel = in.getChannel();
+            FileChannel outChannel = out.getChannel();
+            long length = inChannel.size();
+            long position = 0;
+            while (position < length)
+            {
+                position += inChannel.transferTo(position, Math.min(COPY_CHUNK_SIZE, length - position), outChannel);
+                sendProgress(eventName, dbname, phase, (double) position / length);
+            }
+            out.getFD().sync();
+        } finally
+        {
+            closeQuietly(in);
+            closeQuietly(out);
+        }
+    }
+
+    /**
+     * Delete the journal and WAL files of a database file that is being replaced.
+     *
+     * @param dbfile - The File of the db
+     */
+    private static void deleteJournalFiles(File dbfile)
+    {
+        for (String suffix : JOURNAL_SUFFIXES)
+        {
+            new File(dbfile.getAbsolutePath() + suffix).delete();
+        }
+    }
+
+    /**
+     * Delete a database file with its journal, WAL and cipher settings files.
+     */
+    static void deleteDatabaseFiles(File dbfile)
+    {
+        dbfile.delete();
+        deleteJournalFiles(dbfile);
+        new File(dbfile.getAbsolutePath() + CIPHER_SETTINGS_SUFFIX).delete();
+    }
+
+    /**
+     * Rename a (closed) database file with its journal, WAL and cipher settings files.
+     *
+     * @throws IOException if the database file itself can't be renamed
+     */
+    static void moveDatabaseFiles(File from, File to) throws IOException
+    {
+        if (!from.renameTo(to))
+            throw new IOException("couldn't move " + from.getName() + " to " + to.getName());
+        for (String suffix : new String[]{JOURNAL_SUFFIXES[0], JOURNAL_SUFFIXES[1], JOURNAL_SUFFIXES[2], CIPHER_SETTINGS_SUFFIX})
+        {
+            File file = new File(from.getAbsolutePath() + suffix);
+            if (file.exists())
+                file.renameTo(new File(to.getAbsolutePath() + suffix));
+        }
+    }
+
+    /**
+     * If a prepopulated DB file exists in the assets folder it is copied to the dbPath.
+     * Only runs the first time the app runs.
+     *
+     * @param dbName               The name of the database file - could be used as filename for imported asset
+     * @param dbfile               The File of the destination db
+     * @param assetFileInputStream input file stream for pre-populated db asset
+     */
+    private void createFromAssets(String dbName, File dbfile, InputStream assetFileInputStream)
+    {
+        OutputStream out = null;
+
+        try
+        {
+            FLog.v(TAG, "Copying pre-populated DB content");
+            String dbPath = dbfile.getAbsolutePath();
+            dbPath = dbPath.substring(0, dbPath.lastIndexOf("/") + 1);
+
+            File dbPathFile = new File(dbPath);
+            if (!dbPathFile.exists())
+                dbPathFile.mkdirs();
+
+            File newDbFile = new File(dbPath + dbName);
+            out = new FileOutputStream(newDbFile);
+
+            // XXX TODO: this is very primitive, other alternatives at:
+            // http://www.journaldev.com/861/4-ways-to-copy-file-in-java
+            byte[] buf = new byte[1024];
+            int len;
+            while ((len = assetFileInputStream.read(buf)) > 0)
+                out.write(buf, 0, len);
+
+            FLog.v(TAG, "Copied pre-populated DB content to: " + newDbFile.getAbsolutePath());
+        } catch (IOException e)
+        {
+            FLog.v(TAG, "No pre-populated DB found, error=" + e.getMessage());
+        } finally
+        {
+            closeQuietly(out);
+        }
+    }
+
+    static void closeQuietly(Closeable closeable)
+    {
+        if (closeable != null)
+        {
+            try
+            {
+                closeable.close();
+            } catch (IOException ex)
+            {
+                // ignore
+            }
+        }
+    }
+
+    /**
+     * @return identifier quoted for use in SQL
+     */
+    static String quoteIdentifier(String identifier)
+    {
+        return "\"" + identifier.replace("\"", "\"\"") + "\"";
+    }
+}
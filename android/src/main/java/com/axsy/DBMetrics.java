@@ -0,0 +1,54 @@
+/**
+ * Copyright (c) 2020, Axsy
+ */
+
+package com.axsy;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Named counters kept per database runner, readable from JS with getMetrics.
+ *
+ * Counters may be updated from the db thread and read from the bridge thread.
+ */
+final class DBMetrics
+{
+    private final ConcurrentHashMap<String, AtomicLong> counters = new ConcurrentHashMap<String, AtomicLong>();
+
+    void increment(String name)
+    {
+        add(name, 1);
+    }
+
+    void add(String name, long delta)
+    {
+        AtomicLong counter = counters.get(name);
+        if (counter == null)
+        {
+            AtomicLong newCounter = new AtomicLong();
+            counter = counters.putIfAbsent(name, newCounter);
+            if (counter == null)
+                counter = newCounter;
+        }
+        counter.addAndGet(delta);
+    }
+
+    long get(String name)
+    {
+        AtomicLong counter = counters.get(name);
+        return (counter == null) ? 0 : counter.get();
+    }
+
+    Map<String, Object> toMap()
+    {
+        Map<String, Object> map = new HashMap<String, Object>();
+        for (Map.Entry<String, AtomicLong> entry : counters.entrySet())
+        {
+            map.put(entry.getKey(), (double) entry.getValue().get());
+        }
+        return map;
+    }
+}
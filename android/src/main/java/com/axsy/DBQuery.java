@@ -0,0 +1,114 @@
+/**
+ * Copyright (c) 2020, Axsy
+ */
+
+package com.axsy;
+
+/**
+ * Batch or task queued for the db thread of a runner, or the request to stop it
+ */
+final class DBQuery
+{
+    // XXX TODO replace with DBRunner action enum:
+    final boolean stop;
+    final boolean close;
+    final boolean delete;
+    final String[] queries;
+    final String[] queryIDs;
+    final StatementParams[] queryParams;
+    final long[] cursorWindowSizes;
+    final DBTask task;
+    final CallbackContext cbc;
+
+    /**
+     * When the query was queued (System.nanoTime()), and the number of requests ahead of it
+     */
+    final long queuedAt = System.nanoTime();
+    int queueDepth;
+
+    /**
+     * Whether the batch runs as one transaction, rolled back as a whole on the first error
+     */
+    boolean atomic;
+
+    /**
+     * Whether the (atomic) batch fails rather than being nested in a transaction already open
+     */
+    boolean standalone;
+
+    /**
+     * Statements whose parameters refer to earlier results, and skip conditions (see BatchReferences);
+     * null if none
+     */
+    boolean[] resolveParams;
+    String[] skipConditions;
+
+    DBQuery(String[] myqueries, String[] qids, StatementParams[] params, long[] windowSizes, CallbackContext c)
+    {
+        this.stop = false;
+        this.close = false;
+        this.delete = false;
+        this.queries = myqueries;
+        this.queryIDs = qids;
+        this.queryParams = params;
+        this.cursorWindowSizes = windowSizes;
+        this.task = null;
+        this.cbc = c;
+    }
+
+    DBQuery(DBTask task, CallbackContext cbc)
+    {
+        this.stop = false;
+        this.close = false;
+        this.delete = false;
+        this.queries = null;
+        this.queryIDs = null;
+        this.queryParams = null;
+        this.cursorWindowSizes = null;
+        this.task = task;
+        this.cbc = cbc;
+    }
+
+    DBQuery(boolean delete, CallbackContext cbc)
+    {
+        this.stop = true;
+        this.close = true;
+        this.delete = delete;
+        this.queries = null;
+        this.queryIDs = null;
+        this.queryParams = null;
+        this.cursorWindowSizes = null;
+        this.task = null;
+        this.cbc = cbc;
+    }
+
+    // signal the DBRunner thread to stop:
+    DBQuery()
+    {
+        this.stop = true;
+        this.close = false;
+        this.delete = false;
+        this.queries = null;
+        this.queryIDs = null;
+        this.queryParams = null;
+        this.cursorWindowSizes = null;
+        this.task = null;
+        this.cbc = null;
+    }
+
+    /**
+     * @return whether the batch or task only reads the database
+     */
+    boolean isReadOnly()
+    {
+        if (this.queries == null)
+            return this.task != null && this.task.isReadOnly();
+
+        for (String query : this.queries)
+        {
+            if (QueryType.of(query) != QueryType.select)
+                return false;
+        }
+        return true;
+    }
+}
@@ -0,0 +1,1704 @@
+/**
+ * Copyright (c) 2020, Axsy
+ */
+
+package com.axsy;
+
+import android.database.Cursor;
+import android.os.Debug;
+
+import net.sqlcipher.database.SQLiteDatabase;
+import net.sqlcipher.database.SQLiteException;
+import net.sqlcipher.database.SQLiteStatement;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+
+import com.facebook.common.logging.FLog;
+
+/**
+ * Runner of a database: its connection, and the db thread that serves the queue of batches and tasks
+ * for it, one at a time.
+ */
+final class DBRunner implements Runnable
+{
+    private static final String TAG = SQLitePlugin.TAG;
+
+    private static final Pattern ROLLBACK_TO = Pattern.compile("^\\s*ROLLBACK\\s+(TRANSACTION\\s+)?TO\\b",
+            Pattern.CASE_INSENSITIVE);
+
+    private static final Pattern ATTACH_ALIAS = Pattern.compile("^[A-Za-z_]\\w*$");
+
+    /**
+     * PRAGMA assignment: schema (optional) and name of the pragma
+     */
+    private static final Pattern PRAGMA_ASSIGNMENT = Pattern.compile("^\\s*PRAGMA\\s+(?:(\\w+)\\s*\\.\\s*)?(\\w+)\\s*[=(]",
+            Pattern.CASE_INSENSITIVE);
+
+    /**
+     * Pragmas that only set the connection (rather than the database file), lost when it is closed
+     */
+    private static final Set<String> CONNECTION_PRAGMAS = new HashSet<String>(Arrays.asList(
+            "automatic_index", "busy_timeout", "cache_size", "cache_spill", "case_sensitive_like",
+            "cell_size_check", "defer_foreign_keys", "foreign_keys", "ignore_check_constraints",
+            "journal_mode", "journal_size_limit", "legacy_alter_table", "locking_mode", "max_page_count",
+            "mmap_size", "query_only", "read_uncommitted", "recursive_triggers", "reverse_unordered_selects",
+            "secure_delete", "soft_heap_limit", "synchronous", "temp_store", "threads", "trusted_schema",
+            "wal_autocheckpoint"));
+
+    /**
+     * Alias of the source database while copyTable attaches it (reserved)
+     */
+    private static final String COPY_SOURCE_ALIAS = "copy_source";
+
+    final DBManager manager;
+    final String dbname;
+    volatile String key;
+    final int openFlags;
+    private String assetFilename;
+    private boolean androidLockWorkaround;
+    private boolean androidLockWorkaroundRecycle;
+    private boolean cipherAutoMigrate;
+    final long cursorWindowSize;
+
+    /**
+     * Milliseconds without queued work before the connection is closed, 0 to keep it open
+     */
+    private final long idleTimeout;
+
+    /**
+     * Raw key derived from the passphrase, to re-open the connection without running the KDF
+     * (only accessed from the db thread)
+     */
+    private String rawKey;
+    private boolean rawKeyDerived;
+
+    /**
+     * Milliseconds a database detached from its JS context stays open for a new one to re-attach
+     */
+    private final long reattachTimeout;
+
+    /**
+     * When the JS context that opened the database went away (System.currentTimeMillis()),
+     * 0 while attached; closing once a close is queued, after which the runner can't be re-attached
+     * (guarded by this)
+     */
+    private long detachedAt;
+    private boolean closing;
+
+    /**
+     * Group commit (groupCommit open option): milliseconds to wait for more write batches to
+     * share a transaction with, -1 if not enabled; and the maximum number of batches per transaction
+     */
+    private final long groupCommitDelay;
+    private final int groupCommitSize;
+
+    /**
+     * Query taken from the queue while collecting a group, processed next (only accessed from the db thread)
+     */
+    private DBQuery pending;
+
+    final BlockingQueue<DBQuery> q;
+    final CallbackContext openCbc;
+
+    /**
+     * Live queries by id, and the tables written since they were last evaluated
+     * (only accessed from the db thread)
+     */
+    final Map<String, LiveQuery> liveQueries = new HashMap<String, LiveQuery>();
+
+    /**
+     * Registered queries: SQL by name, and the type of each registered SQL (read from the bridge thread,
+     * updated together under the lock of registeredTypes)
+     */
+    final Map<String, String> registeredQueries = new ConcurrentHashMap<String, String>();
+    private final Map<String, QueryType> registeredTypes = new ConcurrentHashMap<String, QueryType>();
+    private final Set<String> dirtyTables = new HashSet<String>();
+
+    /**
+     * Databases attached to the connection by alias, attached again when it is re-opened
+     * (only accessed from the db thread)
+     */
+    private final Map<String, Attachment> attachments = new LinkedHashMap<String, Attachment>();
+
+    /**
+     * Connection settings made through the plugin (PRAGMA assignments), by schema and name,
+     * made again when it is re-opened (only accessed from the db thread)
+     */
+    private final Map<String, String> settings = new LinkedHashMap<String, String>();
+
+    final DBMetrics metrics = new DBMetrics();
+
+    /**
+     * Statements slower than the slowQueryThreshold open option, null if not enabled
+     */
+    final SlowQueryLog slowQueries;
+
+    /**
+     * Re-key in progress, if any (only accessed from the db thread)
+     */
+    private Rekey rekey;
+
+    /**
+     * Backup in progress, if any (only accessed from the db thread)
+     */
+    private Backup backup;
+
+    /**
+     * Tasks waiting for the transaction in progress to end (only accessed from the db thread)
+     */
+    private final List<DBQuery> parked = new ArrayList<DBQuery>();
+
+    /**
+     * Number of batches or tasks that changed the database file (only accessed from the db thread)
+     */
+    long writeCount = 0;
+
+    SQLiteDatabase mydb;
+
+    private final BatchExecutor executor = new BatchExecutor(this);
+
+    /**
+     * @param manager - manager of the runner, which opens its database
+     * @param options - open options, as for the JS openDatabase
+     * @param cbc     - callback, called once the database is open
+     */
+    DBRunner(DBManager manager, final String dbname, final String key, Map<String, Object> options, CallbackContext cbc)
+    {
+        this.manager = manager;
+        this.dbname = dbname;
+        this.key = key;
+        int openFlags = SQLiteDatabase.OPEN_READWRITE | SQLiteDatabase.CREATE_IF_NECESSARY;
+        try
+        {
+            this.assetFilename = SQLitePluginConverter.getString(options,"assetFilename",null);
+            if (this.assetFilename != null && this.assetFilename.length() > 0)
+            {
+                boolean readOnly = SQLitePluginConverter.getBoolean(options,"readOnly",false);
+                openFlags = readOnly ? SQLiteDatabase.OPEN_READONLY : openFlags;
+            }
+        } catch (Exception ex)
+        {
+            FLog.v(TAG, "Error retrieving assetFilename this.mode from options:", ex);
+        }
+        this.openFlags = openFlags;
+        this.androidLockWorkaround = SQLitePluginConverter.getBoolean(options,"androidLockWorkaround",false);
+        this.cipherAutoMigrate = SQLitePluginConverter.getBoolean(options,"cipherMigrate",true);
+        this.cursorWindowSize = Long.parseLong(SQLitePluginConverter.getString(options,"cursorWindowSize","0"));
+        this.idleTimeout = (long) (1000 * Double.parseDouble(SQLitePluginConverter.getString(options,"idleTimeout","0")));
+        this.reattachTimeout = (long) (1000 * Double.parseDouble(SQLitePluginConverter.getString(options,"reattachTimeout","60")));
+        this.groupCommitDelay = SQLitePluginConverter.getBoolean(options,"groupCommit",false) ?
+                Long.parseLong(SQLitePluginConverter.getString(options,"groupCommitDelay","0")) : -1;
+        this.groupCommitSize = Integer.parseInt(SQLitePluginConverter.getString(options,"groupCommitSize","64"));
+        long slowQueryThreshold = Long.parseLong(SQLitePluginConverter.getString(options,"slowQueryThreshold","0"));
+        this.slowQueries = (slowQueryThreshold > 0) ? new SlowQueryLog(slowQueryThreshold,
+                Integer.parseInt(SQLitePluginConverter.getString(options,"slowQueryLogSize","100"))) : null;
+        this.androidLockWorkaroundRecycle = "recycle".equals(
+                SQLitePluginConverter.getString(options,"androidLockWorkaroundMode","reopen"));
+        if (this.androidLockWorkaround)
+            FLog.v(TAG, "Android db closing/locking workaround applied" +
+                    (this.androidLockWorkaroundRecycle ? " (recycle mode)" : ""));
+
+        this.q = new LinkedBlockingQueue<DBQuery>();
+        this.openCbc = cbc;
+    }
+
+    public void run()
+    {
+        try
+        {
+            this.manager.awaitLibraries();
+        } catch (Exception e)
+        {
+            FLog.e(TAG, "stopping db thread", e);
+            DBManager.dbrmap.remove(dbname, this);
+            this.openCbc.error(e.getMessage());
+            return;
+        }
+
+        try
+        {
+
+            this.mydb = this.manager.openDatabase(dbname, this.key, this.assetFilename, this.openFlags, this.openCbc, null, this.cipherAutoMigrate);
+            metrics.increment("opens");
+        } catch (Exception e)
+        {
+            FLog.e(TAG, "unexpected error, stopping db thread", e);
+            DBManager.dbrmap.remove(dbname, this);
+            return;
+        }
+
+        DBQuery dbq = null;
+
+        try
+        {
+            dbq = nextQuery();
+            DBManager.trace.complete("queued", "queue", dbq.queuedAt, dbname);
+
+            while (!dbq.stop)
+            {
+                if (!hold(dbq))
+                {
+                    long start = DBManager.trace.begin();
+                    process(dbq);
+                    DBManager.trace.complete(dbq.task != null ? "task" : "batch", "runner", start, dbname);
+                    resumeParked();
+                }
+
+                dbq = nextQuery();
+                DBManager.trace.complete("queued", "queue", dbq.queuedAt, dbname);
+            }
+        } catch (Exception e)
+        {
+            FLog.e(TAG, "unexpected error", e);
+        }
+
+        if (this.rekey != null)
+        {
+            this.rekey.cancel("database closed");
+            this.rekey = null;
+        }
+        if (this.backup != null)
+        {
+            this.backup.cancel("database closed");
+            this.backup = null;
+        }
+
+        synchronized (this.registeredTypes)
+        {
+            this.registeredQueries.clear();
+            this.registeredTypes.clear();
+        }
+
+        if (dbq != null && dbq.close)
+        {
+            try
+            {
+                closeDatabaseNow();
+
+                // (should) remove ourself, unless already replaced by a new runner:
+                DBManager.dbrmap.remove(dbname, this);
+
+                if (!dbq.delete)
+                {
+                    if (dbq.cbc != null)
+                        dbq.cbc.success("database removed");
+                } else
+                {
+                    try
+                    {
+                        boolean deleteResult = this.manager.deleteDatabaseNow(dbname);
+                        if (dbq.cbc == null)
+                        {
+                            // (closed on detach, nobody to tell)
+                        } else if (deleteResult)
+                        {
+                            dbq.cbc.success("database removed");
+                        } else
+                        {
+                            dbq.cbc.error("couldn't delete database");
+                        }
+                    } catch (Exception e)
+                    {
+                        FLog.e(TAG, "couldn't delete database", e);
+                        if (dbq.cbc != null)
+                            dbq.cbc.error("couldn't delete database: " + e);
+                    }
+                }
+            } catch (Exception e)
+            {
+                FLog.e(TAG, "couldn't close database", e);
+                if (dbq.cbc != null)
+                {
+                    dbq.cbc.error("couldn't close database: " + e);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return whether the query has to wait for a re-key or backup in progress
+     */
+    private boolean hold(DBQuery dbq)
+    {
+        if (this.rekey != null)
+            return this.rekey.defer(dbq);
+        if (this.backup != null)
+            return this.backup.defer(dbq);
+        return false;
+    }
+
+    /**
+     * Run the task again once the transaction in progress has ended.
+     */
+    void park(DBQuery dbq)
+    {
+        this.parked.add(dbq);
+    }
+
+    private void resumeParked() throws InterruptedException
+    {
+        if (this.parked.isEmpty() || (this.mydb != null && this.mydb.inTransaction()))
+            return;
+
+        for (DBQuery dbq : this.parked)
+        {
+            this.q.put(dbq);
+        }
+        this.parked.clear();
+    }
+
+    private void process(DBQuery dbq) throws Exception
+    {
+        if (this.mydb == null)
+        {
+            // connection closed while idle or to save memory, re-open on demand:
+            try
+            {
+                reopenConnection();
+                metrics.increment("lazyReopens");
+            } catch (Exception e)
+            {
+                FLog.e(TAG, "couldn't re-open database", e);
+                if (dbq.cbc != null)
+                    dbq.cbc.error("couldn't re-open database: " + e.getMessage());
+                return;
+            }
+        }
+
+        if (dbq.task != null)
+        {
+            runTask(dbq);
+            if (!dbq.task.isReadOnly())
+                refreshAllLiveQueries();
+            return;
+        }
+
+        if (this.groupCommitDelay >= 0 && !dbq.atomic && isGroupCommittable(dbq) && this.rekey == null && !this.mydb.inTransaction())
+        {
+            List<DBQuery> group = collectGroup(dbq);
+            if (group.size() > 1)
+            {
+                processGroup(group);
+                return;
+            }
+        }
+
+        long batchStart = System.nanoTime();
+        if (dbq.atomic)
+            executeAtomicBatch(dbq);
+        else
+            this.executor.executeSqlBatch(dbq.queries, dbq.queryParams, dbq.queryIDs, dbq.cursorWindowSizes,
+                    references(dbq), dbq.cbc);
+        if (DBManager.recorder.isEnabled())
+            DBManager.recorder.record(dbname, dbq.queries, dbq.queryParams, dbq.queuedAt, dbq.queueDepth, batchStart);
+        if (!dbq.isReadOnly())
+            this.writeCount++;
+        refreshLiveQueries(dbq.queries);
+
+        // XXX workaround for Android locking/closing issue:
+        if (androidLockWorkaround && dbq.queries.length == 1 && dbq.queries[0].equals("COMMIT"))
+        {
+            long start = System.currentTimeMillis();
+            if (!androidLockWorkaroundRecycle || !recycleConnection())
+            {
+                closeConnection();
+                reopenConnection();
+                metrics.increment("lockWorkaroundReopens");
+            }
+            metrics.add("lockWorkaroundMillis", System.currentTimeMillis() - start);
+        }
+    }
+
+    void registerQuery(String name, String sql, QueryType queryType)
+    {
+        synchronized (this.registeredTypes)
+        {
+            this.registeredTypes.put(sql, queryType);
+            String previous = this.registeredQueries.put(name, sql);
+            if (previous != null && !previous.equals(sql))
+                dropType(previous);
+        }
+    }
+
+    /**
+     * Drop a registered query, unless its name was registered again with other SQL meanwhile.
+     */
+    void unregisterQuery(String name, String sql)
+    {
+        synchronized (this.registeredTypes)
+        {
+            // (Map.remove(key, value) is not available before API 24)
+            if (sql.equals(this.registeredQueries.get(name)))
+            {
+                this.registeredQueries.remove(name);
+                dropType(sql);
+            }
+        }
+    }
+
+    /**
+     * Forget the type of a SQL no longer registered under any name.
+     */
+    private void dropType(String sql)
+    {
+        if (!this.registeredQueries.containsValue(sql))
+            this.registeredTypes.remove(sql);
+    }
+
+    /**
+     * @return type of the query, classified once if it is registered
+     */
+    QueryType getQueryType(String query)
+    {
+        QueryType queryType = this.registeredTypes.get(query);
+        return (queryType != null) ? queryType : QueryType.of(query);
+    }
+
+    /**
+     * @return references of the batch to the results of its statements, null if none
+     */
+    private BatchReferences references(DBQuery dbq)
+    {
+        if (dbq.resolveParams == null && dbq.skipConditions == null)
+            return null;
+        return BatchReferences.create(dbq.queries.length, dbq.queryParams, dbq.resolveParams, dbq.skipConditions);
+    }
+
+    /**
+     * Execute a batch in one transaction (a savepoint if a transaction is already open), rolled back
+     * as a whole on the first error. BEGIN, COMMIT and ROLLBACK in the batch open, release and roll back
+     * nested savepoints; nested levels left open are committed with the batch.
+     *
+     * When the batch is rolled back, every statement reports an error: the one that failed its own,
+     * the others the rollback.
+     */
+    private void executeAtomicBatch(DBQuery dbq)
+    {
+        SQLiteDatabase mydb = this.mydb;
+        String[] queries = dbq.queries;
+        List<Map<String, Object>> batchResults = new ArrayList<Map<String, Object>>();
+        BatchReferences refs = references(dbq);
+        boolean nested = mydb.inTransaction();
+        String error = null;
+        int failed = -1;
+        int depth = 0;
+
+        if (nested && dbq.standalone)
+        {
+            // (submitted out of the JS transaction queue, must not join a JS transaction)
+            for (int i = 0; i < queries.length; i++)
+            {
+                BatchExecutor.pushResult(batchResults, dbq.queryIDs[i], null, "a transaction is in progress");
+            }
+            metrics.increment("atomicConflicts");
+            dbq.cbc.success(batchResults);
+            return;
+        }
+
+        if (nested)
+            mydb.rawExecSQL("SAVEPOINT atomic_batch");
+        else
+            mydb.beginTransaction();
+        try
+        {
+            for (int i = 0; i < queries.length && error == null; i++)
+            {
+                String query = queries[i];
+                QueryType queryType = getQueryType(query);
+                if (queryType != QueryType.begin && queryType != QueryType.commit && queryType != QueryType.rollback)
+                {
+                    error = this.executor.executeStatements(queries, dbq.queryParams, dbq.queryIDs,
+                            dbq.cursorWindowSizes, i, i + 1, refs, batchResults, dbq.cbc);
+                } else
+                {
+                    Map<String, Object> queryResult = null;
+                    try
+                    {
+                        if (queryType == QueryType.begin)
+                        {
+                            mydb.rawExecSQL("SAVEPOINT atomic_" + (depth + 1));
+                            depth++;
+                        } else if (queryType == QueryType.rollback && ROLLBACK_TO.matcher(query).find())
+                        {
+                            mydb.rawExecSQL(query);
+                        } else if (depth == 0)
+                        {
+                            throw new SQLiteException(query.trim() + " without BEGIN");
+                        } else
+                        {
+                            if (queryType == QueryType.rollback)
+                                mydb.rawExecSQL("ROLLBACK TO atomic_" + depth);
+                            mydb.rawExecSQL("RELEASE atomic_" + depth);
+                            depth--;
+                        }
+                        queryResult = new HashMap<String, Object>();
+                        queryResult.put("rowsAffected", 0.0);
+                    } catch (SQLiteException ex)
+                    {
+                        error = ex.getMessage();
+                    }
+                    BatchExecutor.pushResult(batchResults, dbq.queryIDs[i], queryResult, error);
+                }
+                if (error != null)
+                    failed = i;
+            }
+
+            if (nested)
+            {
+                if (error != null)
+                    mydb.rawExecSQL("ROLLBACK TO atomic_batch");
+                mydb.rawExecSQL("RELEASE atomic_batch");
+            } else if (error == null)
+            {
+                mydb.setTransactionSuccessful();
+            }
+        } catch (Exception ex)
+        {
+            FLog.e(TAG, "atomic batch failed", ex);
+            error = "transaction failed: " + ex.getMessage();
+            failed = -1;
+        } finally
+        {
+            if (!nested)
+            {
+                try
+                {
+                    mydb.endTransaction();
+                } catch (Exception ex)
+                {
+                    FLog.e(TAG, "atomic batch commit failed", ex);
+                    if (error == null)
+                        error = "commit failed: " + ex.getMessage();
+                }
+            }
+        }
+
+        if (error != null)
+        {
+            metrics.increment("atomicRollbacks");
+            batchResults = new ArrayList<Map<String, Object>>();
+            for (int i = 0; i < queries.length; i++)
+            {
+                BatchExecutor.pushResult(batchResults, dbq.queryIDs[i], null,
+                        (i == failed) ? error : "transaction rolled back: " + error);
+            }
+        }
+        metrics.increment("atomicBatches");
+
+        long start = DBManager.trace.begin();
+        dbq.cbc.success(batchResults);
+        DBManager.trace.complete("callback", "bridge", start, dbname);
+    }
+
+    /**
+     * @return whether a batch can share a transaction with others: a single write statement
+     * (autocommit), or write statements between BEGIN and COMMIT
+     */
+    private boolean isGroupCommittable(DBQuery dbq)
+    {
+        String[] queries = dbq.queries;
+        if (queries == null || queries.length == 0)
+            return false;
+
+        int from = 0;
+        int to = queries.length;
+        if (getQueryType(queries[0]) == QueryType.begin)
+        {
+            if (queries.length < 3 || getQueryType(queries[queries.length - 1]) != QueryType.commit)
+                return false;
+            from = 1;
+            to = queries.length - 1;
+        } else if (queries.length > 1)
+        {
+            return false;
+        }
+
+        for (int i = from; i < to; i++)
+        {
+            QueryType queryType = getQueryType(queries[i]);
+            if (queryType != QueryType.insert && queryType != QueryType.update && queryType != QueryType.delete)
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Take the group-committable batches that follow the given one in the queue, waiting up to
+     * groupCommitDelay ms for them. The first other query is kept for next.
+     */
+    private List<DBQuery> collectGroup(DBQuery first) throws InterruptedException
+    {
+        List<DBQuery> group = new ArrayList<DBQuery>();
+        group.add(first);
+        long deadline = System.nanoTime() + this.groupCommitDelay * 1000000;
+
+        while (group.size() < this.groupCommitSize)
+        {
+            long remaining = deadline - System.nanoTime();
+            DBQuery dbq = (remaining > 0) ? q.poll(remaining, TimeUnit.NANOSECONDS) : q.poll();
+            if (dbq == null)
+                break;
+            if (dbq.stop || dbq.task != null || !isGroupCommittable(dbq))
+            {
+                this.pending = dbq;
+                break;
+            }
+            DBManager.trace.complete("queued", "queue", dbq.queuedAt, dbname);
+            group.add(dbq);
+        }
+        return group;
+    }
+
+    /**
+     * Execute batches in one transaction, with a savepoint per logical transaction (a BEGIN ... COMMIT
+     * batch, or a single autocommit statement): a statement that fails rolls back its own logical
+     * transaction only. The statements after it are not run, and every statement of the logical
+     * transaction reports an error, as in an atomic batch: the one that failed its own, the others the rollback.
+     *
+     * The callbacks are called once the shared transaction is committed; if the commit fails,
+     * every statement of the group reports the failure.
+     */
+    private void processGroup(List<DBQuery> group)
+    {
+        long batchStart = System.nanoTime();
+        @SuppressWarnings("unchecked")
+        List<Map<String, Object>>[] results = new List[group.size()];
+        String failure = null;
+
+        this.mydb.beginTransaction();
+        try
+        {
+            for (int g = 0; g < group.size(); g++)
+            {
+                DBQuery dbq = group.get(g);
+                boolean wrapped = dbq.queries.length > 1;
+                int from = wrapped ? 1 : 0;
+                int to = wrapped ? dbq.queries.length - 1 : dbq.queries.length;
+                results[g] = new ArrayList<Map<String, Object>>();
+
+                if (wrapped)
+                {
+                    Map<String, Object> begin = new HashMap<String, Object>();
+                    begin.put("rowsAffected", 0.0);
+                    BatchExecutor.pushResult(results[g], dbq.queryIDs[0], begin, null);
+                }
+
+                this.mydb.rawExecSQL("SAVEPOINT group_commit");
+                BatchReferences refs = references(dbq);
+                String error = null;
+                int failed = -1;
+                for (int i = from; i < to && error == null; i++)
+                {
+                    error = this.executor.executeStatements(dbq.queries, dbq.queryParams, dbq.queryIDs,
+                            dbq.cursorWindowSizes, i, i + 1, refs, results[g], dbq.cbc);
+                    if (error != null)
+                        failed = i;
+                }
+                if (error != null)
+                {
+                    this.mydb.rawExecSQL("ROLLBACK TO group_commit");
+                    metrics.increment("groupCommitRollbacks");
+                }
+                this.mydb.rawExecSQL("RELEASE group_commit");
+
+                if (error != null)
+                {
+                    results[g] = new ArrayList<Map<String, Object>>();
+                    for (int i = 0; i < dbq.queries.length; i++)
+                    {
+                        BatchExecutor.pushResult(results[g], dbq.queryIDs[i], null,
+                                (i == failed) ? error : "transaction rolled back: " + error);
+                    }
+                } else if (wrapped)
+                {
+                    Map<String, Object> commit = new HashMap<String, Object>();
+                    commit.put("rowsAffected", 0.0);
+                    BatchExecutor.pushResult(results[g], dbq.queryIDs[to], commit, null);
+                }
+            }
+            this.mydb.setTransactionSuccessful();
+        } catch (Exception e)
+        {
+            FLog.e(TAG, "group commit failed", e);
+            failure = e.getMessage();
+        } finally
+        {
+            try
+            {
+                this.mydb.endTransaction();
+            } catch (Exception e)
+            {
+                FLog.e(TAG, "group commit failed", e);
+                if (failure == null)
+                    failure = e.getMessage();
+            }
+        }
+
+        metrics.increment("groupCommits");
+        metrics.add("groupCommitBatches", group.size());
+        if (failure != null)
+            metrics.increment("groupCommitFailures");
+
+        for (int g = 0; g < group.size(); g++)
+        {
+            DBQuery dbq = group.get(g);
+            if (failure != null)
+            {
+                results[g] = new ArrayList<Map<String, Object>>();
+                for (String queryId : dbq.queryIDs)
+                {
+                    BatchExecutor.pushResult(results[g], queryId, null, "group commit failed: " + failure);
+                }
+            }
+
+            long start = DBManager.trace.begin();
+            dbq.cbc.success(results[g]);
+            DBManager.trace.complete("callback", "bridge", start, dbname);
+            if (DBManager.recorder.isEnabled())
+                DBManager.recorder.record(dbname, dbq.queries, dbq.queryParams, dbq.queuedAt, dbq.queueDepth, batchStart);
+            this.writeCount++;
+            refreshLiveQueries(dbq.queries);
+        }
+    }
+
+    /**
+     * Release memory held by the connection, according to the memory pressure tier.
+     * The connection itself is only closed if nothing is waiting for it and it has no TEMP objects;
+     * it is re-opened by the next request, with the connection settings made through the plugin.
+     */
+    void releaseMemory(int tier)
+    {
+        metrics.increment("memoryTrims");
+        if (this.mydb == null)
+            return;
+
+        this.mydb.resetCompiledSqlCache();
+        metrics.increment("statementCacheResets");
+
+        if (tier >= DBManager.MEMORY_TIER_CACHES)
+        {
+            this.mydb.rawExecSQL("PRAGMA shrink_memory");
+            metrics.increment("shrinkMemory");
+            metrics.add("releasedMemoryBytes", SQLiteDatabase.releaseMemory());
+        }
+
+        if (tier >= DBManager.MEMORY_TIER_CLOSE && this.q.isEmpty())
+            metrics.increment(closeIdleConnection() ? "memoryCloses" : "memoryClosesRefused");
+    }
+
+    /**
+     * Re-attach to a new JS context.
+     *
+     * @return false if the runner is closing, a new one must be started
+     */
+    synchronized boolean attach()
+    {
+        if (this.closing)
+            return false;
+        this.detachedAt = 0;
+        return true;
+    }
+
+    synchronized void detach()
+    {
+        if (this.detachedAt == 0)
+            this.detachedAt = Math.max(System.currentTimeMillis(), 1);
+    }
+
+    synchronized void markClosing()
+    {
+        this.closing = true;
+    }
+
+    /**
+     * @return whether the database is (still) detached, in which case it is now closing
+     */
+    private synchronized boolean closeIfDetached()
+    {
+        if (this.detachedAt == 0)
+            return false;
+        this.closing = true;
+        return true;
+    }
+
+    /**
+     * Drop what belonged to the JS context that went away: its live queries,
+     * and a transaction it left open.
+     */
+    void releaseDetached()
+    {
+        this.liveQueries.clear();
+        this.dirtyTables.clear();
+        if (this.mydb != null && this.mydb.inTransaction())
+        {
+            while (this.mydb.inTransaction())
+            {
+                this.mydb.endTransaction();
+            }
+            metrics.increment("detachRollbacks");
+        }
+    }
+
+    /**
+     * @return the next query in the queue; with an idle timeout, the connection is closed
+     * when none arrives in time. A detached database is closed (stop query returned) when
+     * no JS context re-attaches in time.
+     */
+    private DBQuery nextQuery() throws InterruptedException
+    {
+        if (this.pending != null)
+        {
+            DBQuery dbq = this.pending;
+            this.pending = null;
+            return dbq;
+        }
+
+        long detachedAt;
+        synchronized (this)
+        {
+            detachedAt = this.detachedAt;
+        }
+        if (detachedAt != 0)
+        {
+            long remaining = detachedAt + this.reattachTimeout - System.currentTimeMillis();
+            DBQuery dbq = (remaining > 0) ? q.poll(remaining, TimeUnit.MILLISECONDS) : q.poll();
+            if (dbq != null)
+                return dbq;
+            if (closeIfDetached())
+            {
+                FLog.v(TAG, "closing detached database: " + dbname);
+                metrics.increment("detachedCloses");
+                return new DBQuery(false, null);
+            }
+            // (re-attached meanwhile)
+        }
+        if (this.idleTimeout > 0 && this.mydb != null)
+        {
+            DBQuery dbq = q.poll(this.idleTimeout, TimeUnit.MILLISECONDS);
+            if (dbq != null)
+                return dbq;
+            if (closeIdleConnection())
+            {
+                FLog.v(TAG, "closed idle database: " + dbname);
+                metrics.increment("idleCloses");
+            } else
+            {
+                metrics.increment("idleClosesRefused");
+            }
+        }
+        return q.take();
+    }
+
+    /**
+     * Close the connection if it is not in use (no transaction or re-key in progress) and has no
+     * TEMP tables, views or triggers, which would be lost; the next request re-opens it.
+     *
+     * @return whether the connection was closed
+     */
+    private boolean closeIdleConnection()
+    {
+        if (this.mydb == null || this.rekey != null || this.backup != null || this.mydb.inTransaction())
+            return false;
+
+        SQLiteStatement temp = null;
+        try
+        {
+            temp = this.mydb.compileStatement("SELECT count(*) FROM sqlite_temp_master");
+            if (temp.simpleQueryForLong() > 0)
+                return false;
+        } finally
+        {
+            DBManager.closeQuietly(temp);
+        }
+
+        closeConnection();
+        return true;
+    }
+
+    /**
+     * Record a statement that sets the connection, to make it again when the connection is re-opened.
+     */
+    void recordSetting(String query)
+    {
+        Matcher matcher = PRAGMA_ASSIGNMENT.matcher(query);
+        if (!matcher.find() || !CONNECTION_PRAGMAS.contains(matcher.group(2).toLowerCase()))
+            return;
+
+        String name = ((matcher.group(1) != null) ? matcher.group(1) + "." : "") + matcher.group(2);
+        // (in the order last set)
+        this.settings.remove(name.toLowerCase());
+        this.settings.put(name.toLowerCase(), query);
+    }
+
+    /**
+     * Close the connection, keeping the derived key to re-open it.
+     */
+    private void closeConnection()
+    {
+        if (!this.rawKeyDerived)
+        {
+            this.rawKey = deriveRawKey();
+            this.rawKeyDerived = true;
+        }
+        closeDatabaseNow();
+        this.mydb = null;
+    }
+
+    /**
+     * Close the connection (in the current thread).
+     */
+    private void closeDatabaseNow()
+    {
+        if (this.mydb != null)
+            this.mydb.close();
+    }
+
+    private void reopenConnection() throws Exception
+    {
+        long start = System.nanoTime();
+        // (only a read-only asset is opened in place, any other was copied on the first open)
+        String assetFilename = (this.openFlags == SQLiteDatabase.OPEN_READONLY) ? this.assetFilename : "";
+        if (this.rawKey != null)
+        {
+            try
+            {
+                this.mydb = this.manager.openDatabase(dbname, this.rawKey, assetFilename, this.openFlags, null, null, this.cipherAutoMigrate);
+            } catch (Exception e)
+            {
+                FLog.w(TAG, "couldn't re-open database with the derived key, using the passphrase", e);
+                this.rawKey = null;
+                metrics.increment("derivedKeyFailures");
+            }
+        }
+        if (this.mydb == null)
+            this.mydb = this.manager.openDatabase(dbname, this.key, assetFilename, this.openFlags, null, null, this.cipherAutoMigrate);
+        reattachDatabases();
+
+        for (String setting : this.settings.values())
+        {
+            try
+            {
+                this.mydb.rawExecSQL(setting);
+            } catch (Exception e)
+            {
+                FLog.w(TAG, "couldn't restore connection setting: " + setting, e);
+            }
+        }
+
+        metrics.increment("opens");
+        metrics.add("reopenMillis", (System.nanoTime() - start) / 1000000);
+    }
+
+    /**
+     * Derive the key of the database from the passphrase as SQLCipher 4 does (PBKDF2-HMAC-SHA512
+     * with the salt at the start of the file), in the raw key format that makes SQLCipher skip
+     * its own derivation: x'(key)(salt)'.
+     *
+     * @return raw key, null if it can't be derived (other cipher formats, or no PBKDF2-SHA512 provider)
+     */
+    private String deriveRawKey()
+    {
+        if (this.key == null || this.key.length() == 0 || this.key.startsWith("x'") ||
+                this.openFlags == SQLiteDatabase.OPEN_READONLY)
+            return null;
+
+        RandomAccessFile file = null;
+        try
+        {
+            File dbfile = this.manager.getContext().getDatabasePath(dbname);
+            Properties cipherSettings = this.manager.readCipherSettings(dbfile);
+            if (DBManager.getCipherMode(cipherSettings) != CipherMode.current || dbfile.length() < 16)
+                return null;
+
+            byte[] salt = new byte[16];
+            file = new RandomAccessFile(dbfile, "r");
+            file.readFully(salt);
+
+            int kdfIter = Integer.parseInt(cipherSettings.getProperty("kdf_iter", "256000"));
+            byte[] derived = SecretKeyFactory.getInstance("PBKDF2WithHmacSHA512")
+                    .generateSecret(new PBEKeySpec(this.key.toCharArray(), salt, kdfIter, 256))
+                    .getEncoded();
+
+            StringBuilder rawKey = new StringBuilder("x'");
+            for (byte b : derived)
+            {
+                rawKey.append(String.format("%02X", b));
+            }
+            for (byte b : salt)
+            {
+                rawKey.append(String.format("%02X", b));
+            }
+            return rawKey.append("'").toString();
+        } catch (Exception e)
+        {
+            FLog.v(TAG, "couldn't derive database key", e);
+            return null;
+        } finally
+        {
+            DBManager.closeQuietly(file);
+        }
+    }
+
+    /**
+     * Cheap alternative to closing and re-opening the database for the Android locking workaround:
+     * finalize the statements cached by the connection, which is what keeps holding the file locks
+     * after COMMIT, while keeping the keyed connection and its page cache.
+     *
+     * @return false if the connection could not be recycled and still needs a full re-open
+     */
+    private boolean recycleConnection()
+    {
+        try
+        {
+            if (this.mydb.inTransaction())
+            {
+                // never end a transaction someone else opened, re-open instead
+                return false;
+            }
+            this.mydb.resetCompiledSqlCache();
+            metrics.increment("lockWorkaroundRecycles");
+            return true;
+        } catch (Exception e)
+        {
+            FLog.e(TAG, "couldn't recycle database connection, re-opening", e);
+            return false;
+        }
+    }
+
+    /**
+     * Migrate a database opened in compatibility mode to the current cipher format.
+     *
+     * @return false if the database was already in the current format
+     */
+    boolean migrateCipher() throws Exception
+    {
+        if (this.rekey != null)
+            throw new IllegalStateException("database re-key in progress");
+        if (DBManager.getCipherMode(this.manager.readCipherSettings(this.manager.getContext().getDatabasePath(dbname))) == CipherMode.current)
+            return false;
+
+        closeDatabaseNow();
+        try
+        {
+            this.mydb = this.manager.openDatabase(dbname, this.key, "", this.openFlags, null, CipherMode.migrate, false);
+        } catch (Exception e)
+        {
+            // keep serving the database in compatibility mode
+            this.mydb = this.manager.openDatabase(dbname, this.key, "", this.openFlags, null, CipherMode.legacy, false);
+            reattachDatabases();
+            throw e;
+        }
+        reattachDatabases();
+        this.writeCount++;
+        metrics.increment("cipherMigrations");
+        return true;
+    }
+
+    /**
+     * Start re-encrypting the database with a new key and/or cipher settings. The database is
+     * exported in the background and swapped in by {@link #finishRekey} when done. Refused while a
+     * transaction is open.
+     *
+     * @param newKey      - new encryption key, null to keep the current one
+     * @param newSettings - new cipher settings
+     * @param cbc         - JS callback, called once the new database is in place
+     */
+    void startRekey(String newKey, Properties newSettings, CallbackContext cbc)
+    {
+        if (this.rekey != null)
+            throw new IllegalStateException("database re-key already in progress");
+        if (this.backup != null)
+            throw new IllegalStateException("database backup in progress");
+        // (the swap re-opens the connection, which would drop the uncommitted writes)
+        if (this.mydb.inTransaction())
+            throw new IllegalStateException("a transaction is in progress");
+
+        File dbfile = this.manager.getContext().getDatabasePath(dbname);
+        Properties cipherSettings = this.manager.readCipherSettings(dbfile);
+        if (DBManager.getCipherMode(cipherSettings) != CipherMode.current)
+            throw new IllegalStateException("database must be migrated to the current cipher format first");
+
+        this.rekey = new Rekey(this, dbfile, cipherSettings, newKey != null ? newKey : this.key, newSettings, cbc);
+        this.rekey.changeStamp = changeStamp();
+        this.manager.getThreadPool().execute(this.rekey);
+    }
+
+    /**
+     * @return a stamp that changes with every row changed on the connection, every commit made to the
+     * database file by other connections (e.g. through an ATTACH) and every schema change
+     */
+    String changeStamp()
+    {
+        SQLiteStatement statement = null;
+        try
+        {
+            statement = this.mydb.compileStatement("SELECT total_changes() || ':' || " +
+                    "(SELECT data_version FROM pragma_data_version) || ':' || " +
+                    "(SELECT schema_version FROM pragma_schema_version)");
+            return statement.simpleQueryForString();
+        } finally
+        {
+            DBManager.closeQuietly(statement);
+        }
+    }
+
+    /**
+     * Hold back writes until the backup is finished, refused while a re-key or another backup is in progress.
+     */
+    void startBackup(Backup backup)
+    {
+        if (this.rekey != null)
+            throw new IllegalStateException("database re-key in progress");
+        if (this.backup != null)
+            throw new IllegalStateException("database backup already in progress");
+        this.backup = backup;
+    }
+
+    /**
+     * Stop holding back writes for the backup, and run the work held back meanwhile.
+     */
+    void finishBackup(Backup backup) throws Exception
+    {
+        if (this.backup != backup)
+            return;
+
+        this.backup = null;
+        for (DBQuery dbq : backup.deferred)
+        {
+            // (a re-key or backup started by the held work holds back the rest)
+            if (!hold(dbq))
+                process(dbq);
+        }
+    }
+
+    /**
+     * @return the data version of the connection, which changes with every commit made to the database
+     * file by other connections
+     */
+    long dataVersion()
+    {
+        return pragmaLong(this.mydb, "data_version");
+    }
+
+    /**
+     * Swap the re-keyed database in place of the old one, then run the work held back meanwhile.
+     */
+    void finishRekey() throws Exception
+    {
+        Rekey rk = this.rekey;
+        CallbackContext cbc = rk.cbc;
+        this.rekey = null;
+        try
+        {
+            if (rk.error != null)
+                throw rk.error;
+            // (only reads are let through during the export, anything else would be lost by the swap)
+            if (!changeStamp().equals(rk.changeStamp))
+                throw new IllegalStateException("database written during the re-key");
+
+            this.manager.sendProgress(DBManager.REKEY_PROGRESS_EVENT, dbname, "swap", 0);
+            replaceDatabaseFile(rk.tmpFile, rk.newKey, rk.newSettings);
+
+            metrics.increment("rekeys");
+            this.manager.sendProgress(DBManager.REKEY_PROGRESS_EVENT, dbname, "swap", 1);
+            cbc.success("database re-keyed");
+        } catch (Exception e)
+        {
+            FLog.e(TAG, "couldn't re-key database", e);
+            rk.tmpFile.delete();
+            cbc.error("couldn't re-key database: " + e.getMessage());
+        } finally
+        {
+            for (DBQuery dbq : rk.deferred)
+            {
+                process(dbq);
+            }
+        }
+    }
+
+    /**
+     * Swap a new file in place of the database file and re-open it.
+     * The new file is checked to open with its key first, and the old database is kept aside
+     * until the new one is open: if anything fails, the old database is put back and re-opened.
+     *
+     * @param newFile        - file to move in place of the database file
+     * @param newKey         - encryption key of the new file
+     * @param cipherSettings - cipher settings of the new file, null if unknown
+     */
+    void replaceDatabaseFile(File newFile, String newKey, Properties cipherSettings) throws Exception
+    {
+        this.manager.verifyDatabaseFile(newFile, newKey, cipherSettings);
+
+        File dbfile = this.manager.getContext().getDatabasePath(dbname);
+        File oldFile = new File(dbfile.getAbsolutePath() + "-replaced");
+
+        closeDatabaseNow();
+        this.mydb = null;
+        DBManager.deleteDatabaseFiles(oldFile);
+        try
+        {
+            DBManager.moveDatabaseFiles(dbfile, oldFile);
+        } catch (IOException e)
+        {
+            this.mydb = this.manager.openDatabase(dbname, this.key, "", this.openFlags, null, null, this.cipherAutoMigrate);
+            reattachDatabases();
+            throw e;
+        }
+
+        try
+        {
+            if (!newFile.renameTo(dbfile))
+                throw new IOException("couldn't replace database file");
+            if (cipherSettings != null)
+                this.manager.writeCipherSettings(dbfile, cipherSettings);
+            this.mydb = this.manager.openDatabase(dbname, newKey, "", this.openFlags, null, null, this.cipherAutoMigrate);
+        } catch (Exception e)
+        {
+            FLog.e(TAG, "couldn't open the new database file, putting the old one back", e);
+            if (this.mydb != null)
+                closeDatabaseNow();
+            DBManager.deleteDatabaseFiles(dbfile);
+            DBManager.moveDatabaseFiles(oldFile, dbfile);
+            this.mydb = this.manager.openDatabase(dbname, this.key, "", this.openFlags, null, null, this.cipherAutoMigrate);
+            reattachDatabases();
+            throw e;
+        }
+        DBManager.deleteDatabaseFiles(oldFile);
+        this.writeCount++;
+
+        this.key = newKey;
+        // new file, new salt (and possibly new key):
+        this.rawKey = null;
+        this.rawKeyDerived = false;
+        reattachDatabases();
+    }
+
+    /**
+     * Attach another database to the connection (ATTACH DATABASE ... KEY), so that queries of this
+     * database can join its tables as alias.table. Writes to it are better left to its own runner:
+     * the two connections only share the file locks.
+     *
+     * @param alias       - schema name of the attached database
+     * @param otherDbname - name of the database to attach
+     * @param otherKey    - encryption key of the database to attach
+     */
+    void attachDatabase(String alias, String otherDbname, String otherKey)
+    {
+        if (!ATTACH_ALIAS.matcher(alias).matches() || alias.equalsIgnoreCase("main") ||
+                alias.equalsIgnoreCase("temp") || alias.equalsIgnoreCase(COPY_SOURCE_ALIAS))
+            throw new IllegalArgumentException("invalid alias: " + alias);
+        if (otherDbname.equals(dbname))
+            throw new IllegalArgumentException("can't attach a database to itself");
+        if (this.attachments.containsKey(alias))
+            throw new IllegalStateException("alias already attached: " + alias);
+
+        attach(alias, otherDbname, otherKey);
+        this.attachments.put(alias, new Attachment(otherDbname, otherKey));
+    }
+
+    void detachDatabase(String alias)
+    {
+        if (!this.attachments.containsKey(alias))
+            throw new IllegalArgumentException("no database attached as " + alias);
+        if (this.mydb.inTransaction())
+            throw new IllegalStateException("a transaction is in progress");
+
+        this.mydb.rawExecSQL("DETACH DATABASE " + alias);
+        this.attachments.remove(alias);
+    }
+
+    private void attach(String alias, String otherDbname, String otherKey)
+    {
+        File otherFile = this.manager.getContext().getDatabasePath(otherDbname);
+        if (!otherFile.exists())
+            throw new IllegalArgumentException("no such database: " + otherDbname);
+        Properties cipherSettings = this.manager.readCipherSettings(otherFile);
+        if (DBManager.getCipherMode(cipherSettings) == CipherMode.legacy)
+            throw new IllegalStateException(otherDbname + " must be migrated to the current cipher format first");
+        if (this.mydb.inTransaction())
+            throw new IllegalStateException("a transaction is in progress");
+
+        this.mydb.execSQL("ATTACH DATABASE ? AS " + alias + " KEY ?",
+                new Object[]{otherFile.getAbsolutePath(), otherKey != null ? otherKey : ""});
+        for (String pragma : CipherHook.CIPHER_PRAGMAS)
+        {
+            String value = (cipherSettings == null) ? null : cipherSettings.getProperty(pragma);
+            if (value != null)
+                this.mydb.rawExecSQL("PRAGMA " + alias + "." + pragma + " = " + Integer.parseInt(value));
+        }
+        metrics.increment("attaches");
+    }
+
+    /**
+     * Attach the attached databases again to a new connection; those that can't be (deleted,
+     * re-keyed meanwhile) are dropped.
+     */
+    private void reattachDatabases()
+    {
+        Iterator<Map.Entry<String, Attachment>> it = this.attachments.entrySet().iterator();
+        while (it.hasNext())
+        {
+            Map.Entry<String, Attachment> entry = it.next();
+            try
+            {
+                attach(entry.getKey(), entry.getValue().dbname, entry.getValue().key);
+            } catch (Exception e)
+            {
+                FLog.w(TAG, "couldn't attach " + entry.getValue().dbname + " again, detached", e);
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * Copy rows of a table of another database into the table of the same name, created like the
+     * source table (without its indexes) if missing. Columns are copied by position.
+     *
+     * @param source     - name of the source database, attached meanwhile unless already attached
+     * @param sourceKey  - encryption key of the source database
+     * @param where      - condition on the source rows (SQL from the app, not from user input), empty for all
+     * @param params     - parameters of the condition, null for none
+     * @param onConflict - IGNORE or REPLACE, empty to fail on conflicts
+     * @return {rowsAffected}
+     */
+    Map<String, Object> copyTableFrom(String source, String sourceKey, String table, String where,
+                                      StatementParams params, String onConflict) throws Exception
+    {
+        if (this.mydb.inTransaction())
+            throw new IllegalStateException("a transaction is in progress");
+
+        String alias = null;
+        for (Map.Entry<String, Attachment> entry : this.attachments.entrySet())
+        {
+            if (entry.getValue().dbname.equals(source))
+                alias = entry.getKey();
+        }
+        boolean attachedHere = (alias == null);
+        if (attachedHere)
+        {
+            alias = COPY_SOURCE_ALIAS;
+            attach(alias, source, sourceKey);
+        }
+
+        String quoted = "\"" + table.replace("\"", "\"\"") + "\"";
+        SQLiteStatement statement = null;
+        int rowsAffected;
+        try
+        {
+            this.mydb.rawExecSQL("SAVEPOINT copy_table");
+            try
+            {
+                statement = this.mydb.compileStatement(
+                        "SELECT count(*) FROM main.sqlite_master WHERE type = 'table' AND name = ?");
+                statement.bindString(1, table);
+                boolean exists = statement.simpleQueryForLong() > 0;
+                DBManager.closeQuietly(statement);
+                statement = null;
+                if (!exists)
+                {
+                    statement = this.mydb.compileStatement(
+                            "SELECT coalesce(max(sql), '') FROM " + alias + ".sqlite_master WHERE type = 'table' AND name = ?");
+                    statement.bindString(1, table);
+                    String createSql = statement.simpleQueryForString();
+                    DBManager.closeQuietly(statement);
+                    statement = null;
+                    if (createSql.length() == 0)
+                        throw new IllegalArgumentException("no such table: " + source + "." + table);
+                    this.mydb.rawExecSQL(createSql);
+                }
+
+                statement = this.mydb.compileStatement("INSERT" + (onConflict.length() > 0 ? " OR " + onConflict : "") +
+                        " INTO main." + quoted + " SELECT * FROM " + alias + "." + quoted +
+                        (where.length() > 0 ? " WHERE " + where : ""));
+                if (params != null)
+                    params.bind(statement);
+                rowsAffected = statement.executeUpdateDelete();
+                this.mydb.rawExecSQL("RELEASE copy_table");
+            } catch (Exception e)
+            {
+                this.mydb.rawExecSQL("ROLLBACK TO copy_table");
+                this.mydb.rawExecSQL("RELEASE copy_table");
+                throw e;
+            }
+        } finally
+        {
+            DBManager.closeQuietly(statement);
+            if (attachedHere)
+            {
+                try
+                {
+                    this.mydb.rawExecSQL("DETACH DATABASE " + alias);
+                } catch (Exception e)
+                {
+                    FLog.w(TAG, "couldn't detach " + source, e);
+                }
+            }
+        }
+
+        this.writeCount++;
+        metrics.increment("tableCopies");
+
+        Map<String, Object> result = new HashMap<String, Object>();
+        result.put("rowsAffected", (double) rowsAffected);
+        return result;
+    }
+
+    private void runTask(DBQuery dbq)
+    {
+        try
+        {
+            dbq.task.run(this, dbq.cbc);
+        } catch (Exception e)
+        {
+            FLog.e(TAG, "SQLitePlugin task failed", e);
+            if (dbq.cbc != null)
+                dbq.cbc.error(e.getMessage());
+        }
+    }
+
+    /**
+     * Re-evaluate all the live queries, after a task that may have written any table.
+     */
+    private void refreshAllLiveQueries()
+    {
+        for (LiveQuery liveQuery : this.liveQueries.values())
+        {
+            this.dirtyTables.addAll(liveQuery.tables);
+        }
+        refreshLiveQueries(new String[0]);
+    }
+
+    /**
+     * Add the tables written by the triggers of the dirty tables to them, transitively.
+     */
+    private void addTriggeredTables()
+    {
+        Map<String, Set<String>> triggered = new HashMap<String, Set<String>>();
+        Cursor cur = null;
+        try
+        {
+            cur = BatchExecutor.rawQuery(this.mydb, "SELECT tbl_name, sql FROM sqlite_master WHERE type = 'trigger' AND sql IS NOT NULL",
+                    new String[0]);
+            while (cur.moveToNext())
+            {
+                String table = cur.getString(0).toLowerCase();
+                if (!triggered.containsKey(table))
+                    triggered.put(table, new HashSet<String>());
+                triggered.get(table).addAll(LiveQuery.getTriggerWrittenTables(cur.getString(1)));
+            }
+        } finally
+        {
+            DBManager.closeQuietly(cur);
+        }
+
+        List<String> pending = new ArrayList<String>(this.dirtyTables);
+        while (!pending.isEmpty())
+        {
+            Set<String> written = triggered.get(pending.remove(pending.size() - 1));
+            if (written == null)
+                continue;
+            for (String table : written)
+            {
+                if (this.dirtyTables.add(table))
+                    pending.add(table);
+            }
+        }
+    }
+
+    /**
+     * Re-evaluate the live queries that depend on the tables written by a batch (or by the
+     * triggers it fired), once no transaction is open anymore, and send the diffs to JS.
+     *
+     * @param queries - the queries of the batch just executed
+     */
+    private void refreshLiveQueries(String[] queries)
+    {
+        if (this.liveQueries.isEmpty())
+            return;
+
+        for (String query : queries)
+        {
+            String table = LiveQuery.getWrittenTable(query);
+            if (table != null)
+                this.dirtyTables.add(table);
+        }
+
+        if (this.dirtyTables.isEmpty() || this.mydb == null || this.mydb.inTransaction())
+            return;
+        addTriggeredTables();
+
+        for (LiveQuery liveQuery : this.liveQueries.values())
+        {
+            if (!liveQuery.dependsOn(this.dirtyTables))
+                continue;
+
+            try
+            {
+                Map<String, Object> diff = liveQuery.refresh(this.mydb);
+                if (diff != null)
+                {
+                    diff.put("dbname", this.dbname);
+                    this.manager.sendEvent(DBManager.LIVE_QUERY_EVENT, diff);
+                }
+            } catch (Exception e)
+            {
+                FLog.e(TAG, "couldn't refresh live query " + liveQuery.id, e);
+                Map<String, Object> failure = new HashMap<String, Object>();
+                failure.put("id", liveQuery.id);
+                failure.put("dbname", this.dbname);
+                failure.put("error", e.getMessage());
+                this.manager.sendEvent(DBManager.LIVE_QUERY_EVENT, failure);
+            }
+        }
+        this.dirtyTables.clear();
+    }
+
+    /**
+     * Check that registered queries compile, dropping those that don't.
+     *
+     * @param registered - SQL by name
+     * @return why each query that doesn't compile was dropped, empty if none
+     */
+    List<String> compileQueries(Map<String, String> registered)
+    {
+        List<String> errors = new ArrayList<String>();
+        for (Map.Entry<String, String> query : registered.entrySet())
+        {
+            SQLiteStatement statement = null;
+            try
+            {
+                // (also leaves it in the compiled statement cache of the connection)
+                statement = this.mydb.compileStatement(query.getValue());
+            } catch (SQLiteException e)
+            {
+                unregisterQuery(query.getKey(), query.getValue());
+                errors.add(query.getKey() + ": " + e.getMessage());
+            } finally
+            {
+                DBManager.closeQuietly(statement);
+            }
+        }
+        return errors;
+    }
+
+    /**
+     * Evaluate a live query and register it; it is registered only once evaluated, so that an invalid
+     * query is not kept.
+     *
+     * @return its initial rows, as inserted rows
+     */
+    Map<String, Object> addLiveQuery(LiveQuery liveQuery)
+    {
+        Map<String, Object> initial = liveQuery.refresh(this.mydb);
+        this.liveQueries.put(liveQuery.id, liveQuery);
+        if (initial == null)
+        {
+            // empty result
+            initial = new HashMap<String, Object>();
+            initial.put("id", liveQuery.id);
+            initial.put("inserted", new ArrayList<Object>());
+            initial.put("changed", new ArrayList<Object>());
+            initial.put("removed", new ArrayList<Object>());
+        }
+        return initial;
+    }
+
+    /**
+     * Storage engine statistics of an open database, from its pragmas and files.
+     *
+     * @return page and cache settings, freelist, journal, file sizes, native heap usage and metrics
+     */
+    Map<String, Object> getEngineStats()
+    {
+        SQLiteDatabase mydb = this.mydb;
+        Map<String, Object> stats = new HashMap<String, Object>();
+
+        long pageSize = pragmaLong(mydb, "page_size");
+        long pageCount = pragmaLong(mydb, "page_count");
+        long freelistCount = pragmaLong(mydb, "freelist_count");
+        stats.put("pageSize", (double) pageSize);
+        stats.put("pageCount", (double) pageCount);
+        stats.put("freelistCount", (double) freelistCount);
+        // share of the file that VACUUM would reclaim:
+        stats.put("freelistRatio", pageCount > 0 ? (double) freelistCount / pageCount : 0.0);
+        // a negative cache_size is in KiB rather than pages:
+        long cacheSize = pragmaLong(mydb, "cache_size");
+        stats.put("cacheSize", (double) cacheSize);
+        stats.put("cacheBytes", (double) (cacheSize < 0 ? -cacheSize * 1024 : cacheSize * pageSize));
+        stats.put("cacheSpill", (double) pragmaLong(mydb, "cache_spill"));
+        stats.put("journalMode", pragmaString(mydb, "journal_mode"));
+        stats.put("walAutocheckpoint", (double) pragmaLong(mydb, "wal_autocheckpoint"));
+        stats.put("cipherVersion", pragmaString(mydb, "cipher_version"));
+
+        File dbfile = this.manager.getContext().getDatabasePath(this.dbname);
+        stats.put("fileSize", (double) dbfile.length());
+        stats.put("walSize", (double) new File(dbfile.getPath() + "-wal").length());
+        stats.put("shmSize", (double) new File(dbfile.getPath() + "-shm").length());
+
+        // SQLite allocates from the native heap (shared by all databases of the process):
+        stats.put("nativeHeapAllocated", (double) Debug.getNativeHeapAllocatedSize());
+        stats.put("nativeHeapSize", (double) Debug.getNativeHeapSize());
+        stats.put("metrics", this.metrics.toMap());
+        return stats;
+    }
+
+    private static long pragmaLong(SQLiteDatabase mydb, String pragma)
+    {
+        SQLiteStatement statement = mydb.compileStatement("PRAGMA " + pragma);
+        try
+        {
+            return statement.simpleQueryForLong();
+        } finally
+        {
+            DBManager.closeQuietly(statement);
+        }
+    }
+
+    private static String pragmaString(SQLiteDatabase mydb, String pragma)
+    {
+        SQLiteStatement statement = mydb.compileStatement("PRAGMA " + pragma);
+        try
+        {
+            return statement.simpleQueryForString();
+        } finally
+        {
+            DBManager.closeQuietly(statement);
+        }
+    }
+
+    /**
+     * Database attached to the connection of a runner
+     */
+    private static final class Attachment
+    {
+        final String dbname;
+        final String key;
+
+        Attachment(String dbname, String key)
+        {
+            this.dbname = dbname;
+            this.key = key;
+        }
+    }
+}
@@ -0,0 +1,21 @@
+/**
+ * Copyright (c) 2020, Axsy
+ */
+
+package com.axsy;
+
+/**
+ * Work to be executed in the db thread of a runner
+ */
+abstract class DBTask
+{
+    abstract void run(DBRunner r, CallbackContext cbc) throws Exception;
+
+    /**
+     * @return whether the task only reads the database (tasks are taken as writing unless they say so)
+     */
+    boolean isReadOnly()
+    {
+        return false;
+    }
+}
@@ -0,0 +1,94 @@
+/**
+ * Copyright (c) 2020, Axsy
+ */
+
+package com.axsy;
+
+import android.database.Cursor;
+
+import net.sqlcipher.database.SQLiteDatabase;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Export of the results of a query to a file, streamed without building them in memory.
+ */
+final class Export extends DBTask
+{
+    final String query;
+    final StatementParams params;
+    final File file;
+    final String format;
+    final boolean gzip;
+
+    /**
+     * @param query  - SQL query to execute
+     * @param params - parameters to the query, null for none
+     * @param file   - file to write
+     * @param format - "ndjson" or "csv"
+     * @param gzip   - whether to gzip the file
+     */
+    Export(String query, StatementParams params, File file, String format, boolean gzip)
+    {
+        this.query = query;
+        this.params = params;
+        this.file = file;
+        this.format = format;
+        this.gzip = gzip;
+    }
+
+    void run(DBRunner r, CallbackContext cbc) throws Exception
+    {
+        Map<String, Object> result = export(r.mydb);
+        r.metrics.increment("exports");
+        cbc.success(result);
+    }
+
+    boolean isReadOnly()
+    {
+        return true;
+    }
+
+    /**
+     * @return the path of the file, the number of rows and bytes written
+     */
+    private Map<String, Object> export(SQLiteDatabase mydb) throws Exception
+    {
+        File file = this.file;
+        Cursor cur = null;
+        ExportWriter writer = null;
+        long rows = 0;
+        try
+        {
+            file.getAbsoluteFile().getParentFile().mkdirs();
+            writer = ExportWriter.create(file, this.format, this.gzip);
+            cur = BatchExecutor.rawQuery(mydb, this.query, (this.params != null) ? this.params.toArray() : new Object[0]);
+            writer.writeHeader(cur.getColumnNames());
+            while (cur.moveToNext())
+            {
+                writer.writeRow(cur);
+                rows++;
+            }
+            writer.close();
+            writer = null;
+        } catch (Exception e)
+        {
+            DBManager.closeQuietly(writer);
+            writer = null;
+            file.delete();
+            throw e;
+        } finally
+        {
+            DBManager.closeQuietly(cur);
+            DBManager.closeQuietly(writer);
+        }
+
+        Map<String, Object> result = new HashMap<String, Object>();
+        result.put("path", file.getAbsolutePath());
+        result.put("rows", (double) rows);
+        result.put("bytes", (double) file.length());
+        return result;
+    }
+}
@@ -0,0 +1,163 @@
+/**
+ * Copyright (c) 2020, Axsy
+ */
+
+package com.axsy;
+
+import android.database.Cursor;
+import android.util.Base64;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.zip.GZIPOutputStream;
+
+import org.json.JSONObject;
+
+/**
+ * Streaming writer of query results to a file, one cursor row at a time.
+ */
+abstract class ExportWriter implements Closeable
+{
+    protected final Writer writer;
+    protected String[] columns;
+
+    private ExportWriter(File file, boolean gzip) throws IOException
+    {
+        OutputStream out = new FileOutputStream(file);
+        if (gzip)
+            out = new GZIPOutputStream(out, 64 * 1024);
+        this.writer = new BufferedWriter(new OutputStreamWriter(out, "UTF-8"), 64 * 1024);
+    }
+
+    /**
+     * @param file   - file to write
+     * @param format - "ndjson" (one JSON object per row) or "csv" (RFC 4180, with a header line)
+     * @param gzip   - whether to gzip the output
+     */
+    static ExportWriter create(File file, String format, boolean gzip) throws IOException
+    {
+        if ("csv".equalsIgnoreCase(format))
+            return new CsvWriter(file, gzip);
+        if ("ndjson".equalsIgnoreCase(format) || "jsonl".equalsIgnoreCase(format))
+            return new NdjsonWriter(file, gzip);
+        throw new IllegalArgumentException("unsupported export format: " + format);
+    }
+
+    void writeHeader(String[] columns) throws IOException
+    {
+        this.columns = columns;
+    }
+
+    abstract void writeRow(Cursor cur) throws IOException;
+
+    public void close() throws IOException
+    {
+        this.writer.close();
+    }
+
+    /**
+     * @return the value of a column as text; blobs are Base64 encoded
+     */
+    protected static String getText(Cursor cur, int i)
+    {
+        if (cur.getType(i) == Cursor.FIELD_TYPE_BLOB)
+            return Base64.encodeToString(cur.getBlob(i), Base64.NO_WRAP);
+        return cur.getString(i);
+    }
+
+    private static final class NdjsonWriter extends ExportWriter
+    {
+        NdjsonWriter(File file, boolean gzip) throws IOException
+        {
+            super(file, gzip);
+        }
+
+        void writeRow(Cursor cur) throws IOException
+        {
+            this.writer.write('{');
+            for (int i = 0; i < this.columns.length; i++)
+            {
+                if (i > 0)
+                    this.writer.write(',');
+                this.writer.write(JSONObject.quote(this.columns[i]));
+                this.writer.write(':');
+                switch (cur.getType(i))
+                {
+                    case Cursor.FIELD_TYPE_NULL:
+                        this.writer.write("null");
+                        break;
+                    case Cursor.FIELD_TYPE_INTEGER:
+                        this.writer.write(Long.toString(cur.getLong(i)));
+                        break;
+                    case Cursor.FIELD_TYPE_FLOAT:
+                        double value = cur.getDouble(i);
+                        // JSON has no representation for NaN and infinity
+                        this.writer.write(Double.isNaN(value) || Double.isInfinite(value) ? "null" : Double.toString(value));
+                        break;
+                    default:
+                        this.writer.write(JSONObject.quote(getText(cur, i)));
+                        break;
+                }
+            }
+            this.writer.write("}\n");
+        }
+    }
+
+    private static final class CsvWriter extends ExportWriter
+    {
+        CsvWriter(File file, boolean gzip) throws IOException
+        {
+            super(file, gzip);
+        }
+
+        void writeHeader(String[] columns) throws IOException
+        {
+            super.writeHeader(columns);
+            for (int i = 0; i < columns.length; i++)
+            {
+                if (i > 0)
+                    this.writer.write(',');
+                writeField(columns[i]);
+            }
+            this.writer.write("\r\n");
+        }
+
+        void writeRow(Cursor cur) throws IOException
+        {
+            for (int i = 0; i < this.columns.length; i++)
+            {
+                if (i > 0)
+                    this.writer.write(',');
+                // NULL is written as an empty field
+                if (cur.getType(i) != Cursor.FIELD_TYPE_NULL)
+                    writeField(getText(cur, i));
+            }
+            this.writer.write("\r\n");
+        }
+
+        private void writeField(String value) throws IOException
+        {
+            // an empty string is quoted, to tell it from NULL
+            boolean quote = (value.length() == 0);
+            for (int i = 0; i < value.length() && !quote; i++)
+            {
+                char c = value.charAt(i);
+                quote = (c == ',' || c == '"' || c == '\n' || c == '\r');
+            }
+            if (!quote)
+            {
+                this.writer.write(value);
+                return;
+            }
+            this.writer.write('"');
+            this.writer.write(value.replace("\"", "\"\""));
+            this.writer.write('"');
+        }
+    }
+}
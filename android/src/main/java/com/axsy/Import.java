@@ -0,0 +1,260 @@
+/**
+ * Copyright (c) 2020, Axsy
+ */
+
+package com.axsy;
+
+import android.database.Cursor;
+
+import net.sqlcipher.database.SQLiteStatement;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.facebook.common.logging.FLog;
+
+/**
+ * Bulk import of a CSV or NDJSON file into a table. The file is parsed natively and its rows bound
+ * to a compiled INSERT, in chunks of rows each committed in its own transaction and queued behind
+ * the work waiting in the runner. Indexes of the table can be dropped during the import and
+ * re-created at the end.
+ *
+ * NOTE: the import is not atomic, chunks committed before a failure are kept.
+ */
+final class Import extends DBTask
+{
+    private static final String TAG = SQLitePlugin.TAG;
+
+    final String dbname;
+    final String table;
+    final File file;
+    final String format;
+    final String[] mappedColumns;
+    final String[] mappedFields;
+    final int chunkSize;
+    final boolean deferIndexes;
+    final String conflict;
+    final CallbackContext cbc;
+
+    private ImportReader reader;
+    private String[] fields;
+    private String insertSql;
+    private List<String> droppedIndexes = new ArrayList<String>();
+    private long rows = 0;
+    private long startTime;
+
+    /**
+     * @param columnMap - column name -> field name in the file, null to map the fields to the columns of the same name
+     * @param options   - chunkSize, deferIndexes, onConflict ("replace" or "ignore")
+     */
+    Import(String dbname, String table, File file, String format, Map<String, Object> columnMap,
+           Map<String, Object> options, CallbackContext cbc)
+    {
+        this.dbname = dbname;
+        this.table = table;
+        this.file = file;
+        this.format = format;
+
+        if (columnMap != null)
+        {
+            List<String> columns = new ArrayList<String>();
+            List<String> fields = new ArrayList<String>();
+            for (String column : columnMap.keySet())
+            {
+                columns.add(column);
+                fields.add(SQLitePluginConverter.getString(columnMap, column, column));
+            }
+            this.mappedColumns = columns.toArray(new String[columns.size()]);
+            this.mappedFields = fields.toArray(new String[fields.size()]);
+        } else
+        {
+            this.mappedColumns = null;
+            this.mappedFields = null;
+        }
+
+        this.chunkSize = Math.max(Integer.parseInt(SQLitePluginConverter.getString(options, "chunkSize", "5000")), 1);
+        this.deferIndexes = SQLitePluginConverter.getBoolean(options, "deferIndexes", false);
+        String onConflict = SQLitePluginConverter.getString(options, "onConflict", null);
+        this.conflict = ("replace".equalsIgnoreCase(onConflict) || "ignore".equalsIgnoreCase(onConflict)) ?
+                " OR " + onConflict.toUpperCase() : "";
+        this.cbc = cbc;
+    }
+
+    public void run(DBRunner r, CallbackContext unused) throws Exception
+    {
+        try
+        {
+            // never mix the import with a transaction in progress:
+            if (r.mydb.inTransaction())
+            {
+                r.park(new DBQuery(this, null));
+                return;
+            }
+
+            if (this.reader == null)
+                start(r);
+
+            boolean done = importChunk(r);
+            r.writeCount++;
+            r.metrics.increment("importChunks");
+            sendImportProgress(r, done ? 1 : (double) this.reader.getBytesRead() / Math.max(this.reader.getLength(), 1));
+
+            if (!done)
+            {
+                // let queued work run before the next chunk:
+                r.q.put(new DBQuery(this, null));
+                return;
+            }
+
+            finish(r);
+        } catch (Exception e)
+        {
+            FLog.e(TAG, "couldn't import file", e);
+            cleanup(r);
+            cbc.error("couldn't import file: " + e.getMessage() + " (" + this.rows + " rows imported)");
+        }
+    }
+
+    private void start(DBRunner r) throws Exception
+    {
+        this.startTime = System.currentTimeMillis();
+        this.reader = ImportReader.create(this.file, this.format);
+
+        String[] columns = this.mappedColumns;
+        this.fields = this.mappedFields;
+        if (columns == null)
+        {
+            this.fields = this.reader.getFieldNames();
+            columns = this.fields;
+        }
+        if (columns.length == 0)
+            throw new IllegalArgumentException("no columns to import");
+
+        StringBuilder sql = new StringBuilder("INSERT").append(this.conflict)
+                .append(" INTO ").append(DBManager.quoteIdentifier(this.table)).append(" (");
+        for (int i = 0; i < columns.length; i++)
+        {
+            sql.append(i == 0 ? "" : ",").append(DBManager.quoteIdentifier(columns[i]));
+        }
+        sql.append(") VALUES (");
+        for (int i = 0; i < columns.length; i++)
+        {
+            sql.append(i == 0 ? "?" : ",?");
+        }
+        this.insertSql = sql.append(")").toString();
+
+        if (this.deferIndexes)
+        {
+            Cursor cur = BatchExecutor.rawQuery(r.mydb, "SELECT name, sql FROM sqlite_master WHERE type = 'index' AND tbl_name = ? AND sql IS NOT NULL",
+                    new String[]{this.table});
+            try
+            {
+                while (cur != null && cur.moveToNext())
+                {
+                    r.mydb.execSQL("DROP INDEX " + DBManager.quoteIdentifier(cur.getString(0)));
+                    this.droppedIndexes.add(cur.getString(1));
+                }
+            } finally
+            {
+                DBManager.closeQuietly(cur);
+            }
+        }
+    }
+
+    /**
+     * @return true once the end of the file is reached
+     */
+    private boolean importChunk(DBRunner r) throws Exception
+    {
+        boolean done = false;
+        int chunkRows = 0;
+        SQLiteStatement insert = r.mydb.compileStatement(this.insertSql);
+        r.mydb.beginTransaction();
+        try
+        {
+            for (int n = 0; n < this.chunkSize; n++)
+            {
+                Object[] values = this.reader.next(this.fields);
+                if (values == null)
+                {
+                    done = true;
+                    break;
+                }
+
+                insert.clearBindings();
+                for (int i = 0; i < values.length; i++)
+                {
+                    Object value = values[i];
+                    if (value == null)
+                        insert.bindNull(i + 1);
+                    else if (value instanceof Long)
+                        insert.bindLong(i + 1, (Long) value);
+                    else if (value instanceof Double)
+                        insert.bindDouble(i + 1, (Double) value);
+                    else
+                        insert.bindString(i + 1, value.toString());
+                }
+                insert.executeInsert();
+                chunkRows++;
+            }
+            r.mydb.setTransactionSuccessful();
+            this.rows += chunkRows;
+        } finally
+        {
+            r.mydb.endTransaction();
+            DBManager.closeQuietly(insert);
+        }
+        return done;
+    }
+
+    private void finish(DBRunner r) throws Exception
+    {
+        long bytes = this.reader.getLength();
+        cleanup(r);
+
+        long millis = Math.max(System.currentTimeMillis() - this.startTime, 1);
+        r.metrics.increment("imports");
+        r.metrics.add("importedRows", this.rows);
+
+        Map<String, Object> result = new HashMap<String, Object>();
+        result.put("rows", (double) this.rows);
+        result.put("bytes", (double) bytes);
+        result.put("millis", (double) millis);
+        result.put("rowsPerSecond", this.rows * 1000.0 / millis);
+        cbc.success(result);
+    }
+
+    private void cleanup(DBRunner r)
+    {
+        DBManager.closeQuietly(this.reader);
+        this.reader = null;
+
+        for (String indexSql : this.droppedIndexes)
+        {
+            try
+            {
+                r.mydb.execSQL(indexSql);
+            } catch (Exception e)
+            {
+                FLog.e(TAG, "couldn't re-create index: " + indexSql, e);
+            }
+        }
+        this.droppedIndexes.clear();
+    }
+
+    private void sendImportProgress(DBRunner r, double progress)
+    {
+        long millis = Math.max(System.currentTimeMillis() - this.startTime, 1);
+        Map<String, Object> params = new HashMap<String, Object>();
+        params.put("dbname", this.dbname);
+        params.put("table", this.table);
+        params.put("phase", "import");
+        params.put("progress", progress);
+        params.put("rows", (double) this.rows);
+        params.put("rowsPerSecond", this.rows * 1000.0 / millis);
+        r.manager.sendEvent(DBManager.IMPORT_PROGRESS_EVENT, params);
+    }
+}
@@ -0,0 +1,292 @@
+/**
+ * Copyright (c) 2020, Axsy
+ */
+
+package com.axsy;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Streaming reader of the rows of an import file, one row at a time.
+ *
+ * Values are returned as Long, Double, String or null, ready to be bound to a statement.
+ */
+abstract class ImportReader implements Closeable
+{
+    protected final FileInputStream in;
+    protected final BufferedReader reader;
+
+    private ImportReader(File file) throws IOException
+    {
+        this.in = new FileInputStream(file);
+        this.reader = new BufferedReader(new InputStreamReader(this.in, "UTF-8"), 64 * 1024);
+
+        // skip the UTF-8 byte order mark written by some spreadsheet applications:
+        this.reader.mark(1);
+        if (this.reader.read() != '\uFEFF')
+            this.reader.reset();
+    }
+
+    /**
+     * @param file   - file to read
+     * @param format - "ndjson" (one JSON object per line) or "csv" (RFC 4180, first line is the header)
+     */
+    static ImportReader create(File file, String format) throws IOException
+    {
+        if ("csv".equalsIgnoreCase(format))
+            return new CsvReader(file);
+        if ("ndjson".equalsIgnoreCase(format) || "jsonl".equalsIgnoreCase(format))
+            return new NdjsonReader(file);
+        throw new IllegalArgumentException("unsupported import format: " + format);
+    }
+
+    /**
+     * @return the names of the fields found at the start of the file
+     */
+    abstract String[] getFieldNames() throws IOException;
+
+    /**
+     * @param fields - names of the fields to read
+     * @return values of the fields in the next row, null at end of file
+     */
+    abstract Object[] next(String[] fields) throws IOException;
+
+    /**
+     * @return number of bytes consumed so far (approximate, input is buffered)
+     */
+    long getBytesRead() throws IOException
+    {
+        return this.in.getChannel().position();
+    }
+
+    long getLength() throws IOException
+    {
+        FileChannel channel = this.in.getChannel();
+        return channel.size();
+    }
+
+    public void close() throws IOException
+    {
+        this.reader.close();
+    }
+
+    private static final class NdjsonReader extends ImportReader
+    {
+        private JSONObject pending;
+
+        NdjsonReader(File file) throws IOException
+        {
+            super(file);
+        }
+
+        String[] getFieldNames() throws IOException
+        {
+            if (this.pending == null)
+                this.pending = nextObject();
+
+            List<String> names = new ArrayList<String>();
+            if (this.pending != null)
+            {
+                Iterator<String> keys = this.pending.keys();
+                while (keys.hasNext())
+                {
+                    names.add(keys.next());
+                }
+            }
+            return names.toArray(new String[names.size()]);
+        }
+
+        Object[] next(String[] fields) throws IOException
+        {
+            JSONObject object = this.pending;
+            this.pending = null;
+            if (object == null)
+                object = nextObject();
+            if (object == null)
+                return null;
+
+            Object[] values = new Object[fields.length];
+            for (int i = 0; i < fields.length; i++)
+            {
+                values[i] = toBindValue(object.opt(fields[i]));
+            }
+            return values;
+        }
+
+        private JSONObject nextObject() throws IOException
+        {
+            String line;
+            while ((line = this.reader.readLine()) != null)
+            {
+                if (line.trim().length() == 0)
+                    continue;
+                try
+                {
+                    return new JSONObject(line);
+                } catch (JSONException e)
+                {
+                    throw new IOException("invalid NDJSON line: " + e.getMessage());
+                }
+            }
+            return null;
+        }
+
+        private static Object toBindValue(Object value)
+        {
+            if (value == null || value == JSONObject.NULL)
+                return null;
+            if (value instanceof Boolean)
+                return ((Boolean) value) ? 1L : 0L;
+            if (value instanceof Number)
+            {
+                double number = ((Number) value).doubleValue();
+                if (value instanceof Integer || value instanceof Long || number == (long) number)
+                    return ((Number) value).longValue();
+                return number;
+            }
+            // strings, nested objects and arrays (as JSON text)
+            return value.toString();
+        }
+    }
+
+    private static final class CsvReader extends ImportReader
+    {
+        private String[] header;
+
+        CsvReader(File file) throws IOException
+        {
+            super(file);
+        }
+
+        String[] getFieldNames() throws IOException
+        {
+            if (this.header == null)
+            {
+                List<String> names = nextRecord();
+                if (names == null)
+                    throw new IOException("empty CSV file");
+                this.header = new String[names.size()];
+                for (int i = 0; i < this.header.length; i++)
+                {
+                    String name = names.get(i);
+                    this.header[i] = (name == null) ? "" : name;
+                }
+            }
+            return this.header;
+        }
+
+        Object[] next(String[] fields) throws IOException
+        {
+            String[] names = getFieldNames();
+            List<String> record = nextRecord();
+            if (record == null)
+                return null;
+
+            Object[] values = new Object[fields.length];
+            for (int i = 0; i < fields.length; i++)
+            {
+                int index = indexOf(names, fields[i]);
+                values[i] = (index >= 0 && index < record.size()) ? record.get(index) : null;
+            }
+            return values;
+        }
+
+        private static int indexOf(String[] names, String name)
+        {
+            for (int i = 0; i < names.length; i++)
+            {
+                if (names[i].equals(name))
+                    return i;
+            }
+            return -1;
+        }
+
+        /**
+         * @return the fields of the next record (which may span several lines when quoted), null at end of file;
+         * empty fields are returned as null, unless quoted ("")
+         */
+        private List<String> nextRecord() throws IOException
+        {
+            String line = this.reader.readLine();
+            while (line != null && line.length() == 0)
+            {
+                line = this.reader.readLine();
+            }
+            if (line == null)
+                return null;
+
+            List<String> record = new ArrayList<String>();
+            StringBuilder field = new StringBuilder();
+            boolean quoted = false;
+            boolean wasQuoted = false;
+            int i = 0;
+            while (true)
+            {
+                if (i == line.length())
+                {
+                    if (quoted)
+                    {
+                        // quoted field continues on the next line:
+                        String more = this.reader.readLine();
+                        if (more == null)
+                            throw new IOException("unterminated quoted CSV field");
+                        field.append('\n');
+                        line = more;
+                        i = 0;
+                        continue;
+                    }
+                    record.add(toValue(field, wasQuoted));
+                    return record;
+                }
+
+                char c = line.charAt(i++);
+                if (quoted)
+                {
+                    if (c == '"')
+                    {
+                        if (i < line.length() && line.charAt(i) == '"')
+                        {
+                            field.append('"');
+                            i++;
+                        } else
+                        {
+                            quoted = false;
+                        }
+                    } else
+                    {
+                        field.append(c);
+                    }
+                } else if (c == '"')
+                {
+                    quoted = true;
+                    wasQuoted = true;
+                } else if (c == ',')
+                {
+                    record.add(toValue(field, wasQuoted));
+                    field.setLength(0);
+                    wasQuoted = false;
+                } else
+                {
+                    field.append(c);
+                }
+            }
+        }
+
+        private static String toValue(StringBuilder field, boolean quoted)
+        {
+            return (field.length() == 0 && !quoted) ? null : field.toString();
+        }
+    }
+}
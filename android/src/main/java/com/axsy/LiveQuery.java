@@ -0,0 +1,264 @@
+/**
+ * Copyright (c) 2020, Axsy
+ */
+
+package com.axsy;
+
+import android.database.Cursor;
+import android.util.Base64;
+
+import net.sqlcipher.database.SQLiteDatabase;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * A read query registered as "live" on a database runner.
+ *
+ * The runner re-evaluates the query when one of the tables it depends on is written,
+ * and only the rows inserted, removed or changed since the last evaluation (matched
+ * by the declared key column) are sent back to JS.
+ *
+ * NOTE: only accessed from the db thread of the owning runner.
+ */
+final class LiveQuery
+{
+    /**
+     * Table name, optionally quoted and qualified by a (quoted) schema name: the name is the group
+     */
+    private static final String QUALIFIED_NAME = "(?:[\"`\\[]?\\w+[\"`\\]]?\\s*\\.\\s*)?[\"`\\[]?(\\w+)";
+
+    private static final Pattern SOURCE_TABLE = Pattern.compile(
+            "\\b(?:FROM|JOIN)\\s+" + QUALIFIED_NAME,
+            Pattern.CASE_INSENSITIVE);
+
+    private static final String WRITE =
+            "(?:(?:INSERT|REPLACE)(?:\\s+OR\\s+\\w+)?\\s+INTO|UPDATE(?:\\s+OR\\s+\\w+)?|DELETE\\s+FROM)" +
+                    "\\s+" + QUALIFIED_NAME;
+
+    private static final Pattern WRITTEN_TABLE = Pattern.compile("^\\s*" + WRITE, Pattern.CASE_INSENSITIVE);
+
+    private static final Pattern BODY_WRITTEN_TABLE = Pattern.compile("\\b" + WRITE, Pattern.CASE_INSENSITIVE);
+
+    private static final Pattern TRIGGER_BODY = Pattern.compile("\\bBEGIN\\b", Pattern.CASE_INSENSITIVE);
+
+    final String id;
+    final String sql;
+    final StatementParams params;
+    final String keyColumn;
+    final Set<String> tables;
+
+    /**
+     * Last evaluated result: key column value (Long, Double, String or null, as read) -> row values
+     */
+    private Map<Object, Object[]> snapshot = new HashMap<Object, Object[]>();
+
+    /**
+     * @param params - parameters of the query, null for none
+     * @param tables - names of the tables the query depends on, null or empty to find them in the query
+     */
+    LiveQuery(String id, String sql, StatementParams params, String keyColumn, List<?> tables)
+    {
+        this.id = id;
+        this.sql = sql;
+        this.params = params;
+        this.keyColumn = keyColumn;
+        this.tables = new HashSet<String>();
+
+        if (tables != null && !tables.isEmpty())
+        {
+            for (Object table : tables)
+            {
+                this.tables.add(String.valueOf(table).toLowerCase());
+            }
+        } else
+        {
+            Matcher matcher = SOURCE_TABLE.matcher(sql);
+            while (matcher.find())
+            {
+                this.tables.add(matcher.group(1).toLowerCase());
+            }
+        }
+    }
+
+    /**
+     * @param sql - SQL statement
+     * @return the (lower case) name of the table written by an INSERT, REPLACE, UPDATE or DELETE statement,
+     * null for any other statement
+     */
+    static String getWrittenTable(String sql)
+    {
+        Matcher matcher = WRITTEN_TABLE.matcher(sql);
+        return matcher.find() ? matcher.group(1).toLowerCase() : null;
+    }
+
+    /**
+     * @param triggerSql - CREATE TRIGGER statement
+     * @return the (lower case) names of the tables written by the statements of the trigger
+     */
+    static Set<String> getTriggerWrittenTables(String triggerSql)
+    {
+        Set<String> tables = new HashSet<String>();
+        Matcher body = TRIGGER_BODY.matcher(triggerSql);
+        if (!body.find())
+            return tables;
+
+        Matcher matcher = BODY_WRITTEN_TABLE.matcher(triggerSql);
+        matcher.region(body.end(), triggerSql.length());
+        while (matcher.find())
+        {
+            tables.add(matcher.group(1).toLowerCase());
+        }
+        return tables;
+    }
+
+    /**
+     * @param dirtyTables - (lower case) names of the tables written since the last evaluation
+     * @return whether this query reads any of the given tables
+     */
+    boolean dependsOn(Set<String> dirtyTables)
+    {
+        for (String table : dirtyTables)
+        {
+            if (this.tables.contains(table))
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Re-evaluate the query and diff it against the previous result.
+     *
+     * @param mydb - database
+     * @return map with the inserted, changed and removed rows, null if the result did not change
+     */
+    Map<String, Object> refresh(SQLiteDatabase mydb)
+    {
+        String[] columns = null;
+        List<Object[]> rows = new ArrayList<Object[]>();
+
+        Cursor cur = null;
+        try
+        {
+            cur = BatchExecutor.rawQuery(mydb, this.sql, (this.params != null) ? this.params.toArray() : new Object[0]);
+            if (cur != null && cur.moveToFirst())
+            {
+                int colCount = cur.getColumnCount();
+                columns = new String[colCount];
+                for (int i = 0; i < colCount; ++i)
+                {
+                    columns[i] = cur.getColumnName(i);
+                }
+
+                do
+                {
+                    Object[] values = new Object[colCount];
+                    for (int i = 0; i < colCount; ++i)
+                    {
+                        values[i] = readColumn(cur, i);
+                    }
+                    rows.add(values);
+                } while (cur.moveToNext());
+            }
+        } finally
+        {
+            if (cur != null)
+                cur.close();
+        }
+
+        return update(columns, rows);
+    }
+
+    /**
+     * Diff a result against the previous one, which it then replaces.
+     *
+     * @param columns - column names of the result, null if it has no rows
+     * @param rows    - values of the rows (Long, Double, String or null)
+     * @return {id, inserted: [row], changed: [row], removed: [key value]}, null if the result did not change
+     * @throws IllegalArgumentException if the key column is not in the result or its values are not unique
+     * (the previous result is kept)
+     */
+    Map<String, Object> update(String[] columns, List<Object[]> rows)
+    {
+        // (keyed by the values themselves, so that integer 5 and text '5', or NULL and text 'null', stay apart)
+        Map<Object, Object[]> current = new LinkedHashMap<Object, Object[]>();
+        if (!rows.isEmpty())
+        {
+            int keyIndex = Arrays.asList(columns).indexOf(this.keyColumn);
+            if (keyIndex < 0)
+                throw new IllegalArgumentException("key column not in result: " + this.keyColumn);
+
+            for (Object[] values : rows)
+            {
+                Object key = values[keyIndex];
+                if (current.containsKey(key))
+                    throw new IllegalArgumentException("duplicate key in result: " + key);
+                current.put(key, values);
+            }
+        }
+
+        List<Object> inserted = new ArrayList<Object>();
+        List<Object> changed = new ArrayList<Object>();
+        List<Object> removed = new ArrayList<Object>();
+
+        for (Map.Entry<Object, Object[]> entry : current.entrySet())
+        {
+            Object[] previous = this.snapshot.remove(entry.getKey());
+            if (previous == null)
+                inserted.add(toRow(columns, entry.getValue()));
+            else if (!Arrays.equals(previous, entry.getValue()))
+                changed.add(toRow(columns, entry.getValue()));
+        }
+
+        // whatever is left of the previous result is gone:
+        removed.addAll(this.snapshot.keySet());
+
+        this.snapshot = current;
+
+        if (inserted.isEmpty() && changed.isEmpty() && removed.isEmpty())
+            return null;
+
+        Map<String, Object> diff = new HashMap<String, Object>();
+        diff.put("id", this.id);
+        diff.put("inserted", inserted);
+        diff.put("changed", changed);
+        diff.put("removed", removed);
+        return diff;
+    }
+
+    private static Object readColumn(Cursor cur, int i)
+    {
+        switch (cur.getType(i))
+        {
+            case Cursor.FIELD_TYPE_NULL:
+                return null;
+            case Cursor.FIELD_TYPE_INTEGER:
+                return cur.getLong(i);
+            case Cursor.FIELD_TYPE_FLOAT:
+                return cur.getDouble(i);
+            case Cursor.FIELD_TYPE_BLOB:
+                return new String(Base64.encode(cur.getBlob(i), Base64.DEFAULT));
+            case Cursor.FIELD_TYPE_STRING:
+            default: /* (not expected) */
+                return cur.getString(i);
+        }
+    }
+
+    private static Map<String, Object> toRow(String[] columns, Object[] values)
+    {
+        Map<String, Object> row = new LinkedHashMap<String, Object>();
+        for (int i = 0; i < columns.length; ++i)
+        {
+            row.put(columns[i], values[i]);
+        }
+        return row;
+    }
+}
@@ -0,0 +1,323 @@
+/**
+ * Copyright (c) 2020, Axsy
+ */
+
+package com.axsy;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Synthetic mixed read/write workload across several databases, driven through a
+ * SQLiteEngine, reporting throughput and latency percentiles.
+ *
+ * Options (all optional):
+ * databases (4), operations (2000), clients (4 concurrent callers), readRatio (0.8),
+ * writeBatchSize (10 rows per write transaction), rows (1000 seeded rows), valueSize (100 chars),
+ * key ("load-test", empty for unencrypted databases).
+ *
+ * The databases (loadtest-N.db) are created before the run and deleted after it.
+ */
+public final class LoadGenerator
+{
+    private static final long TIMEOUT_SECONDS = 60;
+
+    private final SQLiteEngine engine;
+    private final int databases;
+    private final int operations;
+    private final int clients;
+    private final double readRatio;
+    private final int writeBatchSize;
+    private final int rows;
+    private final String value;
+    private final String key;
+
+    public LoadGenerator(SQLiteEngine engine, Map<String, Object> options)
+    {
+        this.engine = engine;
+        this.databases = Math.max(getInt(options, "databases", 4), 1);
+        this.operations = Math.max(getInt(options, "operations", 2000), 1);
+        this.clients = Math.max(getInt(options, "clients", 4), 1);
+        this.readRatio = getDouble(options, "readRatio", 0.8);
+        this.writeBatchSize = Math.max(getInt(options, "writeBatchSize", 10), 1);
+        this.rows = Math.max(getInt(options, "rows", 1000), 1);
+        this.key = (options != null && options.get("key") != null) ? options.get("key").toString() : "load-test";
+
+        char[] chars = new char[Math.max(getInt(options, "valueSize", 100), 0)];
+        Arrays.fill(chars, 'x');
+        this.value = new String(chars);
+    }
+
+    /**
+     * Run the workload. Must not be called from a database thread.
+     *
+     * @return report: operations, reads, writes, errors, elapsedMillis, throughput (operations/s),
+     * and p50/p99/max latencies in ms (overall, reads and writes)
+     */
+    public Map<String, Object> run() throws Exception
+    {
+        String[] dbnames = new String[this.databases];
+        for (int i = 0; i < this.databases; i++)
+        {
+            dbnames[i] = "loadtest-" + i + ".db";
+        }
+
+        try
+        {
+            for (String dbname : dbnames)
+            {
+                setUp(dbname);
+            }
+            return measure(dbnames);
+        } finally
+        {
+            for (String dbname : dbnames)
+            {
+                try
+                {
+                    call(new Request()
+                    {
+                        public void send(String dbname, SQLiteEngine.ResultCallback callback)
+                        {
+                            engine.delete(dbname, callback);
+                        }
+                    }, dbname);
+                } catch (Exception ignore)
+                {
+                    // (best effort)
+                }
+            }
+        }
+    }
+
+    private void setUp(String dbname) throws Exception
+    {
+        call(new Request()
+        {
+            public void send(String dbname, SQLiteEngine.ResultCallback callback)
+            {
+                engine.open(dbname, key, new HashMap<String, Object>(), callback);
+            }
+        }, dbname);
+
+        List<String> queries = new ArrayList<String>();
+        List<List<Object>> params = new ArrayList<List<Object>>();
+        queries.add("DROP TABLE IF EXISTS load_test");
+        params.add(null);
+        queries.add("CREATE TABLE load_test (id INTEGER PRIMARY KEY, n INTEGER, value TEXT)");
+        params.add(null);
+        queries.add("BEGIN");
+        params.add(null);
+        for (int id = 0; id < this.rows; id++)
+        {
+            queries.add("INSERT INTO load_test (id, n, value) VALUES (?, ?, ?)");
+            params.add(Arrays.<Object>asList(id, 0, this.value));
+        }
+        queries.add("COMMIT");
+        params.add(null);
+        if (countErrors(batch(dbname, queries, params)) > 0)
+            throw new IllegalStateException("couldn't set up " + dbname);
+    }
+
+    private Map<String, Object> measure(final String[] dbnames) throws Exception
+    {
+        final long[] latencies = new long[this.operations];
+        final boolean[] isRead = new boolean[this.operations];
+        final AtomicInteger nextOperation = new AtomicInteger();
+        final AtomicInteger errors = new AtomicInteger();
+
+        ExecutorService executor = Executors.newFixedThreadPool(this.clients);
+        long start = System.nanoTime();
+        try
+        {
+            List<Future<?>> futures = new ArrayList<Future<?>>();
+            for (int c = 0; c < this.clients; c++)
+            {
+                final Random random = new Random(c);
+                futures.add(executor.submit(new Runnable()
+                {
+                    public void run()
+                    {
+                        int op;
+                        while ((op = nextOperation.getAndIncrement()) < operations)
+                        {
+                            String dbname = dbnames[random.nextInt(dbnames.length)];
+                            isRead[op] = random.nextDouble() < readRatio;
+                            long opStart = System.nanoTime();
+                            try
+                            {
+                                List<Object> results = isRead[op] ? read(dbname, random) : write(dbname, random);
+                                errors.addAndGet(countErrors(results));
+                            } catch (Exception e)
+                            {
+                                errors.incrementAndGet();
+                            }
+                            latencies[op] = System.nanoTime() - opStart;
+                        }
+                    }
+                }));
+            }
+            for (Future<?> future : futures)
+            {
+                future.get();
+            }
+        } finally
+        {
+            executor.shutdown();
+        }
+        long elapsed = System.nanoTime() - start;
+
+        List<Long> all = new ArrayList<Long>();
+        List<Long> reads = new ArrayList<Long>();
+        List<Long> writes = new ArrayList<Long>();
+        for (int op = 0; op < this.operations; op++)
+        {
+            all.add(latencies[op]);
+            (isRead[op] ? reads : writes).add(latencies[op]);
+        }
+
+        Map<String, Object> report = new HashMap<String, Object>();
+        report.put("databases", (double) this.databases);
+        report.put("clients", (double) this.clients);
+        report.put("operations", (double) this.operations);
+        report.put("reads", (double) reads.size());
+        report.put("writes", (double) writes.size());
+        report.put("errors", (double) errors.get());
+        report.put("elapsedMillis", elapsed / 1e6);
+        report.put("throughput", this.operations / (elapsed / 1e9));
+        putPercentiles(report, "", all);
+        putPercentiles(report, "read", reads);
+        putPercentiles(report, "write", writes);
+        return report;
+    }
+
+    private List<Object> read(String dbname, Random random) throws Exception
+    {
+        return batch(dbname,
+                Arrays.asList("SELECT id, n, value FROM load_test WHERE id >= ? ORDER BY id LIMIT 20"),
+                Arrays.<List<Object>>asList(Arrays.<Object>asList(random.nextInt(this.rows))));
+    }
+
+    private List<Object> write(String dbname, Random random) throws Exception
+    {
+        List<String> queries = new ArrayList<String>();
+        List<List<Object>> params = new ArrayList<List<Object>>();
+        queries.add("BEGIN");
+        params.add(null);
+        for (int i = 0; i < this.writeBatchSize; i++)
+        {
+            queries.add("UPDATE load_test SET n = n + 1, value = ? WHERE id = ?");
+            params.add(Arrays.<Object>asList(this.value, random.nextInt(this.rows)));
+        }
+        queries.add("COMMIT");
+        params.add(null);
+        return batch(dbname, queries, params);
+    }
+
+    @SuppressWarnings("unchecked")
+    private List<Object> batch(String dbname, final List<String> queries, final List<List<Object>> params)
+            throws Exception
+    {
+        return (List<Object>) call(new Request()
+        {
+            public void send(String dbname, SQLiteEngine.ResultCallback callback)
+            {
+                engine.executeBatch(dbname, queries, params, callback);
+            }
+        }, dbname);
+    }
+
+    private static int countErrors(List<Object> results)
+    {
+        int errors = 0;
+        for (Object result : results)
+        {
+            if (result instanceof Map && "error".equals(((Map<?, ?>) result).get("type")))
+                errors++;
+        }
+        return errors;
+    }
+
+    interface Request
+    {
+        void send(String dbname, SQLiteEngine.ResultCallback callback);
+    }
+
+    /**
+     * Send a request and wait for its result.
+     */
+    static Object call(Request request, String dbname) throws Exception
+    {
+        final CountDownLatch done = new CountDownLatch(1);
+        final Object[] result = new Object[1];
+        final String[] error = new String[1];
+
+        request.send(dbname, new SQLiteEngine.ResultCallback()
+        {
+            public void success(Object value)
+            {
+                result[0] = value;
+                done.countDown();
+            }
+
+            public void error(String message)
+            {
+                error[0] = (message != null) ? message : "unknown error";
+                done.countDown();
+            }
+        });
+
+        if (!done.await(TIMEOUT_SECONDS, TimeUnit.SECONDS))
+            throw new IllegalStateException("timed out waiting for " + dbname);
+        if (error[0] != null)
+            throw new IllegalStateException(error[0]);
+        return result[0];
+    }
+
+    static void putPercentiles(Map<String, Object> report, String prefix, List<Long> latencies)
+    {
+        if (latencies.isEmpty())
+            return;
+
+        Long[] sorted = latencies.toArray(new Long[latencies.size()]);
+        Arrays.sort(sorted);
+        report.put(name(prefix, "p50Millis"), sorted[percentileIndex(sorted.length, 0.50)] / 1e6);
+        report.put(name(prefix, "p99Millis"), sorted[percentileIndex(sorted.length, 0.99)] / 1e6);
+        report.put(name(prefix, "maxMillis"), sorted[sorted.length - 1] / 1e6);
+    }
+
+    private static int percentileIndex(int size, double percentile)
+    {
+        return Math.min(size - 1, (int) Math.ceil(percentile * size) - 1);
+    }
+
+    private static String name(String prefix, String name)
+    {
+        return prefix.length() == 0 ? name : prefix + Character.toUpperCase(name.charAt(0)) + name.substring(1);
+    }
+
+    private static int getInt(Map<String, Object> options, String name, int defaultValue)
+    {
+        return (int) getDouble(options, name, defaultValue);
+    }
+
+    static double getDouble(Map<String, Object> options, String name, double defaultValue)
+    {
+        Object value = (options != null) ? options.get(name) : null;
+        if (value instanceof Number)
+            return ((Number) value).doubleValue();
+        if (value instanceof String)
+            return Double.parseDouble((String) value);
+        return defaultValue;
+    }
+}
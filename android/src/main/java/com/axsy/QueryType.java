@@ -0,0 +1,42 @@
+/**
+ * Copyright (c) 2020, Axsy
+ */
+
+package com.axsy;
+
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Kind of SQL statement, from its first word
+ */
+enum QueryType
+{
+    update,
+    insert,
+    delete,
+    select,
+    begin,
+    commit,
+    rollback,
+    other;
+
+    private static final Pattern FIRST_WORD = Pattern.compile("^\\s*(\\S+)",
+            Pattern.CASE_INSENSITIVE);
+
+    static QueryType of(String query)
+    {
+        Matcher matcher = FIRST_WORD.matcher(query);
+        if (matcher.find())
+        {
+            try
+            {
+                return QueryType.valueOf(matcher.group(1).toLowerCase());
+            } catch (IllegalArgumentException ignore)
+            {
+                // unknown verb
+            }
+        }
+        return QueryType.other;
+    }
+}
@@ -0,0 +1,140 @@
+/**
+ * Copyright (c) 2020, Axsy
+ */
+
+package com.axsy;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+import com.facebook.common.logging.FLog;
+
+/**
+ * Re-key of a database, exported in the background into a temporary file.
+ * Reads keep being served from the old file meanwhile; from the first write on,
+ * queued work is held back until the swap so that nothing written is lost.
+ */
+final class Rekey implements Runnable
+{
+    private static final String TAG = SQLitePlugin.TAG;
+
+    private static final long PROGRESS_INTERVAL = 500;
+
+    final DBRunner runner;
+    final File dbfile;
+    final File tmpFile;
+    final Properties cipherSettings;
+    final String newKey;
+    final Properties newSettings;
+    final CallbackContext cbc;
+
+    /**
+     * Work held back until the swap (only accessed from the db thread)
+     */
+    final List<DBQuery> deferred = new ArrayList<DBQuery>();
+    private volatile DBQuery swap;
+
+    volatile boolean exported = false;
+    volatile boolean cancelled = false;
+    Exception error;
+
+    /**
+     * DBRunner.changeStamp() when the export started (only accessed from the db thread)
+     */
+    String changeStamp;
+
+    Rekey(DBRunner runner, File dbfile, Properties cipherSettings, String newKey, Properties newSettings,
+          CallbackContext cbc)
+    {
+        this.runner = runner;
+        this.dbfile = dbfile;
+        this.tmpFile = new File(dbfile.getAbsolutePath() + "-rekey");
+        this.cipherSettings = cipherSettings;
+        this.newKey = newKey;
+        this.newSettings = newSettings;
+        this.cbc = cbc;
+    }
+
+    /**
+     * @return whether the query has to wait for the swap
+     */
+    boolean defer(DBQuery dbq)
+    {
+        if (dbq == this.swap)
+            return false;
+
+        if (this.deferred.isEmpty() && dbq.isReadOnly())
+            return false;
+
+        this.deferred.add(dbq);
+        return true;
+    }
+
+    void cancel(String reason)
+    {
+        this.cancelled = true;
+        for (DBQuery dbq : this.deferred)
+        {
+            if (dbq.cbc != null)
+                dbq.cbc.error(reason);
+        }
+        this.cbc.error("database re-key cancelled: " + reason);
+    }
+
+    public void run()
+    {
+        runner.manager.getThreadPool().execute(new Runnable()
+        {
+            public void run()
+            {
+                long total = Math.max(dbfile.length(), 1);
+                while (!exported && !cancelled)
+                {
+                    runner.manager.sendProgress(DBManager.REKEY_PROGRESS_EVENT, runner.dbname, "export",
+                            Math.min(1.0, (double) tmpFile.length() / total));
+                    try
+                    {
+                        Thread.sleep(PROGRESS_INTERVAL);
+                    } catch (InterruptedException e)
+                    {
+                        return;
+                    }
+                }
+            }
+        });
+
+        try
+        {
+            this.tmpFile.delete();
+            runner.manager.exportDatabase(this.dbfile, runner.key, this.cipherSettings, this.tmpFile, this.newKey, this.newSettings);
+            runner.manager.sendProgress(DBManager.REKEY_PROGRESS_EVENT, runner.dbname, "export", 1);
+        } catch (Exception e)
+        {
+            this.error = e;
+        }
+        this.exported = true;
+
+        if (this.cancelled)
+        {
+            this.tmpFile.delete();
+            return;
+        }
+
+        this.swap = new DBQuery(new DBTask()
+        {
+            public void run(DBRunner r, CallbackContext cbc) throws Exception
+            {
+                r.finishRekey();
+            }
+        }, null);
+        try
+        {
+            runner.q.put(this.swap);
+        } catch (InterruptedException e)
+        {
+            FLog.e(TAG, "couldn't queue database swap", e);
+        }
+    }
+}
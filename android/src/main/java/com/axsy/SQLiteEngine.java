@@ -0,0 +1,47 @@
+/**
+ * Copyright (c) 2020, Axsy
+ */
+
+package com.axsy;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Plain-Java entry point to the database runners, for callers that are not on the
+ * React Native bridge (native app code, instrumentation tests, the load generator).
+ *
+ * Requests go through the same queues as the JS calls, and results are delivered as
+ * plain Java values (Map, List, String, Double, Boolean or null) on the db thread.
+ *
+ * The engine is returned by SQLitePlugin.getEngine(), or SQLitePlugin.createEngine(Context) when there is
+ * no React Native context. Code written against the interface (e.g. LoadGenerator) can be unit tested with
+ * a fake implementation.
+ */
+public interface SQLiteEngine
+{
+    interface ResultCallback
+    {
+        void success(Object result);
+
+        void error(String message);
+    }
+
+    /**
+     * @param options - same options as the JS openDatabase (e.g. cursorWindowSize, slowQueryThreshold)
+     */
+    void open(String dbname, String key, Map<String, Object> options, ResultCallback callback);
+
+    /**
+     * Execute a batch of statements, in order, on the database thread.
+     *
+     * @param queries - SQL statements
+     * @param params  - parameters of each statement (null for none)
+     * @param callback - receives a List with one Map per statement: {qid, type: "success"|"error", result}
+     */
+    void executeBatch(String dbname, List<String> queries, List<List<Object>> params, ResultCallback callback);
+
+    void close(String dbname, ResultCallback callback);
+
+    void delete(String dbname, ResultCallback callback);
+}
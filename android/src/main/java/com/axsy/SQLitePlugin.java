@@ -5,49 +5,34 @@
  * Copyright (c) 2010, IBM Corporation
  */
 
-package com.axsy;
-
-import android.annotation.SuppressLint;
-import android.database.Cursor;
 
+package com.axsy;
 
-import net.sqlcipher.database.SQLiteDatabase;
-import net.sqlcipher.database.SQLiteException;
-import net.sqlcipher.database.SQLiteStatement;
-import net.sqlcipher.database.SQLiteDatabaseHook;
-
+import android.content.ComponentCallbacks2;
 import android.content.Context;
-import android.util.Base64;
+import android.content.res.Configuration;
 
-import java.io.Closeable;
 import java.io.File;
-import java.io.FileInputStream;
 import java.lang.IllegalArgumentException;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.BlockingQueue;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.LinkedBlockingQueue;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import com.facebook.react.bridge.ReactApplicationContext;
 import com.facebook.react.bridge.ReactContextBaseJavaModule;
 import com.facebook.react.bridge.ReactMethod;
 import com.facebook.react.bridge.ReadableMap;
+import com.facebook.react.bridge.ReadableMapKeySetIterator;
 import com.facebook.react.bridge.Callback;
 
-import java.io.FileOutputStream;
-import java.io.InputStream;
-import java.io.OutputStream;
-import java.io.IOException;
-
 import com.facebook.common.logging.FLog;
 import com.facebook.react.bridge.Arguments;
 import com.facebook.react.bridge.ReadableArray;
-import com.facebook.react.bridge.ReadableType;
-import com.facebook.react.bridge.WritableArray;
-import com.facebook.react.bridge.WritableMap;
+import com.facebook.react.modules.core.DeviceEventManagerModule;
 
 public class SQLitePlugin extends ReactContextBaseJavaModule
 {
@@ -56,17 +41,10 @@ public class SQLitePlugin extends ReactContextBaseJavaModule
 
     private static final String PLUGIN_NAME = "SQLite";
 
-
-    private static final Pattern FIRST_WORD = Pattern.compile("^\\s*(\\S+)",
-            Pattern.CASE_INSENSITIVE);
-
-
     /**
-     * Multiple database runner map (static).
-     * NOTE: no public static accessor to db (runner) map since it would not work with db threading.
-     * FUTURE put DBRunner into a public class that can provide external accessor.
+     * Database runners and files, shared with the module instances of the other JS contexts
      */
-    static ConcurrentHashMap<String, DBRunner> dbrmap = new ConcurrentHashMap<String, DBRunner>();
+    private final DBManager manager;
 
     /**
      * Linked activity
@@ -78,12 +56,78 @@ public class SQLitePlugin extends ReactContextBaseJavaModule
      */
     protected ExecutorService threadPool;
 
+    /**
+     * Releases database memory when the system asks for it
+     */
+    private final ComponentCallbacks2 memoryCallbacks = new ComponentCallbacks2()
+    {
+        public void onTrimMemory(int level)
+        {
+            int tier = DBManager.getMemoryTier(level);
+            if (tier > 0)
+                manager.releaseMemory(tier);
+        }
+
+        public void onLowMemory()
+        {
+            manager.releaseMemory(DBManager.MEMORY_TIER_CLOSE);
+        }
+
+        public void onConfigurationChanged(Configuration configuration)
+        {
+        }
+    };
+
+    /**
+     * Emits the database events to the JS context of this module instance
+     */
+    private final DBManager.EventListener eventListener = new DBManager.EventListener()
+    {
+        public void onEvent(String eventName, Map<String, Object> params)
+        {
+            getReactApplicationContext()
+                    .getJSModule(DeviceEventManagerModule.RCTDeviceEventEmitter.class)
+                    .emit(eventName, Arguments.makeNativeMap(params));
+        }
+    };
+
     public SQLitePlugin(ReactApplicationContext reactContext)
+    {
+        this(reactContext, null);
+    }
+
+    /**
+     * @param prewarm - databases to open and warm up before JS asks for them (see SQLitePluginPackage)
+     */
+    public SQLitePlugin(ReactApplicationContext reactContext, List<Map<String, Object>> prewarm)
     {
         super(reactContext);
-        this.context = reactContext.getApplicationContext();
-        this.threadPool = Executors.newCachedThreadPool();
-        SQLiteDatabase.loadLibs(this.context);
+        this.manager = new DBManager(reactContext);
+        this.context = this.manager.getContext();
+        this.threadPool = this.manager.getThreadPool();
+        DBManager.setEventListener(this.eventListener);
+        this.context.registerComponentCallbacks(this.memoryCallbacks);
+
+        if (prewarm != null)
+        {
+            for (Map<String, Object> database : prewarm)
+            {
+                this.manager.prewarmDatabase(database);
+            }
+        }
+    }
+
+    /**
+     * The JS context is going away (app shutdown, or a reload): detach the open databases from it.
+     * They are kept open for a new JS context to re-attach to (reattachTimeout open option),
+     * and closed otherwise.
+     */
+    @Override
+    public void onCatalystInstanceDestroy()
+    {
+        this.context.unregisterComponentCallbacks(this.memoryCallbacks);
+        DBManager.clearEventListener(this.eventListener);
+        this.manager.detachAll();
     }
 
     /**
@@ -161,973 +205,1002 @@ public class SQLitePlugin extends ReactContextBaseJavaModule
     }
 
     @ReactMethod
-    public void echoStringValue(ReadableMap args, Callback success, Callback error)
+    public void registerLiveQuery(ReadableMap args, Callback success, Callback error)
     {
-        String actionAsString = "echoStringValue";
+        String actionAsString = "registerLiveQuery";
         try
         {
             this.execute(actionAsString, args, new CallbackContext(success, error));
         } catch (Exception ex)
         {
-            error.invoke("Unexpected error");
+            error.invoke("Unexpected error" + ex.getMessage());
         }
     }
 
-
-    /**
-     * @return the thread pool available for scheduling background execution
-     */
-    protected ExecutorService getThreadPool()
+    @ReactMethod
+    public void unregisterLiveQuery(ReadableMap args, Callback success, Callback error)
     {
-        return this.threadPool;
+        String actionAsString = "unregisterLiveQuery";
+        try
+        {
+            this.execute(actionAsString, args, new CallbackContext(success, error));
+        } catch (Exception ex)
+        {
+            error.invoke("Unexpected error" + ex.getMessage());
+        }
     }
 
-    /**
-     * @return linked activity
-     */
-    protected Context getContext()
+    @ReactMethod
+    public void migrateCipher(ReadableMap args, Callback success, Callback error)
     {
-        return this.context;
+        String actionAsString = "migrateCipher";
+        try
+        {
+            this.execute(actionAsString, args, new CallbackContext(success, error));
+        } catch (Exception ex)
+        {
+            error.invoke("Unexpected error" + ex.getMessage());
+        }
     }
 
-    /**
-     * Executes the request and returns PluginResult.
-     *
-     * @param actionAsString The action to execute.
-     * @param args           JSONArray of arguments for the plugin.
-     * @param cbc            Callback context from Cordova API
-     * @return Whether the action was valid.
-     */
-    protected boolean execute(String actionAsString, ReadableMap args, CallbackContext cbc) throws Exception
+    @ReactMethod
+    public void rekey(ReadableMap args, Callback success, Callback error)
     {
-
-        Action action;
+        String actionAsString = "rekey";
         try
         {
-            action = Action.valueOf(actionAsString);
-        } catch (IllegalArgumentException e)
+            this.execute(actionAsString, args, new CallbackContext(success, error));
+        } catch (Exception ex)
         {
-            // shouldn't ever happen
-            FLog.e(TAG, "unexpected error", e);
-            cbc.error("Unexpected error executing processing SQLite query");
-            throw (e);
+            error.invoke("Unexpected error" + ex.getMessage());
         }
+    }
 
+    @ReactMethod
+    public void backup(ReadableMap args, Callback success, Callback error)
+    {
+        String actionAsString = "backup";
         try
         {
-            return executeAndPossiblyThrow(action, args, cbc);
-        } catch (Exception e)
+            this.execute(actionAsString, args, new CallbackContext(success, error));
+        } catch (Exception ex)
         {
-            // TODO: signal JSON problem to JS
-            FLog.e(TAG, "unexpected error", e);
-            cbc.error("Unexpected error executing processing SQLite query");
-            throw (e);
+            error.invoke("Unexpected error" + ex.getMessage());
         }
     }
 
-    private boolean executeAndPossiblyThrow(Action action, ReadableMap args, CallbackContext cbc)
-            throws Exception
+    @ReactMethod
+    public void restore(ReadableMap args, Callback success, Callback error)
     {
-
-        String dbname;
-        String key;
-
-        switch (action)
+        String actionAsString = "restore";
+        try
         {
-            case echoStringValue:
-                String echo_value = SQLitePluginConverter.getString(args, "value", "");
-                cbc.success(echo_value);
-                break;
-
-            case open:
-                dbname = SQLitePluginConverter.getString(args, "name", "");
-                key = SQLitePluginConverter.getString(args, "key", null);
-                // open database and start reading its queue
-                this.startDatabase(dbname, key, args, cbc);
-                break;
-
-            case close:
-                dbname = SQLitePluginConverter.getString(args, "path", "");
-                // put request in the q to close the db
-                this.closeDatabase(dbname, cbc);
-                break;
-
-            case delete:
-                dbname = SQLitePluginConverter.getString(args, "path", "");
-
-                deleteDatabase(dbname, cbc);
-
-                break;
-
-            case executeSqlBatch:
-            case backgroundExecuteSqlBatch:
-                String[] queries;
-                String[] queryIDs = null;
-
-                ReadableArray[] queryParams = null;
-
-                ReadableMap dbArgs = (ReadableMap) SQLitePluginConverter.get(args,"dbargs",null);
-                dbname = SQLitePluginConverter.getString(dbArgs,"dbname","");
-                ReadableArray txArgs = (ReadableArray) SQLitePluginConverter.get(args,"executes",null);
-
-                if (txArgs.isNull(0))
-                {
-                    queries = new String[0];
-                } else
-                {
-                    int len = txArgs.size();
-                    queries = new String[len];
-                    queryIDs = new String[len];
-                    queryParams = new ReadableArray[len];
-
-                    for (int i = 0; i < len; i++)
-                    {
-                        ReadableMap queryArgs = (ReadableMap) SQLitePluginConverter.get(txArgs,i,null);
-                        queries[i] = SQLitePluginConverter.getString(queryArgs,"sql","");
-                        queryIDs[i] = SQLitePluginConverter.getString(queryArgs,"qid","");
-                        queryParams[i] = (ReadableArray) SQLitePluginConverter.get(queryArgs,"params",null);
-                    }
-                }
-
-                // put db query in the queue to be executed in the db thread:
-                DBQuery q = new DBQuery(queries, queryIDs, queryParams, cbc);
-                DBRunner r = dbrmap.get(dbname);
-                if (r != null)
-                {
-                    try
-                    {
-                        r.q.put(q);
-                    } catch (Exception e)
-                    {
-                        FLog.e(TAG, "couldn't add to queue", e);
-                        cbc.error("couldn't add to queue");
-                    }
-                } else
-                {
-                    cbc.error("database not open");
-                }
-                break;
+            this.execute(actionAsString, args, new CallbackContext(success, error));
+        } catch (Exception ex)
+        {
+            error.invoke("Unexpected error" + ex.getMessage());
         }
-
-        return true;
     }
 
-    /**
-     * Clean up and close all open databases.
-     */
-    public void closeAllOpenDatabases()
+    @ReactMethod
+    public void importFile(ReadableMap args, Callback success, Callback error)
     {
-        while (!dbrmap.isEmpty())
+        String actionAsString = "importFile";
+        try
         {
-            String dbname = dbrmap.keySet().iterator().next();
-
-            this.closeDatabaseNow(dbname);
-
-            DBRunner r = dbrmap.get(dbname);
-            try
-            {
-                // stop the db runner thread:
-                r.q.put(new DBQuery());
-            } catch (Exception ex)
-            {
-                FLog.e(TAG, "couldn't stop db thread for db: " + dbname, ex);
-            }
-            dbrmap.remove(dbname);
+            this.execute(actionAsString, args, new CallbackContext(success, error));
+        } catch (Exception ex)
+        {
+            error.invoke("Unexpected error" + ex.getMessage());
         }
     }
 
-    // --------------------------------------------------------------------------
-    // LOCAL METHODS
-    // --------------------------------------------------------------------------
-
-    /**
-     * @param dbname  - The name of the database file
-     * @param options - options passed in from JS
-     * @param cbc     - JS callback context
-     */
-    private void startDatabase(String dbname, String key, ReadableMap options, CallbackContext cbc)
+    @ReactMethod
+    public void exportQuery(ReadableMap args, Callback success, Callback error)
     {
-        // TODO: is it an issue that we can orphan an existing thread?  What should we do here?
-        // If we re-use the existing DBRunner it might be in the process of closing...
-        DBRunner r = dbrmap.get(dbname);
-
-        // Brody TODO: It may be better to terminate the existing db thread here & start a new one, instead.
-        if (r != null)
+        String actionAsString = "exportQuery";
+        try
         {
-            // don't orphan the existing thread; just re-open the existing database.
-            // In the worst case it might be in the process of closing, but even that's less serious
-            // than orphaning the old DBRunner.
-            cbc.success("database started");
-        } else
+            this.execute(actionAsString, args, new CallbackContext(success, error));
+        } catch (Exception ex)
         {
-            r = new DBRunner(dbname, key, options, cbc);
-            dbrmap.put(dbname, r);
-            this.getThreadPool().execute(r);
+            error.invoke("Unexpected error" + ex.getMessage());
         }
     }
 
-    /**
-     * Open a database.
-     *
-     * @param dbname        - The name of the database file
-     * @param key           - encryption key
-     * @param assetFilePath - path to the pre-populated database file
-     * @param openFlags     - the db open options
-     * @param cbc           - JS callback
-     * @return instance of SQLite database
-     * @throws Exception
-     */
-    private SQLiteDatabase openDatabase(String dbname, String key, String assetFilePath, int openFlags, CallbackContext cbc, boolean migrate) throws Exception
+    @ReactMethod
+    public void writeBlobFromFile(ReadableMap args, Callback success, Callback error)
     {
-        InputStream in = null;
-        File dbfile = null;
+        String actionAsString = "writeBlobFromFile";
         try
         {
-            SQLiteDatabase database = this.getDatabase(dbname);
-            if (database != null && database.isOpen())
-            {
-                //this only happens when DBRunner is cycling the db for the locking work around.
-                // otherwise, this should not happen - should be blocked at the execute("open") level
-                if (cbc != null) cbc.error("database already open");
-                throw new Exception("database already open");
-            }
-
-            if (assetFilePath != null && assetFilePath.length() > 0)
-            {
-                if (assetFilePath.compareTo("1") == 0)
-                {
-                    assetFilePath = "www/" + dbname;
-                    in = this.getContext().getAssets().open(assetFilePath);
-                    FLog.v(TAG, "Located pre-populated DB asset in app bundle www subdirectory: " + assetFilePath);
-                } else if (assetFilePath.charAt(0) == '~')
-                {
-                    assetFilePath = assetFilePath.startsWith("~/") ? assetFilePath.substring(2) : assetFilePath.substring(1);
-                    in = this.getContext().getAssets().open(assetFilePath);
-                    FLog.v(TAG, "Located pre-populated DB asset in app bundle subdirectory: " + assetFilePath);
-                } else
-                {
-                    File filesDir = this.getContext().getFilesDir();
-                    assetFilePath = assetFilePath.startsWith("/") ? assetFilePath.substring(1) : assetFilePath;
-                    File assetFile = new File(filesDir, assetFilePath);
-                    in = new FileInputStream(assetFile);
-                    FLog.v(TAG, "Located pre-populated DB asset in Files subdirectory: " + assetFile.getCanonicalPath());
-                    if (openFlags == SQLiteDatabase.OPEN_READONLY)
-                    {
-                        dbfile = assetFile;
-                        FLog.v(TAG, "Detected read-only mode request for external asset.");
-                    }
-                }
-            }
-
-            if (dbfile == null)
-            {
-                openFlags = SQLiteDatabase.OPEN_READWRITE | SQLiteDatabase.CREATE_IF_NECESSARY;
-                dbfile = this.getContext().getDatabasePath(dbname);
-
-                if (!dbfile.exists() && in != null)
-                {
-                    FLog.v(TAG, "Copying pre-populated db asset to destination");
-                    this.createFromAssets(dbname, dbfile, in);
-                }
-
-                if (!dbfile.exists())
-                {
-                    dbfile.getParentFile().mkdirs();
-                }
-            }
-
-            FLog.v(TAG, "Opening sqlite db: " + dbfile.getAbsolutePath());
-            SQLiteDatabaseHook hook = null;
-            if (migrate == true)
-            {
-                hook = new SQLiteDatabaseHook()
-                {
-                    public void preKey(SQLiteDatabase database)
-                    {
-                    }
-
-                    public void postKey(SQLiteDatabase database)
-                    {
-                        database.rawQuery("PRAGMA cipher_migrate", null);
-                    }
-                };
-
-            }
-
-            SQLiteDatabase mydb = (hook == null) ? SQLiteDatabase.openOrCreateDatabase(dbfile.getAbsolutePath(), key, null) : SQLiteDatabase.openOrCreateDatabase(dbfile.getAbsolutePath(), key, null, hook);
-
-            if (cbc != null) // needed for Android locking/closing workaround
-                cbc.success("database open");
-
-            return mydb;
-        } catch (SQLiteException ex)
-        {
-            if (migrate == false)
-            {
-                return openDatabase(dbname, key, assetFilePath, openFlags, cbc, true);
-            }
-            if (cbc != null) // needed for Android locking/closing workaround
-                cbc.error("can't open database " + ex);
-            throw ex;
-        } finally
+            this.execute(actionAsString, args, new CallbackContext(success, error));
+        } catch (Exception ex)
         {
-            closeQuietly(in);
+            error.invoke("Unexpected error" + ex.getMessage());
         }
     }
 
-    /**
-     * If a prepopulated DB file exists in the assets folder it is copied to the dbPath.
-     * Only runs the first time the app runs.
-     *
-     * @param dbName               The name of the database file - could be used as filename for imported asset
-     * @param dbfile               The File of the destination db
-     * @param assetFileInputStream input file stream for pre-populated db asset
-     */
-    private void createFromAssets(String dbName, File dbfile, InputStream assetFileInputStream)
+    @ReactMethod
+    public void readBlobToFile(ReadableMap args, Callback success, Callback error)
     {
-        OutputStream out = null;
-
+        String actionAsString = "readBlobToFile";
         try
         {
-            FLog.v(TAG, "Copying pre-populated DB content");
-            String dbPath = dbfile.getAbsolutePath();
-            dbPath = dbPath.substring(0, dbPath.lastIndexOf("/") + 1);
-
-            File dbPathFile = new File(dbPath);
-            if (!dbPathFile.exists())
-                dbPathFile.mkdirs();
-
-            File newDbFile = new File(dbPath + dbName);
-            out = new FileOutputStream(newDbFile);
-
-            // XXX TODO: this is very primitive, other alternatives at:
-            // http://www.journaldev.com/861/4-ways-to-copy-file-in-java
-            byte[] buf = new byte[1024];
-            int len;
-            while ((len = assetFileInputStream.read(buf)) > 0)
-                out.write(buf, 0, len);
-
-            FLog.v(TAG, "Copied pre-populated DB content to: " + newDbFile.getAbsolutePath());
-        } catch (IOException e)
-        {
-            FLog.v(TAG, "No pre-populated DB found, error=" + e.getMessage());
-        } finally
+            this.execute(actionAsString, args, new CallbackContext(success, error));
+        } catch (Exception ex)
         {
-            closeQuietly(out);
+            error.invoke("Unexpected error" + ex.getMessage());
         }
     }
 
-    /**
-     * Close a database (in another thread).
-     *
-     * @param dbName - The name of the database file
-     * @param cbc    - JS callback
-     */
-    private void closeDatabase(String dbName, CallbackContext cbc)
+    @ReactMethod
+    public void getMetrics(ReadableMap args, Callback success, Callback error)
     {
-        DBRunner r = dbrmap.get(dbName);
-        if (r != null)
+        String actionAsString = "getMetrics";
+        try
         {
-            try
-            {
-                r.q.put(new DBQuery(false, cbc));
-            } catch (Exception e)
-            {
-                if (cbc != null)
-                {
-                    cbc.error("couldn't close database" + e);
-                }
-                FLog.e(TAG, "couldn't close database", e);
-            }
-        } else
+            this.execute(actionAsString, args, new CallbackContext(success, error));
+        } catch (Exception ex)
         {
-            if (cbc != null)
-            {
-                cbc.success("database closed");
-            }
+            error.invoke("Unexpected error" + ex.getMessage());
         }
     }
 
-    /**
-     * Close a database (in the current thread).
-     *
-     * @param dbName The name of the database file
-     */
-    private void closeDatabaseNow(String dbName)
+    @ReactMethod
+    public void getSlowQueries(ReadableMap args, Callback success, Callback error)
     {
-        SQLiteDatabase mydb = this.getDatabase(dbName);
+        String actionAsString = "getSlowQueries";
+        try
+        {
+            this.execute(actionAsString, args, new CallbackContext(success, error));
+        } catch (Exception ex)
+        {
+            error.invoke("Unexpected error" + ex.getMessage());
+        }
+    }
 
-        if (mydb != null)
+    @ReactMethod
+    public void getEngineStats(ReadableMap args, Callback success, Callback error)
+    {
+        String actionAsString = "getEngineStats";
+        try
         {
-            mydb.close();
+            this.execute(actionAsString, args, new CallbackContext(success, error));
+        } catch (Exception ex)
+        {
+            error.invoke("Unexpected error" + ex.getMessage());
         }
     }
 
-    /**
-     * @param dbname - The name of the database file
-     * @param cbc    - callback
-     */
-    private void deleteDatabase(String dbname, CallbackContext cbc)
+    @ReactMethod
+    public void startTracing(ReadableMap args, Callback success, Callback error)
     {
-        DBRunner r = dbrmap.get(dbname);
-        if (r != null)
+        String actionAsString = "startTracing";
+        try
         {
-            try
-            {
-                r.q.put(new DBQuery(true, cbc));
-            } catch (Exception e)
-            {
-                if (cbc != null)
-                {
-                    cbc.error("couldn't close database" + e);
-                }
-                FLog.e(TAG, "couldn't close database", e);
-            }
-        } else
+            this.execute(actionAsString, args, new CallbackContext(success, error));
+        } catch (Exception ex)
         {
-            boolean deleteResult = this.deleteDatabaseNow(dbname);
-            if (deleteResult)
-            {
-                cbc.success("database deleted");
-            } else
-            {
-                cbc.error("couldn't delete database");
-            }
+            error.invoke("Unexpected error" + ex.getMessage());
+        }
+    }
+
+    @ReactMethod
+    public void stopTracing(ReadableMap args, Callback success, Callback error)
+    {
+        String actionAsString = "stopTracing";
+        try
+        {
+            this.execute(actionAsString, args, new CallbackContext(success, error));
+        } catch (Exception ex)
+        {
+            error.invoke("Unexpected error" + ex.getMessage());
+        }
+    }
+
+    @ReactMethod
+    public void runLoadTest(ReadableMap args, Callback success, Callback error)
+    {
+        String actionAsString = "runLoadTest";
+        try
+        {
+            this.execute(actionAsString, args, new CallbackContext(success, error));
+        } catch (Exception ex)
+        {
+            error.invoke("Unexpected error" + ex.getMessage());
+        }
+    }
+
+    @ReactMethod
+    public void startRecording(ReadableMap args, Callback success, Callback error)
+    {
+        String actionAsString = "startRecording";
+        try
+        {
+            this.execute(actionAsString, args, new CallbackContext(success, error));
+        } catch (Exception ex)
+        {
+            error.invoke("Unexpected error" + ex.getMessage());
+        }
+    }
+
+    @ReactMethod
+    public void stopRecording(ReadableMap args, Callback success, Callback error)
+    {
+        String actionAsString = "stopRecording";
+        try
+        {
+            this.execute(actionAsString, args, new CallbackContext(success, error));
+        } catch (Exception ex)
+        {
+            error.invoke("Unexpected error" + ex.getMessage());
+        }
+    }
+
+    @ReactMethod
+    public void replayWorkload(ReadableMap args, Callback success, Callback error)
+    {
+        String actionAsString = "replayWorkload";
+        try
+        {
+            this.execute(actionAsString, args, new CallbackContext(success, error));
+        } catch (Exception ex)
+        {
+            error.invoke("Unexpected error" + ex.getMessage());
+        }
+    }
+
+    @ReactMethod
+    public void submitTransactions(ReadableMap args, Callback success, Callback error)
+    {
+        String actionAsString = "submitTransactions";
+        try
+        {
+            this.execute(actionAsString, args, new CallbackContext(success, error));
+        } catch (Exception ex)
+        {
+            error.invoke("Unexpected error" + ex.getMessage());
+        }
+    }
+
+    @ReactMethod
+    public void registerQueries(ReadableMap args, Callback success, Callback error)
+    {
+        String actionAsString = "registerQueries";
+        try
+        {
+            this.execute(actionAsString, args, new CallbackContext(success, error));
+        } catch (Exception ex)
+        {
+            error.invoke("Unexpected error" + ex.getMessage());
         }
     }
 
+    @ReactMethod
+    public void attachDatabase(ReadableMap args, Callback success, Callback error)
+    {
+        String actionAsString = "attachDatabase";
+        try
+        {
+            this.execute(actionAsString, args, new CallbackContext(success, error));
+        } catch (Exception ex)
+        {
+            error.invoke("Unexpected error" + ex.getMessage());
+        }
+    }
+
+    @ReactMethod
+    public void detachDatabase(ReadableMap args, Callback success, Callback error)
+    {
+        String actionAsString = "detachDatabase";
+        try
+        {
+            this.execute(actionAsString, args, new CallbackContext(success, error));
+        } catch (Exception ex)
+        {
+            error.invoke("Unexpected error" + ex.getMessage());
+        }
+    }
+
+    @ReactMethod
+    public void copyTable(ReadableMap args, Callback success, Callback error)
+    {
+        String actionAsString = "copyTable";
+        try
+        {
+            this.execute(actionAsString, args, new CallbackContext(success, error));
+        } catch (Exception ex)
+        {
+            error.invoke("Unexpected error" + ex.getMessage());
+        }
+    }
+
+    @ReactMethod
+    public void echoStringValue(ReadableMap args, Callback success, Callback error)
+    {
+        String actionAsString = "echoStringValue";
+        try
+        {
+            this.execute(actionAsString, args, new CallbackContext(success, error));
+        } catch (Exception ex)
+        {
+            error.invoke("Unexpected error");
+        }
+    }
+
+
     /**
-     * Delete a database.
-     *
-     * @param dbname The name of the database file
-     * @return true if successful or false if an exception was encountered
+     * @return the thread pool available for scheduling background execution
      */
-    @SuppressLint("NewApi")
-    private boolean deleteDatabaseNow(String dbname)
+    protected ExecutorService getThreadPool()
     {
-        File dbfile = this.getContext().getDatabasePath(dbname);
-        return this.getContext().deleteDatabase(dbfile.getAbsolutePath());
+        return this.threadPool;
     }
 
     /**
-     * Get a database from the db map.
-     *
-     * @param dbname The name of the database.
+     * @return linked activity
+     */
+    protected Context getContext()
+    {
+        return this.context;
+    }
+
+    /**
+     * @return entry point to the databases of this plugin that does not need the JS bridge
      */
-    private SQLiteDatabase getDatabase(String dbname)
+    public SQLiteEngine getEngine()
     {
-        DBRunner r = dbrmap.get(dbname);
-        return (r == null) ? null : r.mydb;
+        return new DBEngine(this.manager);
     }
 
     /**
-     * Executes a batch request and sends the results via cbc.
+     * @param context - Android context, whose application context opens the databases
+     * @return entry point to the databases for code running without React Native (e.g. a background
+     * service); the databases it opens are shared with the plugin
+     */
+    public static SQLiteEngine createEngine(Context context)
+    {
+        return new DBEngine(new DBManager(context));
+    }
+
+    /**
+     * Executes the request and returns PluginResult.
      *
-     * @param dbname      The name of the database.
-     * @param queries     Array of query strings
-     * @param queryParams Array of JSON query parameters
-     * @param queryIDs    Array of query ids
-     * @param cbc         Callback context from Cordova API
+     * @param actionAsString The action to execute.
+     * @param args           JSONArray of arguments for the plugin.
+     * @param cbc            Callback context from Cordova API
+     * @return Whether the action was valid.
      */
-    @SuppressLint("NewApi")
-    private void executeSqlBatch(String dbname, String[] queries, ReadableArray[] queryParams,
-                                 String[] queryIDs, CallbackContext cbc)
+    protected boolean execute(String actionAsString, ReadableMap args, CallbackContext cbc) throws Exception
     {
 
-        SQLiteDatabase mydb = getDatabase(dbname);
+        Action action;
+        try
+        {
+            action = Action.valueOf(actionAsString);
+        } catch (IllegalArgumentException e)
+        {
+            // shouldn't ever happen
+            FLog.e(TAG, "unexpected error", e);
+            cbc.error("Unexpected error executing processing SQLite query");
+            throw (e);
+        }
 
-        if (mydb == null)
+        long start = DBManager.trace.begin();
+        try
         {
-            // not allowed - can only happen if someone has closed (and possibly deleted) a database and then re-used the database
-            cbc.error("database has been closed");
-            return;
+            return executeAndPossiblyThrow(action, args, cbc);
+        } catch (Exception e)
+        {
+            // TODO: signal JSON problem to JS
+            FLog.e(TAG, "unexpected error", e);
+            cbc.error("Unexpected error executing processing SQLite query");
+            throw (e);
+        } finally
+        {
+            DBManager.trace.complete(actionAsString, "bridge", start, getDatabaseName(action, args));
+        }
+    }
+
+    /**
+     * @return name of the database an action is for, null if none (or several)
+     */
+    private static String getDatabaseName(Action action, ReadableMap args)
+    {
+        switch (action)
+        {
+            case open:
+                return SQLitePluginConverter.getString(args, "name", null);
+            case close:
+            case delete:
+                return SQLitePluginConverter.getString(args, "path", null);
+            case executeSqlBatch:
+            case backgroundExecuteSqlBatch:
+                ReadableMap dbArgs = (ReadableMap) SQLitePluginConverter.get(args, "dbargs", null);
+                return SQLitePluginConverter.getString(dbArgs, "dbname", null);
+            default:
+                return SQLitePluginConverter.getString(args, "dbname", null);
         }
+    }
+
+
+    private boolean executeAndPossiblyThrow(Action action, ReadableMap args, final CallbackContext cbc)
+            throws Exception
+    {
 
-        String query;
-        String query_id;
-        int len = queries.length;
-        WritableArray batchResults = Arguments.createArray();
+        String dbname;
+        String key;
 
-        for (int i = 0; i < len; i++)
+        switch (action)
         {
-            query_id = queryIDs[i];
+            case echoStringValue:
+                String echo_value = SQLitePluginConverter.getString(args, "value", "");
+                cbc.success(echo_value);
+                break;
 
-            WritableMap queryResult = null;
-            String errorMessage = "unknown";
+            case open:
+                dbname = SQLitePluginConverter.getString(args, "name", "");
+                key = SQLitePluginConverter.getString(args, "key", null);
+                // open database and start reading its queue
+                this.manager.startDatabase(dbname, key, args.toHashMap(), cbc);
+                break;
 
-            try
-            {
-                boolean needRawQuery = true;
-                query = queries[i];
-                QueryType queryType = getQueryType(query);
+            case close:
+                dbname = SQLitePluginConverter.getString(args, "path", "");
+                // put request in the q to close the db
+                this.manager.closeDatabase(dbname, cbc);
+                break;
+
+            case delete:
+                dbname = SQLitePluginConverter.getString(args, "path", "");
+
+                this.manager.deleteDatabase(dbname, cbc);
+
+                break;
+
+            case executeSqlBatch:
+            case backgroundExecuteSqlBatch:
+                queueBatch(args, false, cbc);
+                break;
+
+            case submitTransactions:
+                submitTransactions(args, cbc);
+                break;
 
-                if (queryType == QueryType.update || queryType == QueryType.delete)
+            case registerQueries:
+                dbname = SQLitePluginConverter.getString(args, "dbname", "");
+                ReadableMap namedQueries = (ReadableMap) SQLitePluginConverter.get(args, "queries", null);
+                DBRunner registry = DBManager.dbrmap.get(dbname);
+                if (registry == null || namedQueries == null)
                 {
-                    SQLiteStatement myStatement = null;
-                    int rowsAffected = -1; // (assuming invalid)
+                    cbc.error(registry == null ? "database not open" : "no queries");
+                    break;
+                }
 
-                    try
-                    {
-                        myStatement = mydb.compileStatement(query);
-                        if (queryParams != null)
-                        {
-                            bindArgsToStatement(myStatement, queryParams[i]);
-                        }
+                // (registered right away, for the batches that follow; validated in the db thread)
+                final Map<String, String> registered = new HashMap<String, String>();
+                ReadableMapKeySetIterator names = namedQueries.keySetIterator();
+                while (names.hasNextKey())
+                {
+                    String name = names.nextKey();
+                    String sql = namedQueries.getString(name);
+                    registry.registerQuery(name, sql, QueryType.of(sql));
+                    registered.put(name, sql);
+                }
 
-                        rowsAffected = myStatement.executeUpdateDelete();
-                        // Indicate valid results:
-                        needRawQuery = false;
-                    } catch (SQLiteException ex)
-                    {
-                        // Indicate problem & stop this query:
-                        errorMessage = ex.getMessage();
-                        FLog.e(TAG, "SQLiteStatement.executeUpdateDelete() failed", ex);
-                        needRawQuery = false;
-                    } finally
+                this.manager.queueTask(dbname, new DBTask()
+                {
+                    public void run(DBRunner r, CallbackContext cbc)
                     {
-                        closeQuietly(myStatement);
+                        List<String> errors = r.compileQueries(registered);
+                        if (errors.isEmpty())
+                            cbc.success("queries registered");
+                        else
+                            cbc.error("couldn't register " + errors);
                     }
 
-                    if (rowsAffected != -1)
+                    boolean isReadOnly()
                     {
-                        queryResult = Arguments.createMap();
-                        queryResult.putInt("rowsAffected", rowsAffected);
+                        return true;
                     }
-                }
+                }, cbc);
+                break;
 
-                // INSERT:
-                else if (queryType == QueryType.insert && queryParams != null)
-                {
-                    FLog.d(TAG, "INSERT");
-                    needRawQuery = false;
+            case attachDatabase:
+                dbname = SQLitePluginConverter.getString(args, "dbname", "");
+                final String attachName = SQLitePluginConverter.getString(args, "attach", "");
+                final String attachAlias = SQLitePluginConverter.getString(args, "alias", "");
+                // (the key of the attached database is the one of its runner, if it is open)
+                DBRunner other = DBManager.dbrmap.get(attachName);
+                final String attachKey = (other != null) ? other.key : SQLitePluginConverter.getString(args, "key", "");
 
-                    SQLiteStatement myStatement = mydb.compileStatement(query);
+                this.manager.queueTask(dbname, new DBTask()
+                {
+                    public void run(DBRunner r, CallbackContext cbc)
+                    {
+                        r.attachDatabase(attachAlias, attachName, attachKey);
+                        cbc.success("database attached");
+                    }
 
-                    bindArgsToStatement(myStatement, queryParams[i]);
+                    boolean isReadOnly()
+                    {
+                        return true;
+                    }
+                }, cbc);
+                break;
 
-                    long insertId; // (invalid) = -1
+            case detachDatabase:
+                dbname = SQLitePluginConverter.getString(args, "dbname", "");
+                final String detachAlias = SQLitePluginConverter.getString(args, "alias", "");
 
-                    try
+                this.manager.queueTask(dbname, new DBTask()
+                {
+                    public void run(DBRunner r, CallbackContext cbc)
                     {
-                        insertId = myStatement.executeInsert();
+                        r.detachDatabase(detachAlias);
+                        cbc.success("database detached");
+                    }
 
-                        // statement has finished with no constraint violation:
-                        queryResult = Arguments.createMap();
-                        if (insertId != -1)
-                        {
-                            queryResult.putDouble("insertId", insertId);
-                            queryResult.putInt("rowsAffected", 1);
-                        } else
-                        {
-                            queryResult.putInt("rowsAffected", 0);
-                        }
-                    } catch (SQLiteException ex)
+                    boolean isReadOnly()
                     {
-                        // report error result with the error message
-                        // could be constraint violation or some other error
-                        errorMessage = ex.getMessage();
-                        FLog.e(TAG, "SQLiteDatabase.executeInsert() failed", ex);
-                    } finally
-                    {
-                        closeQuietly(myStatement);
+                        return true;
                     }
-                } else if (queryType == QueryType.begin)
+                }, cbc);
+                break;
+
+            case copyTable:
+                this.manager.copyTable(SQLitePluginConverter.getString(args, "source", ""),
+                        SQLitePluginConverter.getString(args, "dbname", ""),
+                        SQLitePluginConverter.getString(args, "table", ""),
+                        SQLitePluginConverter.getString(args, "where", ""),
+                        StatementParams.decode((ReadableArray) SQLitePluginConverter.get(args, "params", null)),
+                        SQLitePluginConverter.getString(args, "onConflict", "").toUpperCase(), cbc);
+                break;
+
+            case registerLiveQuery:
+                dbname = SQLitePluginConverter.getString(args, "dbname", "");
+                ReadableArray liveTables = (ReadableArray) SQLitePluginConverter.get(args, "tables", null);
+                final LiveQuery liveQuery = new LiveQuery(
+                        SQLitePluginConverter.getString(args, "id", ""),
+                        SQLitePluginConverter.getString(args, "sql", ""),
+                        StatementParams.decode((ReadableArray) SQLitePluginConverter.get(args, "params", null)),
+                        SQLitePluginConverter.getString(args, "key", "id"),
+                        (liveTables != null) ? liveTables.toArrayList() : null);
+
+                this.manager.queueTask(dbname, new DBTask()
                 {
-                    needRawQuery = false;
-                    try
+                    public void run(DBRunner r, CallbackContext cbc)
                     {
-                        mydb.beginTransaction();
+                        cbc.success(r.addLiveQuery(liveQuery));
+                    }
 
-                        queryResult = Arguments.createMap();
-                        queryResult.putInt("rowsAffected", 0);
-                    } catch (SQLiteException ex)
+                    boolean isReadOnly()
                     {
-                        errorMessage = ex.getMessage();
-                        FLog.e(TAG, "SQLiteDatabase.beginTransaction() failed", ex);
+                        return true;
                     }
-                } else if (queryType == QueryType.commit)
+                }, cbc);
+                break;
+
+            case unregisterLiveQuery:
+                dbname = SQLitePluginConverter.getString(args, "dbname", "");
+                final String liveQueryId = SQLitePluginConverter.getString(args, "id", "");
+
+                this.manager.queueTask(dbname, new DBTask()
                 {
-                    needRawQuery = false;
-                    try
+                    public void run(DBRunner r, CallbackContext cbc)
                     {
-                        mydb.setTransactionSuccessful();
-                        mydb.endTransaction();
+                        r.liveQueries.remove(liveQueryId);
+                        cbc.success("live query removed");
+                    }
 
-                        queryResult = Arguments.createMap();
-                        queryResult.putInt("rowsAffected", 0);
-                    } catch (SQLiteException ex)
+                    boolean isReadOnly()
                     {
-                        errorMessage = ex.getMessage();
-                        FLog.e(TAG, "SQLiteDatabase.setTransactionSuccessful/endTransaction() failed", ex);
+                        return true;
                     }
-                } else if (queryType == QueryType.rollback)
+                }, cbc);
+                break;
+
+            case migrateCipher:
+                dbname = SQLitePluginConverter.getString(args, "dbname", "");
+
+                this.manager.queueTask(dbname, new DBTask()
                 {
-                    needRawQuery = false;
-                    try
+                    public void run(DBRunner r, CallbackContext cbc) throws Exception
                     {
-                        mydb.endTransaction();
+                        cbc.success(r.migrateCipher() ? "database migrated" : "database already migrated");
+                    }
+                }, cbc);
+                break;
 
-                        queryResult = Arguments.createMap();
-                        queryResult.putInt("rowsAffected", 0);
-                    } catch (SQLiteException ex)
+            case rekey:
+                dbname = SQLitePluginConverter.getString(args, "dbname", "");
+                final String newKey = SQLitePluginConverter.getString(args, "key", null);
+                final Properties newSettings = new Properties();
+                newSettings.setProperty(DBManager.CIPHER_VERSION, "4");
+                String cipherPageSize = SQLitePluginConverter.getString(args, "cipherPageSize", null);
+                if (cipherPageSize != null)
+                    newSettings.setProperty("cipher_page_size", cipherPageSize);
+                String kdfIter = SQLitePluginConverter.getString(args, "kdfIter", null);
+                if (kdfIter != null)
+                    newSettings.setProperty("kdf_iter", kdfIter);
+
+                this.manager.queueTask(dbname, new DBTask()
+                {
+                    public void run(DBRunner r, CallbackContext cbc) throws Exception
                     {
-                        errorMessage = ex.getMessage();
-                        FLog.e(TAG, "SQLiteDatabase.endTransaction() failed", ex);
+                        r.startRekey(newKey, newSettings, cbc);
                     }
-                }
+                }, cbc);
+                break;
 
-                // raw query for other statements:
-                if (needRawQuery)
-                {
-                    queryResult = this.executeSqlStatementQuery(mydb, query, queryParams != null ? queryParams[i] : null, cbc);
-                }
-            } catch (Exception ex)
-            {
-                errorMessage = ex.getMessage();
-                FLog.e(TAG, "SQLitePlugin.executeSql[Batch](): failed", ex);
-            }
+            case backup:
+                dbname = SQLitePluginConverter.getString(args, "dbname", "");
+                File backupFile = this.manager.resolveFile(SQLitePluginConverter.getString(args, "path", ""));
+                int pagesPerStep = Integer.parseInt(SQLitePluginConverter.getString(args, "pagesPerStep", "256"));
 
-            if (queryResult != null)
-            {
-                WritableMap r = Arguments.createMap();
-                r.putString("qid", query_id);
+                this.manager.queueTask(dbname, new Backup(dbname, backupFile, pagesPerStep, cbc), cbc);
+                break;
 
-                r.putString("type", "success");
-                r.putMap("result", queryResult);
+            case restore:
+                dbname = SQLitePluginConverter.getString(args, "dbname", "");
+                File restoreFile = this.manager.resolveFile(SQLitePluginConverter.getString(args, "path", ""));
 
-                batchResults.pushMap(r);
-            } else
-            {
-                WritableMap r = Arguments.createMap();
-                r.putString("qid", query_id);
-                r.putString("type", "error");
+                this.manager.restoreDatabase(dbname, restoreFile, cbc);
+                break;
 
-                WritableMap er = Arguments.createMap();
-                er.putString("message", errorMessage);
-                r.putMap("result", er);
+            case importFile:
+                dbname = SQLitePluginConverter.getString(args, "dbname", "");
+                ReadableMap columnMap = (ReadableMap) SQLitePluginConverter.get(args, "columnMap", null);
 
-                batchResults.pushMap(r);
-            }
-        }
+                this.manager.queueTask(dbname, new Import(dbname,
+                        SQLitePluginConverter.getString(args, "table", ""),
+                        this.manager.resolveFile(SQLitePluginConverter.getString(args, "path", "")),
+                        SQLitePluginConverter.getString(args, "format", "ndjson"),
+                        (columnMap != null) ? columnMap.toHashMap() : null,
+                        args.toHashMap(), cbc), cbc);
+                break;
 
-        cbc.success(batchResults);
-    }
+            case exportQuery:
+                dbname = SQLitePluginConverter.getString(args, "dbname", "");
 
+                this.manager.queueTask(dbname, new Export(
+                        SQLitePluginConverter.getString(args, "sql", ""),
+                        StatementParams.decode((ReadableArray) SQLitePluginConverter.get(args, "params", null)),
+                        this.manager.resolveFile(SQLitePluginConverter.getString(args, "path", "")),
+                        SQLitePluginConverter.getString(args, "format", "ndjson"),
+                        SQLitePluginConverter.getBoolean(args, "gzip", false)), cbc);
+                break;
 
-    private QueryType getQueryType(String query)
-    {
-        Matcher matcher = FIRST_WORD.matcher(query);
-        if (matcher.find())
-        {
-            try
-            {
-                return QueryType.valueOf(matcher.group(1).toLowerCase());
-            } catch (IllegalArgumentException ignore)
-            {
-                // unknown verb
-            }
-        }
-        return QueryType.other;
-    }
+            case writeBlobFromFile:
+            case readBlobToFile:
+                dbname = SQLitePluginConverter.getString(args, "dbname", "");
+
+                this.manager.queueTask(dbname, new BlobTransfer(action == Action.writeBlobFromFile,
+                        SQLitePluginConverter.getString(args, "table", ""),
+                        SQLitePluginConverter.getString(args, "column", ""),
+                        Long.parseLong(SQLitePluginConverter.getString(args, "rowid", "0")),
+                        this.manager.resolveFile(SQLitePluginConverter.getString(args, "path", "")),
+                        Math.max(Integer.parseInt(SQLitePluginConverter.getString(args, "chunkSize",
+                                String.valueOf(BlobTransfer.MAX_CHUNK_SIZE))), 1)), cbc);
+                break;
 
-    private void bindArgsToStatement(SQLiteStatement myStatement, ReadableArray sqlArgs)
-    {
-        for (int i = 0; i < sqlArgs.size(); i++)
-        {
-            ReadableType type = sqlArgs.getType(i);
-            if (type == ReadableType.Number)
-            {
-                double tmp = sqlArgs.getDouble(i);
-                if (tmp == (long) tmp)
+            case getMetrics:
+                // counters are thread safe, no need to go through the db queue
+                dbname = SQLitePluginConverter.getString(args, "dbname", null);
+                if (dbname != null)
                 {
-                    myStatement.bindLong(i + 1, (long) tmp);
+                    DBRunner runner = DBManager.dbrmap.get(dbname);
+                    if (runner != null)
+                    {
+                        cbc.success(runner.metrics.toMap());
+                    } else
+                    {
+                        cbc.error("database not open");
+                    }
                 } else
                 {
-                    myStatement.bindDouble(i + 1, tmp);
+                    Map<String, Object> allMetrics = new HashMap<String, Object>();
+                    for (DBRunner runner : DBManager.dbrmap.values())
+                    {
+                        allMetrics.put(runner.dbname, runner.metrics.toMap());
+                    }
+                    cbc.success(allMetrics);
                 }
-            } else if (sqlArgs.isNull(i))
-            {
-                myStatement.bindNull(i + 1);
-            } else
-            {
-                myStatement.bindString(i + 1, SQLitePluginConverter.getString(sqlArgs, i, ""));
-            }
-        }
-    }
+                break;
 
-    /**
-     * Execute Sql Statement Query
-     *
-     * @param mydb        - database
-     * @param query       - SQL query to execute
-     * @param queryParams - parameters to the query
-     * @param cbc         - callback object
-     * @return results in string form
-     */
-    private WritableMap executeSqlStatementQuery(SQLiteDatabase mydb,
-                                                 String query, ReadableArray queryParams,
-                                                 CallbackContext cbc) throws Exception
-    {
-        WritableMap rowsResult = Arguments.createMap();
+            case getEngineStats:
+                dbname = SQLitePluginConverter.getString(args, "dbname", "");
 
-        Cursor cur = null;
-        try
-        {
-            try
-            {
-                String[] params;
+                this.manager.queueTask(dbname, new DBTask()
+                {
+                    public void run(DBRunner r, CallbackContext cbc) throws Exception
+                    {
+                        cbc.success(r.getEngineStats());
+                    }
+
+                    boolean isReadOnly()
+                    {
+                        return true;
+                    }
+                }, cbc);
+                break;
 
-                params = new String[queryParams.size()];
+            case startTracing:
+                DBManager.trace.start(Integer.parseInt(SQLitePluginConverter.getString(args, "capacity", "100000")));
+                cbc.success("tracing started");
+                break;
 
-                for (int j = 0; j < queryParams.size(); j++)
+            case stopTracing:
+                if (!DBManager.trace.isEnabled())
                 {
-                    if (queryParams.isNull(j))
-                        params[j] = "";
-                    else
-                        params[j] = SQLitePluginConverter.getString(queryParams,j,"");
+                    cbc.error("tracing not started");
+                    break;
                 }
+                File traceFile = this.manager.resolveFile(SQLitePluginConverter.getString(args, "path", "sqlite-trace.json"));
+                Map<String, Object> traceResult = new HashMap<String, Object>();
+                traceResult.put("count", (double) DBManager.trace.stop(traceFile));
+                traceResult.put("path", traceFile.getAbsolutePath());
+                cbc.success(traceResult);
+                break;
 
-                cur = mydb.rawQuery(query, params);
-            } catch (Exception ex)
-            {
-                ex.printStackTrace();
-                String errorMessage = ex.getMessage();
-                FLog.v(TAG, "SQLitePlugin.executeSql[Batch](): Error=" + errorMessage);
-                throw ex;
-            }
-
-            // If query result has rows
-            if (cur != null && cur.moveToFirst())
-            {
-                WritableArray rowsArrayResult = Arguments.createArray();
-                String key;
-                int colCount = cur.getColumnCount();
-
-                // Build up JSON result object for each row
-                do
+            case runLoadTest:
+                final LoadGenerator loadGenerator = new LoadGenerator(getEngine(), args.toHashMap());
+                // waits for the db threads, so it must not block the bridge:
+                getThreadPool().execute(new Runnable()
                 {
-                    WritableMap row = Arguments.createMap();
-                    for (int i = 0; i < colCount; ++i)
+                    public void run()
                     {
-                        key = cur.getColumnName(i);
-                        bindRow(row, key, cur, i);
-
+                        try
+                        {
+                            cbc.success(loadGenerator.run());
+                        } catch (Exception e)
+                        {
+                            FLog.e(TAG, "load test failed", e);
+                            cbc.error("load test failed: " + e.getMessage());
+                        }
                     }
+                });
+                break;
 
-                    rowsArrayResult.pushMap(row);
-                } while (cur.moveToNext());
+            case startRecording:
+                File recordingFile = this.manager.resolveFile(SQLitePluginConverter.getString(args, "path", "sqlite-workload.ndjson"));
+                if (DBManager.recorder.isEnabled())
+                {
+                    cbc.error("already recording");
+                    break;
+                }
+                DBManager.recorder.start(recordingFile, SQLitePluginConverter.getBoolean(args, "values", false));
+                cbc.success(recordingFile.getAbsolutePath());
+                break;
 
-                rowsResult.putArray("rows", rowsArrayResult);
+            case stopRecording:
+                if (!DBManager.recorder.isEnabled())
+                {
+                    cbc.error("not recording");
+                    break;
+                }
+                Map<String, Object> recordingResult = new HashMap<String, Object>();
+                recordingResult.put("count", (double) DBManager.recorder.stop());
+                cbc.success(recordingResult);
+                break;
 
-            }
-        } finally
-        {
-            closeQuietly(cur);
+            case replayWorkload:
+                final WorkloadReplayer replayer = new WorkloadReplayer(getEngine(),
+                        this.manager.resolveFile(SQLitePluginConverter.getString(args, "path", "sqlite-workload.ndjson")),
+                        getContext().getDatabasePath("replay").getParentFile(), args.toHashMap());
+                // waits for the db threads, so it must not block the bridge:
+                getThreadPool().execute(new Runnable()
+                {
+                    public void run()
+                    {
+                        try
+                        {
+                            cbc.success(replayer.run());
+                        } catch (Exception e)
+                        {
+                            FLog.e(TAG, "workload replay failed", e);
+                            cbc.error("workload replay failed: " + e.getMessage());
+                        }
+                    }
+                });
+                break;
+
+            case getSlowQueries:
+                // the log is synchronized, no need to go through the db queue
+                dbname = SQLitePluginConverter.getString(args, "dbname", "");
+                DBRunner slowRunner = DBManager.dbrmap.get(dbname);
+                if (slowRunner == null)
+                {
+                    cbc.error("database not open");
+                } else if (slowRunner.slowQueries == null)
+                {
+                    cbc.error("slow query log not enabled (slowQueryThreshold open option)");
+                } else
+                {
+                    String slowPath = SQLitePluginConverter.getString(args, "path", null);
+                    if (slowPath != null)
+                    {
+                        File slowFile = this.manager.resolveFile(slowPath);
+                        Map<String, Object> result = new HashMap<String, Object>();
+                        result.put("path", slowFile.getAbsolutePath());
+                        result.put("count", (double) slowRunner.slowQueries.writeTo(slowFile));
+                        cbc.success(result);
+                    } else
+                    {
+                        cbc.success(slowRunner.slowQueries.toList());
+                    }
+                    if (SQLitePluginConverter.getBoolean(args, "clear", false))
+                        slowRunner.slowQueries.clear();
+                }
+                break;
         }
 
-        return rowsResult;
+        return true;
     }
 
-    @SuppressLint("NewApi")
-    private void bindRow(WritableMap row, String key, Cursor cur, int i)
+    /**
+     * Clean up and close all open databases.
+     *
+     * Each database is closed in its own db thread, once the requests already queued are done.
+     */
+    public void closeAllOpenDatabases()
     {
-        int curType = cur.getType(i);
-
-        switch (curType)
-        {
-            case Cursor.FIELD_TYPE_NULL:
-                row.putNull(key);
-                break;
-            case Cursor.FIELD_TYPE_INTEGER:
-                row.putDouble(key, cur.getLong(i));
-                break;
-            case Cursor.FIELD_TYPE_FLOAT:
-                row.putDouble(key, cur.getDouble(i));
-                break;
-            case Cursor.FIELD_TYPE_BLOB:
-                row.putString(key, new String(Base64.encode(cur.getBlob(i), Base64.DEFAULT)));
-                break;
-            case Cursor.FIELD_TYPE_STRING:
-            default: /* (not expected) */
-                row.putString(key, cur.getString(i));
-                break;
-        }
+        this.manager.closeAllOpenDatabases();
     }
 
-    private void closeQuietly(Closeable closeable)
+    /**
+     * Put a batch (args: dbargs.dbname, executes, atomic) in the queue of its database, to be executed
+     * in the db thread.
+     *
+     * @param standalone - run it as an atomic batch that can't be nested in an open transaction
+     */
+    private void queueBatch(ReadableMap args, boolean standalone, CallbackContext cbc)
     {
-        if (closeable != null)
+        String[] queries;
+        String[] queryIDs = null;
+
+        StatementParams[] queryParams = null;
+        long[] cursorWindowSizes = null;
+        boolean[] resolveParams = null;
+        String[] skipConditions = null;
+
+        ReadableMap dbArgs = (ReadableMap) SQLitePluginConverter.get(args,"dbargs",null);
+        String dbname = SQLitePluginConverter.getString(dbArgs,"dbname","");
+        ReadableArray txArgs = (ReadableArray) SQLitePluginConverter.get(args,"executes",null);
+        DBRunner r = DBManager.dbrmap.get(dbname);
+        String unregistered = null;
+
+        if (txArgs == null || txArgs.size() == 0 || txArgs.isNull(0))
         {
-            try
-            {
-                closeable.close();
-            } catch (IOException ex)
+            queries = new String[0];
+        } else
+        {
+            int len = txArgs.size();
+            queries = new String[len];
+            queryIDs = new String[len];
+            queryParams = new StatementParams[len];
+            cursorWindowSizes = new long[len];
+            String defaultWindowSize = (r != null) ? String.valueOf(r.cursorWindowSize) : "0";
+
+            for (int i = 0; i < len; i++)
             {
-                // ignore
-            }
-        }
-    }
+                ReadableMap queryArgs = (ReadableMap) SQLitePluginConverter.get(txArgs,i,null);
+                String name = SQLitePluginConverter.getString(queryArgs,"name",null);
+                if (name == null)
+                {
+                    queries[i] = SQLitePluginConverter.getString(queryArgs,"sql","");
+                } else
+                {
+                    // registered query:
+                    queries[i] = (r != null) ? r.registeredQueries.get(name) : null;
+                    if (queries[i] == null && unregistered == null)
+                        unregistered = name;
+                }
+                queryIDs[i] = SQLitePluginConverter.getString(queryArgs,"qid","");
+                // (decoded here rather than in the db thread, which only binds them)
+                queryParams[i] = StatementParams.decode((ReadableArray) SQLitePluginConverter.get(queryArgs,"params",null));
+                cursorWindowSizes[i] = Long.parseLong(SQLitePluginConverter.getString(queryArgs,"cursorWindowSize",defaultWindowSize));
 
-    private class DBRunner implements Runnable
-    {
-        final String dbname;
-        final String key;
-        final int openFlags;
-        private String assetFilename;
-        private boolean androidLockWorkaround;
-        final BlockingQueue<DBQuery> q;
-        final CallbackContext openCbc;
-
-        SQLiteDatabase mydb;
-
-        DBRunner(final String dbname, final String key, ReadableMap options, CallbackContext cbc)
-        {
-            this.dbname = dbname;
-            this.key = key;
-            int openFlags = SQLiteDatabase.OPEN_READWRITE | SQLiteDatabase.CREATE_IF_NECESSARY;
-            try
-            {
-                this.assetFilename = SQLitePluginConverter.getString(options,"assetFilename",null);
-                if (this.assetFilename != null && this.assetFilename.length() > 0)
+                // references to the results of earlier statements, if any:
+                if (SQLitePluginConverter.getBoolean(queryArgs,"refs",false))
                 {
-                    boolean readOnly = SQLitePluginConverter.getBoolean(options,"readOnly",false);
-                    openFlags = readOnly ? SQLiteDatabase.OPEN_READONLY : openFlags;
+                    resolveParams = (resolveParams != null) ? resolveParams : new boolean[len];
+                    resolveParams[i] = true;
+                }
+                String skipIf = SQLitePluginConverter.getString(queryArgs,"skipIf",null);
+                if (skipIf != null)
+                {
+                    skipConditions = (skipConditions != null) ? skipConditions : new String[len];
+                    skipConditions[i] = skipIf;
                 }
-            } catch (Exception ex)
-            {
-                FLog.v(TAG, "Error retrieving assetFilename this.mode from options:", ex);
             }
-            this.openFlags = openFlags;
-            this.androidLockWorkaround = SQLitePluginConverter.getBoolean(options,"androidLockWorkaround",false);
-            if (this.androidLockWorkaround)
-                FLog.v(TAG, "Android db closing/locking workaround applied");
-
-            this.q = new LinkedBlockingQueue<DBQuery>();
-            this.openCbc = cbc;
         }
 
-        public void run()
+        if (unregistered != null && r != null)
         {
-            try
+            // fail the whole batch, without running any of it:
+            List<Map<String, Object>> batchResults = new ArrayList<Map<String, Object>>();
+            for (int i = 0; i < queries.length; i++)
             {
-
-                this.mydb = openDatabase(dbname, this.key, this.assetFilename, this.openFlags, this.openCbc, false);
-            } catch (Exception e)
-            {
-                FLog.e(TAG, "unexpected error, stopping db thread", e);
-                dbrmap.remove(dbname);
-                return;
+                BatchExecutor.pushResult(batchResults, queryIDs[i], null, (queries[i] == null) ?
+                        "query not registered" : "not executed: query not registered: " + unregistered);
             }
+            cbc.success(batchResults);
+            return;
+        }
 
-            DBQuery dbq = null;
-
-            try
-            {
-                dbq = q.take();
-
-                while (!dbq.stop)
-                {
-                    executeSqlBatch(dbname, dbq.queries, dbq.queryParams, dbq.queryIDs, dbq.cbc);
+        // put db query in the queue to be executed in the db thread:
+        DBQuery q = new DBQuery(queries, queryIDs, queryParams, cursorWindowSizes, cbc);
+        q.atomic = standalone || SQLitePluginConverter.getBoolean(args,"atomic",false);
+        q.standalone = standalone;
+        q.resolveParams = resolveParams;
+        q.skipConditions = skipConditions;
+        this.manager.queueBatch(dbname, q);
+    }
 
-                    // XXX workaround for Android locking/closing issue:
-                    if (androidLockWorkaround && dbq.queries.length == 1 && dbq.queries[0].equals("COMMIT"))
-                    {
-                        closeDatabaseNow(dbname);
-                        this.mydb = openDatabase(dbname, this.key, "", this.openFlags, null, false);
-                    }
+    /**
+     * Queue independent transactions, possibly for different databases, in one call; each is run
+     * as a standalone atomic batch by the thread of its database. Their results are reported
+     * together when all are done, in order: {type: "success", result: [statement results]}
+     * or {type: "error", result: {message}}.
+     */
+    private void submitTransactions(ReadableMap args, final CallbackContext cbc)
+    {
+        ReadableArray transactions = (ReadableArray) SQLitePluginConverter.get(args, "transactions", null);
+        final int count = (transactions != null) ? transactions.size() : 0;
+        if (count == 0)
+        {
+            cbc.success(new ArrayList<Object>());
+            return;
+        }
 
-                    dbq = q.take();
-                }
-            } catch (Exception e)
-            {
-                FLog.e(TAG, "unexpected error", e);
-            }
+        final Object[] results = new Object[count];
+        final String[] errors = new String[count];
+        final AtomicInteger remaining = new AtomicInteger(count);
 
-            if (dbq != null && dbq.close)
+        for (int i = 0; i < count; i++)
+        {
+            final int index = i;
+            queueBatch(transactions.getMap(i), true, new CallbackContext(new SQLiteEngine.ResultCallback()
             {
-                try
+                public void success(Object result)
                 {
-                    closeDatabaseNow(dbname);
-
-                    dbrmap.remove(dbname); // (should) remove ourself
+                    results[index] = result;
+                    if (remaining.decrementAndGet() == 0)
+                        cbc.success(toSubmittedResults(results, errors));
+                }
 
-                    if (!dbq.delete)
-                    {
-                        dbq.cbc.success("database removed");
-                    } else
-                    {
-                        try
-                        {
-                            boolean deleteResult = deleteDatabaseNow(dbname);
-                            if (deleteResult)
-                            {
-                                dbq.cbc.success("database removed");
-                            } else
-                            {
-                                dbq.cbc.error("couldn't delete database");
-                            }
-                        } catch (Exception e)
-                        {
-                            FLog.e(TAG, "couldn't delete database", e);
-                            dbq.cbc.error("couldn't delete database: " + e);
-                        }
-                    }
-                } catch (Exception e)
+                public void error(String message)
                 {
-                    FLog.e(TAG, "couldn't close database", e);
-                    if (dbq.cbc != null)
-                    {
-                        dbq.cbc.error("couldn't close database: " + e);
-                    }
+                    errors[index] = message;
+                    if (remaining.decrementAndGet() == 0)
+                        cbc.success(toSubmittedResults(results, errors));
                 }
-            }
+            }));
         }
     }
 
-    private final class DBQuery
+    private static List<Map<String, Object>> toSubmittedResults(Object[] results, String[] errors)
     {
-        // XXX TODO replace with DBRunner action enum:
-        final boolean stop;
-        final boolean close;
-        final boolean delete;
-        final String[] queries;
-        final String[] queryIDs;
-        final ReadableArray[] queryParams;
-        final CallbackContext cbc;
-
-        DBQuery(String[] myqueries, String[] qids, ReadableArray[] params, CallbackContext c)
-        {
-            this.stop = false;
-            this.close = false;
-            this.delete = false;
-            this.queries = myqueries;
-            this.queryIDs = qids;
-            this.queryParams = params;
-            this.cbc = c;
-        }
-
-        DBQuery(boolean delete, CallbackContext cbc)
+        List<Map<String, Object>> submitted = new ArrayList<Map<String, Object>>();
+        for (int i = 0; i < results.length; i++)
         {
-            this.stop = true;
-            this.close = true;
-            this.delete = delete;
-            this.queries = null;
-            this.queryIDs = null;
-            this.queryParams = null;
-            this.cbc = cbc;
-        }
-
-        // signal the DBRunner thread to stop:
-        DBQuery()
-        {
-            this.stop = true;
-            this.close = false;
-            this.delete = false;
-            this.queries = null;
-            this.queryIDs = null;
-            this.queryParams = null;
-            this.cbc = null;
+            Map<String, Object> r = new HashMap<String, Object>();
+            if (errors[i] != null)
+            {
+                Map<String, Object> er = new HashMap<String, Object>();
+                er.put("message", errors[i]);
+                r.put("type", "error");
+                r.put("result", er);
+            } else
+            {
+                r.put("type", "success");
+                r.put("result", results[i]);
+            }
+            submitted.add(r);
         }
+        return submitted;
     }
 
     private enum Action
@@ -1137,18 +1210,30 @@ public class SQLitePlugin extends ReactContextBaseJavaModule
         delete,
         executeSqlBatch,
         backgroundExecuteSqlBatch,
+        registerLiveQuery,
+        unregisterLiveQuery,
+        migrateCipher,
+        rekey,
+        backup,
+        restore,
+        importFile,
+        exportQuery,
+        writeBlobFromFile,
+        readBlobToFile,
+        getMetrics,
+        getSlowQueries,
+        getEngineStats,
+        startTracing,
+        stopTracing,
+        runLoadTest,
+        startRecording,
+        stopRecording,
+        replayWorkload,
+        submitTransactions,
+        registerQueries,
+        attachDatabase,
+        detachDatabase,
+        copyTable,
         echoStringValue
     }
-
-    private enum QueryType
-    {
-        update,
-        insert,
-        delete,
-        select,
-        begin,
-        commit,
-        rollback,
-        other
-    }
 }
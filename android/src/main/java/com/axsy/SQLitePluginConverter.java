@@ -6,6 +6,8 @@
 
 package com.axsy;
 
+import java.util.Map;
+
 import com.facebook.react.bridge.NoSuchKeyException;
 import com.facebook.react.bridge.ReadableArray;
 import com.facebook.react.bridge.ReadableMap;
@@ -85,6 +87,53 @@ public abstract class SQLitePluginConverter {
         }
     }
 
+    /**
+     * Returns the value at {@code key} if it exists, coercing it if
+     * necessary.
+     */
+    static String getString(Map<String, Object> map, String key, String defaultValue) {
+        if (map == null || !map.containsKey(key)){
+            return defaultValue;
+        }
+        Object value = map.get(key);
+        if (value instanceof Long || value instanceof Integer || value instanceof Short || value instanceof Byte) {
+            return String.valueOf(((Number) value).longValue());
+        } else if (value instanceof Number) {
+            double number = ((Number) value).doubleValue();
+            if (number == (long) number) {
+                return String.valueOf((long) number);
+            } else {
+                return String.valueOf(number);
+            }
+        } else if (value instanceof Boolean || value instanceof String) {
+            return String.valueOf(value);
+        } else if (value == null) {
+            return null;
+        }
+        return defaultValue;
+    }
+
+    /**
+     * Returns the value at {@code key} if it exists, coercing it if
+     * necessary.
+     */
+    static boolean getBoolean(Map<String, Object> map, String key, boolean defaultValue) {
+        if (map == null || !map.containsKey(key)){
+            return defaultValue;
+        }
+        Object value = map.get(key);
+        if (value instanceof Boolean) {
+            return (Boolean) value;
+        } else if (value instanceof String) {
+            return "true".equalsIgnoreCase((String) value);
+        } else if (value instanceof Number) {
+            return ((Number) value).doubleValue() != 0;
+        } else if (value == null) {
+            return false;
+        }
+        return defaultValue;
+    }
+
     /**
      * Returns the value at {@code index} if it exists, coercing it if
      * necessary.
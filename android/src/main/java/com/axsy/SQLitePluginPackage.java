@@ -17,9 +17,12 @@ import java.util.ArrayList;
 import java.util.Collections;
 
 import java.util.List;
+import java.util.Map;
 
 public class SQLitePluginPackage implements ReactPackage {
 
+    private final List<Map<String, Object>> prewarm;
+
     /**
      * @deprecated, use method without activity
      * activity parameter is ignored
@@ -29,6 +32,16 @@ public class SQLitePluginPackage implements ReactPackage {
     }
 
     public SQLitePluginPackage() {
+        this((List<Map<String, Object>>) null);
+    }
+
+    /**
+     * @param prewarm databases to open as soon as the module is created, before JS asks for them:
+     *                open options as for the JS openDatabase ("name", "key", ...), plus "warm" (list of
+     *                tables and indexes whose pages are read into the cache) and "cacheSize" (PRAGMA cache_size)
+     */
+    public SQLitePluginPackage(List<Map<String, Object>> prewarm) {
+        this.prewarm = prewarm;
     }
 
     @Override
@@ -36,7 +49,7 @@ public class SQLitePluginPackage implements ReactPackage {
                                 ReactApplicationContext reactContext) {
       List<NativeModule> modules = new ArrayList<>();
 
-      modules.add(new SQLitePlugin(reactContext));
+      modules.add(new SQLitePlugin(reactContext, prewarm));
 
       return modules;
     }
@@ -0,0 +1,150 @@
+/**
+ * Copyright (c) 2020, Axsy
+ */
+
+package com.axsy;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.json.JSONObject;
+
+/**
+ * Bounded in-memory log of the statements that took longer than a threshold,
+ * with their (redacted) parameters and query plan.
+ *
+ * Entries are added from the db thread and read from the bridge thread.
+ */
+final class SlowQueryLog
+{
+    final long thresholdMillis;
+    private final int capacity;
+    private final ArrayDeque<Entry> entries;
+
+    SlowQueryLog(long thresholdMillis, int capacity)
+    {
+        this.thresholdMillis = thresholdMillis;
+        this.capacity = Math.max(capacity, 1);
+        this.entries = new ArrayDeque<Entry>(this.capacity);
+    }
+
+    static final class Entry
+    {
+        final long timestamp;
+        final String sql;
+        final String params;
+        final double durationMillis;
+        final int rowsReturned;
+        final int rowsAffected;
+        final List<String> plan;
+
+        Entry(String sql, String params, double durationMillis, int rowsReturned, int rowsAffected, List<String> plan)
+        {
+            this.timestamp = System.currentTimeMillis();
+            this.sql = sql;
+            this.params = params;
+            this.durationMillis = durationMillis;
+            this.rowsReturned = rowsReturned;
+            this.rowsAffected = rowsAffected;
+            this.plan = plan;
+        }
+
+        /**
+         * @return whether the plan has a full table scan (SCAN without an index)
+         */
+        boolean hasFullScan()
+        {
+            for (String step : this.plan)
+            {
+                if (step.startsWith("SCAN ") && !step.contains(" USING "))
+                    return true;
+            }
+            return false;
+        }
+    }
+
+    synchronized void add(Entry entry)
+    {
+        if (this.entries.size() == this.capacity)
+            this.entries.removeFirst();
+        this.entries.addLast(entry);
+    }
+
+    synchronized void clear()
+    {
+        this.entries.clear();
+    }
+
+    synchronized List<Map<String, Object>> toList()
+    {
+        List<Map<String, Object>> result = new ArrayList<Map<String, Object>>();
+        for (Entry entry : this.entries)
+        {
+            Map<String, Object> map = new HashMap<String, Object>();
+            map.put("timestamp", (double) entry.timestamp);
+            map.put("sql", entry.sql);
+            map.put("params", entry.params);
+            map.put("durationMillis", entry.durationMillis);
+            map.put("rowsReturned", (double) entry.rowsReturned);
+            map.put("rowsAffected", (double) entry.rowsAffected);
+            map.put("fullScan", entry.hasFullScan());
+            map.put("plan", new ArrayList<String>(entry.plan));
+            result.add(map);
+        }
+        return result;
+    }
+
+    /**
+     * Dump the log to a file, one JSON object per entry.
+     *
+     * @return number of entries written
+     */
+    synchronized int writeTo(File file) throws IOException
+    {
+        file.getAbsoluteFile().getParentFile().mkdirs();
+        Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), "UTF-8"));
+        try
+        {
+            for (Entry entry : this.entries)
+            {
+                StringBuilder plan = new StringBuilder("[");
+                for (int i = 0; i < entry.plan.size(); i++)
+                {
+                    plan.append(i == 0 ? "" : ",").append(JSONObject.quote(entry.plan.get(i)));
+                }
+                plan.append("]");
+
+                writer.write("{\"timestamp\":" + entry.timestamp +
+                        ",\"sql\":" + JSONObject.quote(entry.sql) +
+                        ",\"params\":" + JSONObject.quote(entry.params) +
+                        ",\"durationMillis\":" + entry.durationMillis +
+                        ",\"rowsReturned\":" + entry.rowsReturned +
+                        ",\"rowsAffected\":" + entry.rowsAffected +
+                        ",\"fullScan\":" + entry.hasFullScan() +
+                        ",\"plan\":" + plan + "}\n");
+            }
+            return this.entries.size();
+        } finally
+        {
+            writer.close();
+        }
+    }
+
+    /**
+     * @return the shape of the parameters of a statement, without their values
+     * (e.g. "[number, string(12), null]")
+     */
+    static String redact(StatementParams params)
+    {
+        return (params != null) ? params.shape() : "[]";
+    }
+}
@@ -0,0 +1,232 @@
+/**
+ * Copyright (c) 2020, Axsy
+ */
+
+package com.axsy;
+
+import net.sqlcipher.database.SQLiteStatement;
+
+import com.facebook.react.bridge.ReadableArray;
+import com.facebook.react.bridge.ReadableType;
+
+/**
+ * Parameters of a statement, decoded from the bridge array when the batch is queued (on the bridge
+ * thread) so that the db thread only binds them: a type tag per parameter, and its value at the same
+ * position in the array of its type (allocated only if the type is used).
+ *
+ * Values are bound as the bridge array values were: integral numbers as integers, other numbers as
+ * reals, and anything else that is not null as text.
+ */
+final class StatementParams
+{
+    static final byte NULL = 0;
+    static final byte LONG = 1;
+    static final byte DOUBLE = 2;
+    static final byte STRING = 3;
+
+    private final byte[] types;
+    private final long[] longs;
+    private final double[] doubles;
+    private final String[] strings;
+
+    private StatementParams(byte[] types, long[] longs, double[] doubles, String[] strings)
+    {
+        this.types = types;
+        this.longs = longs;
+        this.doubles = doubles;
+        this.strings = strings;
+    }
+
+    /**
+     * @return the decoded parameters, null for none
+     */
+    static StatementParams decode(ReadableArray array)
+    {
+        if (array == null)
+            return null;
+
+        int size = array.size();
+        byte[] types = new byte[size];
+        long[] longs = null;
+        double[] doubles = null;
+        String[] strings = null;
+        for (int i = 0; i < size; i++)
+        {
+            ReadableType type = array.getType(i);
+            if (type == ReadableType.Number)
+            {
+                double value = array.getDouble(i);
+                if (value == (long) value)
+                {
+                    longs = (longs != null) ? longs : new long[size];
+                    longs[i] = (long) value;
+                    types[i] = LONG;
+                } else
+                {
+                    doubles = (doubles != null) ? doubles : new double[size];
+                    doubles[i] = value;
+                    types[i] = DOUBLE;
+                }
+            } else if (type == ReadableType.Null)
+            {
+                types[i] = NULL;
+            } else
+            {
+                strings = (strings != null) ? strings : new String[size];
+                strings[i] = SQLitePluginConverter.getString(array, i, "");
+                types[i] = STRING;
+            }
+        }
+        return new StatementParams(types, longs, doubles, strings);
+    }
+
+    /**
+     * @param values - Number, String or null values (others are bound as text)
+     */
+    static StatementParams of(Object[] values)
+    {
+        int size = values.length;
+        byte[] types = new byte[size];
+        long[] longs = new long[size];
+        double[] doubles = new double[size];
+        String[] strings = new String[size];
+        for (int i = 0; i < size; i++)
+        {
+            Object value = values[i];
+            if (value instanceof Number && ((Number) value).doubleValue() == ((Number) value).longValue())
+            {
+                longs[i] = ((Number) value).longValue();
+                types[i] = LONG;
+            } else if (value instanceof Number)
+            {
+                doubles[i] = ((Number) value).doubleValue();
+                types[i] = DOUBLE;
+            } else if (value == null)
+            {
+                types[i] = NULL;
+            } else
+            {
+                strings[i] = value.toString();
+                types[i] = STRING;
+            }
+        }
+        return new StatementParams(types, longs, doubles, strings);
+    }
+
+    int size()
+    {
+        return this.types.length;
+    }
+
+    byte getType(int i)
+    {
+        return this.types[i];
+    }
+
+    /**
+     * @return the value as a Long, Double, String or null
+     */
+    Object get(int i)
+    {
+        switch (this.types[i])
+        {
+            case LONG:
+                return this.longs[i];
+            case DOUBLE:
+                return this.doubles[i];
+            case STRING:
+                return this.strings[i];
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * @return the values as Long, Double, String or null, as bound by SQLiteDatabase.rawQuery(String, Object[])
+     */
+    Object[] toArray()
+    {
+        Object[] values = new Object[this.types.length];
+        for (int i = 0; i < this.types.length; i++)
+        {
+            values[i] = get(i);
+        }
+        return values;
+    }
+
+    void bind(SQLiteStatement statement)
+    {
+        for (int i = 0; i < this.types.length; i++)
+        {
+            switch (this.types[i])
+            {
+                case LONG:
+                    statement.bindLong(i + 1, this.longs[i]);
+                    break;
+                case DOUBLE:
+                    statement.bindDouble(i + 1, this.doubles[i]);
+                    break;
+                case STRING:
+                    statement.bindString(i + 1, this.strings[i]);
+                    break;
+                default:
+                    statement.bindNull(i + 1);
+                    break;
+            }
+        }
+    }
+
+    /**
+     * @return the values as strings, as expected by SQLiteDatabase.rawQuery (null values as empty strings)
+     */
+    String[] toStringArray()
+    {
+        String[] values = new String[this.types.length];
+        for (int i = 0; i < this.types.length; i++)
+        {
+            switch (this.types[i])
+            {
+                case LONG:
+                    values[i] = String.valueOf(this.longs[i]);
+                    break;
+                case DOUBLE:
+                    values[i] = String.valueOf(this.doubles[i]);
+                    break;
+                case STRING:
+                    values[i] = this.strings[i];
+                    break;
+                default:
+                    values[i] = "";
+                    break;
+            }
+        }
+        return values;
+    }
+
+    /**
+     * @return the types of the values, with the length of the strings, e.g. "[number, string(12), null]"
+     */
+    String shape()
+    {
+        StringBuilder shape = new StringBuilder("[");
+        for (int i = 0; i < this.types.length; i++)
+        {
+            if (i > 0)
+                shape.append(", ");
+            switch (this.types[i])
+            {
+                case LONG:
+                case DOUBLE:
+                    shape.append("number");
+                    break;
+                case STRING:
+                    shape.append("string(").append(this.strings[i].length()).append(")");
+                    break;
+                default:
+                    shape.append("null");
+                    break;
+            }
+        }
+        return shape.append("]").toString();
+    }
+}
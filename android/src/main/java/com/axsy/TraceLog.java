@@ -0,0 +1,158 @@
+/**
+ * Copyright (c) 2020, Axsy
+ */
+
+package com.axsy;
+
+import android.os.Process;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.json.JSONObject;
+
+/**
+ * Opt-in bounded ring buffer of trace events, written out in the Chrome trace event
+ * format (chrome://tracing, Perfetto).
+ *
+ * Events are recorded from the bridge and db threads. When tracing is off, begin()
+ * returns 0 and the recording methods return immediately.
+ */
+final class TraceLog
+{
+    private static final class Event
+    {
+        final String name;
+        final String category;
+        final long startMicros;
+        final long durationMicros; // -1 for instant events
+        final long tid;
+        final String dbname;
+
+        Event(String name, String category, long startMicros, long durationMicros, long tid, String dbname)
+        {
+            this.name = name;
+            this.category = category;
+            this.startMicros = startMicros;
+            this.durationMicros = durationMicros;
+            this.tid = tid;
+            this.dbname = dbname;
+        }
+    }
+
+    private volatile Event[] events;
+    private int next;
+    private boolean wrapped;
+    private final Map<Long, String> threadNames = new HashMap<Long, String>();
+
+    synchronized void start(int capacity)
+    {
+        this.events = new Event[Math.max(capacity, 1)];
+        this.next = 0;
+        this.wrapped = false;
+        this.threadNames.clear();
+    }
+
+    boolean isEnabled()
+    {
+        return this.events != null;
+    }
+
+    /**
+     * @return start time of a phase, 0 if tracing is off
+     */
+    long begin()
+    {
+        return (this.events != null) ? System.nanoTime() : 0;
+    }
+
+    /**
+     * Record a phase that started at the given time (from begin()) and ends now.
+     */
+    void complete(String name, String category, long start, String dbname)
+    {
+        if (start == 0 || this.events == null)
+            return;
+        long end = System.nanoTime();
+        add(new Event(name, category, start / 1000, (end - start) / 1000, Thread.currentThread().getId(), dbname));
+    }
+
+    void instant(String name, String category, String dbname)
+    {
+        if (this.events == null)
+            return;
+        add(new Event(name, category, System.nanoTime() / 1000, -1, Thread.currentThread().getId(), dbname));
+    }
+
+    private synchronized void add(Event event)
+    {
+        Event[] buffer = this.events;
+        if (buffer == null)
+            return; // (stopped meanwhile)
+
+        if (!this.threadNames.containsKey(event.tid))
+            this.threadNames.put(event.tid, Thread.currentThread().getName());
+
+        buffer[this.next++] = event;
+        if (this.next == buffer.length)
+        {
+            this.next = 0;
+            this.wrapped = true;
+        }
+    }
+
+    /**
+     * Stop tracing and write the recorded events to a file, oldest first.
+     *
+     * @return number of events written
+     */
+    synchronized int stop(File file) throws IOException
+    {
+        Event[] buffer = this.events;
+        this.events = null;
+        if (buffer == null)
+            throw new IllegalStateException("tracing not started");
+
+        int pid = Process.myPid();
+        int count = 0;
+        file.getAbsoluteFile().getParentFile().mkdirs();
+        Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), "UTF-8"));
+        try
+        {
+            writer.write("{\"displayTimeUnit\":\"ms\",\"traceEvents\":[\n");
+            for (Map.Entry<Long, String> thread : this.threadNames.entrySet())
+            {
+                writer.write("{\"name\":\"thread_name\",\"ph\":\"M\",\"pid\":" + pid + ",\"tid\":" + thread.getKey() +
+                        ",\"args\":{\"name\":" + JSONObject.quote(thread.getValue()) + "}},\n");
+            }
+
+            int first = this.wrapped ? this.next : 0;
+            int size = this.wrapped ? buffer.length : this.next;
+            for (int i = 0; i < size; i++)
+            {
+                Event event = buffer[(first + i) % buffer.length];
+                writer.write((count++ == 0 ? "" : ",\n") +
+                        "{\"name\":" + JSONObject.quote(event.name) +
+                        ",\"cat\":" + JSONObject.quote(event.category) +
+                        (event.durationMicros < 0 ? ",\"ph\":\"i\",\"s\":\"t\"" : ",\"ph\":\"X\",\"dur\":" + event.durationMicros) +
+                        ",\"ts\":" + event.startMicros +
+                        ",\"pid\":" + pid +
+                        ",\"tid\":" + event.tid +
+                        (event.dbname != null ? ",\"args\":{\"dbname\":" + JSONObject.quote(event.dbname) + "}" : "") +
+                        "}");
+            }
+            writer.write("\n]}\n");
+        } finally
+        {
+            writer.close();
+            this.threadNames.clear();
+        }
+        return count;
+    }
+}
@@ -0,0 +1,138 @@
+/**
+ * Copyright (c) 2020, Axsy
+ */
+
+package com.axsy;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+
+import org.json.JSONObject;
+
+/**
+ * Opt-in capture of every executed batch to a trace file that WorkloadReplayer can re-run.
+ *
+ * The file is NDJSON: a header line {"version", "values"}, then one line per batch, written
+ * when the batch completes:
+ * {"t": arrival in ms since the start of the recording, "db", "depth": queue depth on arrival,
+ * "wait": ms queued, "ms": ms executing, "sql": [...], "params": [[...], ...]}
+ *
+ * Parameters are recorded as values, or (by default) as their shape only, like the slow query log.
+ */
+final class WorkloadRecorder
+{
+    private volatile Writer writer;
+    private boolean values;
+    private long startNanos;
+    private int count;
+
+    synchronized void start(File file, boolean values) throws IOException
+    {
+        if (this.writer != null)
+            throw new IllegalStateException("already recording");
+
+        file.getAbsoluteFile().getParentFile().mkdirs();
+        Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), "UTF-8"));
+        writer.write("{\"version\":1,\"values\":" + values + "}\n");
+        this.values = values;
+        this.startNanos = System.nanoTime();
+        this.count = 0;
+        this.writer = writer;
+    }
+
+    boolean isEnabled()
+    {
+        return this.writer != null;
+    }
+
+    /**
+     * @param queuedAt   - System.nanoTime() when the batch was queued
+     * @param queueDepth - number of requests ahead of it in the queue
+     * @param start      - System.nanoTime() when it started executing
+     */
+    synchronized void record(String dbname, String[] queries, StatementParams[] queryParams,
+                             long queuedAt, int queueDepth, long start)
+    {
+        if (this.writer == null)
+            return;
+
+        long end = System.nanoTime();
+        StringBuilder line = new StringBuilder(256);
+        line.append("{\"t\":").append(Math.max(queuedAt - this.startNanos, 0) / 1e6)
+                .append(",\"db\":").append(JSONObject.quote(dbname))
+                .append(",\"depth\":").append(queueDepth)
+                .append(",\"wait\":").append((start - queuedAt) / 1e6)
+                .append(",\"ms\":").append((end - start) / 1e6)
+                .append(",\"sql\":[");
+        for (int i = 0; i < queries.length; i++)
+        {
+            line.append(i == 0 ? "" : ",").append(JSONObject.quote(queries[i]));
+        }
+        line.append("],\"params\":[");
+        for (int i = 0; i < queries.length; i++)
+        {
+            StatementParams params = (queryParams != null) ? queryParams[i] : null;
+            line.append(i == 0 ? "" : ",");
+            if (this.values)
+                appendValues(line, params);
+            else
+                line.append(JSONObject.quote(SlowQueryLog.redact(params)));
+        }
+        line.append("]}\n");
+
+        try
+        {
+            this.writer.write(line.toString());
+            this.count++;
+        } catch (IOException e)
+        {
+            // (stop recording rather than failing the batches)
+            stopQuietly();
+        }
+    }
+
+    /**
+     * @return number of batches recorded
+     */
+    synchronized int stop() throws IOException
+    {
+        if (this.writer == null)
+            throw new IllegalStateException("not recording");
+
+        Writer writer = this.writer;
+        this.writer = null;
+        writer.close();
+        return this.count;
+    }
+
+    private void stopQuietly()
+    {
+        try
+        {
+            stop();
+        } catch (Exception ignore)
+        {
+        }
+    }
+
+    private static void appendValues(StringBuilder line, StatementParams params)
+    {
+        line.append('[');
+        for (int i = 0; params != null && i < params.size(); i++)
+        {
+            line.append(i == 0 ? "" : ",");
+            Object value = params.get(i);
+            if (value instanceof String)
+                line.append(JSONObject.quote((String) value));
+            else if (value instanceof Double && (((Double) value).isNaN() || ((Double) value).isInfinite()))
+                line.append("null");
+            else
+                line.append(value);
+        }
+        line.append(']');
+    }
+}
@@ -0,0 +1,331 @@
+/**
+ * Copyright (c) 2020, Axsy
+ */
+
+package com.axsy;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Re-runs a trace written by WorkloadRecorder through a SQLiteEngine, against copies of the
+ * recorded databases (replay-NAME, deleted afterwards), and reports the replayed batch latencies
+ * next to the recorded ones.
+ *
+ * Options: key (of all the databases) or keys ({dbname: key}), pacing (false).
+ * With pacing each batch is sent at its recorded arrival time without waiting for the previous
+ * ones, so queueing is reproduced; without it the batches are sent back to back, one at a time.
+ * When the trace has parameter shapes only, values of the same type and size are synthesized.
+ */
+public final class WorkloadReplayer
+{
+    private static final String REPLAY_PREFIX = "replay-";
+    private static final String[] COPIED_SUFFIXES = {"", "-wal", "-cipher"};
+    private static final Pattern SHAPE = Pattern.compile("(\\w+)(?:\\((\\d+)\\))?");
+    private static final long TIMEOUT_SECONDS = 60;
+
+    private static final class Batch
+    {
+        double t;
+        String dbname;
+        double recordedMillis;
+        List<String> queries;
+        List<List<Object>> params;
+    }
+
+    private final SQLiteEngine engine;
+    private final File trace;
+    private final File databaseDirectory;
+    private final Map<String, Object> options;
+
+    /**
+     * @param databaseDirectory - directory of the recorded databases, where the copies are made
+     */
+    public WorkloadReplayer(SQLiteEngine engine, File trace, File databaseDirectory, Map<String, Object> options)
+    {
+        this.engine = engine;
+        this.trace = trace;
+        this.databaseDirectory = databaseDirectory;
+        this.options = (options != null) ? options : new HashMap<String, Object>();
+    }
+
+    /**
+     * Replay the trace. Must not be called from a database thread.
+     *
+     * @return report: batches, errors, elapsedMillis, and p50/p99/max latencies in ms,
+     * replayed and recorded ("recorded" prefix), queue wait included
+     */
+    public Map<String, Object> run() throws Exception
+    {
+        List<Batch> batches = readTrace();
+        Set<String> dbnames = new LinkedHashSet<String>();
+        for (Batch batch : batches)
+        {
+            dbnames.add(batch.dbname);
+        }
+
+        try
+        {
+            for (String dbname : dbnames)
+            {
+                copyDatabase(dbname);
+                final String key = getKey(dbname);
+                LoadGenerator.call(new LoadGenerator.Request()
+                {
+                    public void send(String dbname, SQLiteEngine.ResultCallback callback)
+                    {
+                        engine.open(dbname, key, new HashMap<String, Object>(), callback);
+                    }
+                }, REPLAY_PREFIX + dbname);
+            }
+            return replay(batches);
+        } finally
+        {
+            for (String dbname : dbnames)
+            {
+                try
+                {
+                    LoadGenerator.call(new LoadGenerator.Request()
+                    {
+                        public void send(String dbname, SQLiteEngine.ResultCallback callback)
+                        {
+                            engine.delete(dbname, callback);
+                        }
+                    }, REPLAY_PREFIX + dbname);
+                } catch (Exception ignore)
+                {
+                    // (best effort)
+                }
+            }
+        }
+    }
+
+    private Map<String, Object> replay(List<Batch> batches) throws Exception
+    {
+        boolean pacing = Boolean.TRUE.equals(this.options.get("pacing"));
+        final List<Long> latencies = Collections.synchronizedList(new ArrayList<Long>());
+        List<Long> recorded = new ArrayList<Long>();
+        final AtomicInteger errors = new AtomicInteger();
+        final CountDownLatch done = new CountDownLatch(batches.size());
+
+        long start = System.nanoTime();
+        for (Batch batch : batches)
+        {
+            recorded.add((long) (batch.recordedMillis * 1e6));
+            if (pacing)
+            {
+                long delay = (long) (batch.t * 1e6) - (System.nanoTime() - start);
+                if (delay > 0)
+                    TimeUnit.NANOSECONDS.sleep(delay);
+            }
+
+            final long sent = System.nanoTime();
+            final CountDownLatch batchDone = new CountDownLatch(1);
+            this.engine.executeBatch(REPLAY_PREFIX + batch.dbname, batch.queries, batch.params,
+                    new SQLiteEngine.ResultCallback()
+                    {
+                        public void success(Object result)
+                        {
+                            for (Object entry : (List<?>) result)
+                            {
+                                if (entry instanceof Map && "error".equals(((Map<?, ?>) entry).get("type")))
+                                    errors.incrementAndGet();
+                            }
+                            finish();
+                        }
+
+                        public void error(String message)
+                        {
+                            errors.incrementAndGet();
+                            finish();
+                        }
+
+                        private void finish()
+                        {
+                            latencies.add(System.nanoTime() - sent);
+                            batchDone.countDown();
+                            done.countDown();
+                        }
+                    });
+
+            if (!pacing && !batchDone.await(TIMEOUT_SECONDS, TimeUnit.SECONDS))
+                throw new IllegalStateException("timed out replaying a batch on " + batch.dbname);
+        }
+        if (!done.await(TIMEOUT_SECONDS, TimeUnit.SECONDS))
+            throw new IllegalStateException("timed out waiting for the replayed batches");
+        long elapsed = System.nanoTime() - start;
+
+        Map<String, Object> report = new HashMap<String, Object>();
+        report.put("batches", (double) batches.size());
+        report.put("errors", (double) errors.get());
+        report.put("elapsedMillis", elapsed / 1e6);
+        report.put("pacing", pacing);
+        LoadGenerator.putPercentiles(report, "", new ArrayList<Long>(latencies));
+        LoadGenerator.putPercentiles(report, "recorded", recorded);
+        return report;
+    }
+
+    private String getKey(String dbname)
+    {
+        Object keys = this.options.get("keys");
+        if (keys instanceof Map && ((Map<?, ?>) keys).get(dbname) != null)
+            return ((Map<?, ?>) keys).get(dbname).toString();
+        Object key = this.options.get("key");
+        return (key != null) ? key.toString() : null;
+    }
+
+    /**
+     * Copy the database file (with its WAL and cipher settings) to its replay name.
+     * A database that does not exist is created by the replay itself.
+     */
+    private void copyDatabase(String dbname) throws IOException
+    {
+        for (String suffix : COPIED_SUFFIXES)
+        {
+            File src = new File(this.databaseDirectory, dbname + suffix);
+            File dest = new File(this.databaseDirectory, REPLAY_PREFIX + dbname + suffix);
+            dest.delete();
+            if (!src.exists())
+                continue;
+
+            InputStream in = new FileInputStream(src);
+            try
+            {
+                OutputStream out = new FileOutputStream(dest);
+                try
+                {
+                    byte[] buffer = new byte[64 * 1024];
+                    int len;
+                    while ((len = in.read(buffer)) > 0)
+                    {
+                        out.write(buffer, 0, len);
+                    }
+                } finally
+                {
+                    out.close();
+                }
+            } finally
+            {
+                in.close();
+            }
+        }
+    }
+
+    private List<Batch> readTrace() throws IOException
+    {
+        List<Batch> batches = new ArrayList<Batch>();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(this.trace), "UTF-8"));
+        try
+        {
+            String line = reader.readLine();
+            if (line == null)
+                throw new IOException("empty trace file");
+            boolean values = new JSONObject(line).optBoolean("values", false);
+
+            while ((line = reader.readLine()) != null)
+            {
+                if (line.trim().length() == 0)
+                    continue;
+
+                JSONObject object = new JSONObject(line);
+                Batch batch = new Batch();
+                batch.t = object.getDouble("t");
+                batch.dbname = object.getString("db");
+                batch.recordedMillis = object.optDouble("wait", 0) + object.optDouble("ms", 0);
+                batch.queries = new ArrayList<String>();
+                batch.params = new ArrayList<List<Object>>();
+                JSONArray sql = object.getJSONArray("sql");
+                JSONArray params = object.getJSONArray("params");
+                for (int i = 0; i < sql.length(); i++)
+                {
+                    batch.queries.add(sql.getString(i));
+                    batch.params.add(values ? toList(params.getJSONArray(i)) : synthesize(params.getString(i)));
+                }
+                batches.add(batch);
+            }
+        } catch (JSONException e)
+        {
+            throw new IOException("invalid trace file: " + e.getMessage());
+        } finally
+        {
+            reader.close();
+        }
+
+        // lines are written as batches complete, replay them in arrival order:
+        Collections.sort(batches, new Comparator<Batch>()
+        {
+            public int compare(Batch a, Batch b)
+            {
+                return Double.compare(a.t, b.t);
+            }
+        });
+        return batches;
+    }
+
+    private static List<Object> toList(JSONArray array) throws JSONException
+    {
+        List<Object> list = new ArrayList<Object>();
+        for (int i = 0; i < array.length(); i++)
+        {
+            Object value = array.get(i);
+            list.add(value == JSONObject.NULL ? null : value);
+        }
+        return list;
+    }
+
+    /**
+     * @param shape - parameter shape, as recorded by SlowQueryLog.redact (e.g. "[number, string(12), null]")
+     * @return values of the same types and sizes
+     */
+    private static List<Object> synthesize(String shape)
+    {
+        List<Object> list = new ArrayList<Object>();
+        String inner = shape.replaceAll("^\\[|\\]$", "").trim();
+        if (inner.length() == 0)
+            return list;
+
+        for (String part : inner.split(","))
+        {
+            Matcher matcher = SHAPE.matcher(part.trim());
+            String type = matcher.matches() ? matcher.group(1) : "";
+            if ("null".equals(type))
+            {
+                list.add(null);
+            } else if ("string".equals(type))
+            {
+                char[] chars = new char[matcher.group(2) != null ? Integer.parseInt(matcher.group(2)) : 0];
+                Arrays.fill(chars, 'x');
+                list.add(new String(chars));
+            } else
+            {
+                // numbers, booleans (bound as numbers), and anything else
+                list.add(0);
+            }
+        }
+        return list;
+    }
+}
@@ -0,0 +1,122 @@
+/**
+ * Copyright (c) 2020, Axsy
+ */
+
+package com.axsy;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class BatchReferencesTest
+{
+    private static StatementParams params(Object... values)
+    {
+        return StatementParams.of(values);
+    }
+
+    private static Map<String, Object> result(Object... keysAndValues)
+    {
+        Map<String, Object> result = new HashMap<String, Object>();
+        for (int i = 0; i < keysAndValues.length; i += 2)
+        {
+            result.put((String) keysAndValues[i], keysAndValues[i + 1]);
+        }
+        return result;
+    }
+
+    private static Map<String, Object> insertResult(double insertId)
+    {
+        return result("insertId", insertId, "rowsAffected", 1.0);
+    }
+
+    private static Map<String, Object> row(String column, Object value)
+    {
+        return Collections.singletonMap(column, value);
+    }
+
+    private static void assertFails(String message, BatchReferences references, int index, StatementParams params)
+    {
+        try
+        {
+            references.resolve(index, params);
+            fail(message);
+        } catch (IllegalArgumentException e)
+        {
+            assertEquals(message, e.getMessage());
+        }
+    }
+
+    @Test
+    public void isNotCreatedForABatchWithoutReferences()
+    {
+        StatementParams[] queryParams = {params("$ref:0.insertId"), params(1, "a")};
+        assertNull(BatchReferences.create(2, queryParams, null, null));
+        assertNull(BatchReferences.create(2, queryParams, new boolean[]{false, true}, null));
+    }
+
+    @Test
+    public void replacesReferencesByTheValues()
+    {
+        StatementParams[] queryParams = {params("x"), params("$ref:0.insertId", "$ref:-1.rowsAffected", "$ref text")};
+        BatchReferences references = BatchReferences.create(2, queryParams, new boolean[]{false, true}, null);
+
+        references.set(0, insertResult(5));
+        StatementParams resolved = references.resolve(1, queryParams[1]);
+        assertEquals(Arrays.<Object>asList(5L, 1L, "$ref text"), Arrays.asList(resolved.toArray()));
+        assertSame(queryParams[0], references.resolve(0, queryParams[0]));
+    }
+
+    @Test
+    public void readsValuesOfRows()
+    {
+        StatementParams[] queryParams = {null, params("$ref:0.rows[1].id", "$ref:0.rows.length")};
+        BatchReferences references = BatchReferences.create(2, queryParams, new boolean[]{false, true}, null);
+
+        references.set(0, result("rows",
+                Arrays.asList(row("id", 7.0), row("id", "eight")), "rowsAffected", 0.0));
+        assertEquals(Arrays.<Object>asList("eight", 2L), Arrays.asList(references.resolve(1, queryParams[1]).toArray()));
+
+        assertFails("$ref:0.rows[2].id: no such value", references, 1, params("$ref:0.rows[2].id"));
+        assertFails("$ref:0.rows: not a single value", references, 1, params("$ref:0.rows"));
+    }
+
+    @Test
+    public void skipsStatementsOnTheirCondition()
+    {
+        String[] skipConditions = {null, "$ref:0.rowsAffected", "!$ref:0.rowsAffected", "$ref:0.rows[0].name", null};
+        BatchReferences references = BatchReferences.create(5, null, null, skipConditions);
+
+        references.set(0, result("rowsAffected", 0.0, "rows", Collections.singletonList(row("name", "a"))));
+        assertFalse(references.isSkipped(0));
+        assertFalse(references.isSkipped(1));
+        assertTrue(references.isSkipped(2));
+        assertTrue(references.isSkipped(3));
+        assertFalse(references.isSkipped(4));
+    }
+
+    @Test
+    public void rejectsUnresolvableReferences()
+    {
+        StatementParams[] queryParams = {params("$ref:2.insertId"), null, params("$ref:0.insertId")};
+        BatchReferences references = BatchReferences.create(3, queryParams, new boolean[]{true, true, true}, null);
+        references.set(0, null);
+        references.set(1, insertResult(2));
+
+        assertFails("$ref:2.insertId: not an earlier statement", references, 0, queryParams[0]);
+        assertFails("$ref:0.insertId: statement 0 failed", references, 2, queryParams[2]);
+        assertFails("$ref:1.insertId: statement 1 has no result", references, 2, params("$ref:1.insertId"));
+        assertFails("$ref:-5.insertId: not an earlier statement", references, 2, params("$ref:-5.insertId"));
+        assertFails("invalid reference: $ref:0.", references, 2, params("$ref:0."));
+    }
+}
@@ -0,0 +1,157 @@
+/**
+ * Copyright (c) 2020, Axsy
+ */
+
+package com.axsy;
+
+import android.database.Cursor;
+
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.zip.GZIPInputStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ExportWriterTest
+{
+    private static final String[] COLUMNS = {"id", "name", "price"};
+
+    private File file;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        this.file = File.createTempFile("export", ".txt");
+    }
+
+    @After
+    public void tearDown()
+    {
+        this.file.delete();
+    }
+
+    /**
+     * @return cursor positioned on a row of Long, Double, String or null values
+     */
+    private static Cursor row(final Object... values)
+    {
+        return (Cursor) Proxy.newProxyInstance(Cursor.class.getClassLoader(), new Class<?>[]{Cursor.class},
+                new InvocationHandler()
+                {
+                    public Object invoke(Object proxy, Method method, Object[] args)
+                    {
+                        Object value = values[(Integer) args[0]];
+                        String name = method.getName();
+                        if (name.equals("getType"))
+                        {
+                            if (value == null)
+                                return Cursor.FIELD_TYPE_NULL;
+                            if (value instanceof Long)
+                                return Cursor.FIELD_TYPE_INTEGER;
+                            if (value instanceof Double)
+                                return Cursor.FIELD_TYPE_FLOAT;
+                            return Cursor.FIELD_TYPE_STRING;
+                        }
+                        if (name.equals("getLong"))
+                            return value;
+                        if (name.equals("getDouble"))
+                            return value;
+                        if (name.equals("getString"))
+                            return (value == null) ? null : value.toString();
+                        throw new UnsupportedOperationException(name);
+                    }
+                });
+    }
+
+    private String export(String format, boolean gzip, Cursor... rows) throws Exception
+    {
+        ExportWriter writer = ExportWriter.create(this.file, format, gzip);
+        try
+        {
+            writer.writeHeader(COLUMNS);
+            for (Cursor row : rows)
+            {
+                writer.writeRow(row);
+            }
+        } finally
+        {
+            writer.close();
+        }
+
+        InputStream in = new FileInputStream(this.file);
+        try
+        {
+            if (gzip)
+                in = new GZIPInputStream(in);
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4096];
+            int read;
+            while ((read = in.read(buffer)) != -1)
+            {
+                out.write(buffer, 0, read);
+            }
+            return out.toString("UTF-8");
+        } finally
+        {
+            in.close();
+        }
+    }
+
+    @Test
+    public void writesNdjsonRows() throws Exception
+    {
+        String output = export("ndjson", false, row(1L, "a \"b\"", 2.5), row(2L, null, Double.NaN));
+
+        String[] lines = output.split("\n");
+        assertEquals(2, lines.length);
+        JSONObject first = new JSONObject(lines[0]);
+        assertEquals(1L, first.getLong("id"));
+        assertEquals("a \"b\"", first.getString("name"));
+        assertEquals(2.5, first.getDouble("price"), 0);
+        assertEquals("{\"id\":2,\"name\":null,\"price\":null}", lines[1]);
+    }
+
+    @Test
+    public void writesCsvRows() throws Exception
+    {
+        String output = export("csv", false, row(1L, "a,b", 2.5), row(2L, "say \"hi\"\nthere", null),
+                row(3L, "", -1.0));
+
+        assertEquals("id,name,price\r\n" +
+                "1,\"a,b\",2.5\r\n" +
+                "2,\"say \"\"hi\"\"\nthere\",\r\n" +
+                "3,\"\",-1.0\r\n", output);
+    }
+
+    @Test
+    public void gzipsTheOutput() throws Exception
+    {
+        assertEquals("id,name,price\r\n1,a,2.5\r\n", export("csv", true, row(1L, "a", 2.5)));
+
+        InputStream in = new FileInputStream(this.file);
+        try
+        {
+            assertTrue(in.read() == 0x1f && in.read() == 0x8b);
+        } finally
+        {
+            in.close();
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsAnUnsupportedFormat() throws Exception
+    {
+        ExportWriter.create(this.file, "xml", false);
+    }
+}
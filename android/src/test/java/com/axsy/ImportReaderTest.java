@@ -0,0 +1,166 @@
+/**
+ * Copyright (c) 2020, Axsy
+ */
+
+package com.axsy;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Arrays;
+import java.util.HashSet;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class ImportReaderTest
+{
+    private File file;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        this.file = File.createTempFile("import", ".txt");
+    }
+
+    @After
+    public void tearDown()
+    {
+        this.file.delete();
+    }
+
+    private ImportReader open(String format, String content) throws Exception
+    {
+        Writer writer = new OutputStreamWriter(new FileOutputStream(this.file), "UTF-8");
+        try
+        {
+            writer.write(content);
+        } finally
+        {
+            writer.close();
+        }
+        return ImportReader.create(this.file, format);
+    }
+
+    @Test
+    public void readsCsvRecords() throws Exception
+    {
+        ImportReader reader = open("csv", "\uFEFFid,name,note\r\n1,a,x\r\n\r\n2,b,y\r\n");
+        try
+        {
+            String[] fields = reader.getFieldNames();
+            assertArrayEquals(new String[]{"id", "name", "note"}, fields);
+            assertArrayEquals(new Object[]{"1", "a", "x"}, reader.next(fields));
+            assertArrayEquals(new Object[]{"2", "b", "y"}, reader.next(fields));
+            assertNull(reader.next(fields));
+            assertEquals(this.file.length(), reader.getLength());
+        } finally
+        {
+            reader.close();
+        }
+    }
+
+    @Test
+    public void readsQuotedCsvFields() throws Exception
+    {
+        ImportReader reader = open("csv", "id,text\n1,\"a, \"\"quoted\"\"\nvalue\"\n");
+        try
+        {
+            String[] fields = reader.getFieldNames();
+            assertArrayEquals(new Object[]{"1", "a, \"quoted\"\nvalue"}, reader.next(fields));
+            assertNull(reader.next(fields));
+        } finally
+        {
+            reader.close();
+        }
+    }
+
+    @Test
+    public void tellsEmptyCsvFieldsFromNull() throws Exception
+    {
+        ImportReader reader = open("csv", "a,b,c\n,\"\",x\n");
+        try
+        {
+            assertArrayEquals(new Object[]{null, "", "x"}, reader.next(reader.getFieldNames()));
+        } finally
+        {
+            reader.close();
+        }
+    }
+
+    @Test
+    public void readsTheRequestedCsvFields() throws Exception
+    {
+        ImportReader reader = open("csv", "a,b,c\n1,2\n");
+        try
+        {
+            assertArrayEquals(new Object[]{"2", null, null}, reader.next(new String[]{"b", "c", "missing"}));
+        } finally
+        {
+            reader.close();
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsAnUnterminatedCsvField() throws Exception
+    {
+        ImportReader reader = open("csv", "a\n\"open\n");
+        try
+        {
+            reader.next(reader.getFieldNames());
+        } finally
+        {
+            reader.close();
+        }
+    }
+
+    @Test
+    public void readsNdjsonValues() throws Exception
+    {
+        ImportReader reader = open("ndjson",
+                "{\"id\":1,\"price\":2.5,\"whole\":3.0,\"ok\":true,\"name\":\"a\",\"none\":null,\"tags\":[1,2]}\n" +
+                        "\n" +
+                        "{\"id\":2}\n");
+        try
+        {
+            assertEquals(new HashSet<String>(Arrays.asList("id", "price", "whole", "ok", "name", "none", "tags")),
+                    new HashSet<String>(Arrays.asList(reader.getFieldNames())));
+
+            String[] fields = {"id", "price", "whole", "ok", "name", "none", "tags"};
+            assertArrayEquals(new Object[]{1L, 2.5, 3L, 1L, "a", null, "[1,2]"}, reader.next(fields));
+            assertArrayEquals(new Object[]{2L, null, null, null, null, null, null}, reader.next(fields));
+            assertNull(reader.next(fields));
+        } finally
+        {
+            reader.close();
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsAnInvalidNdjsonLine() throws Exception
+    {
+        ImportReader reader = open("jsonl", "{\"id\":1}\n{\"id\":\n");
+        try
+        {
+            String[] fields = {"id"};
+            reader.next(fields);
+            reader.next(fields);
+        } finally
+        {
+            reader.close();
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsAnUnsupportedFormat() throws Exception
+    {
+        open("xml", "<rows/>").close();
+    }
+}
@@ -0,0 +1,176 @@
+/**
+ * Copyright (c) 2020, Axsy
+ */
+
+package com.axsy;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class LiveQueryTest
+{
+    private static final String[] COLUMNS = {"id", "name"};
+
+    private static List<Object[]> rows(Object[]... rows)
+    {
+        return new ArrayList<Object[]>(Arrays.asList(rows));
+    }
+
+    private static LiveQuery query(String sql)
+    {
+        return new LiveQuery("q1", sql, null, "id", null);
+    }
+
+    @Test
+    public void findsTheTablesReadByTheQuery()
+    {
+        LiveQuery query = query("SELECT * FROM Orders o JOIN main.\"customers\" c ON c.id = o.customer_id " +
+                "WHERE o.id IN (SELECT order_id FROM lines)");
+        assertEquals(new HashSet<String>(Arrays.asList("orders", "customers", "lines")), query.tables);
+    }
+
+    @Test
+    public void usesTheDeclaredTablesWhenGiven()
+    {
+        LiveQuery query = new LiveQuery("q1", "SELECT * FROM orders_view", StatementParams.of(new Object[]{1}), "id",
+                Arrays.asList("Orders", "lines"));
+        assertEquals(new HashSet<String>(Arrays.asList("orders", "lines")), query.tables);
+        assertEquals(Arrays.<Object>asList(1L), Arrays.asList(query.params.toArray()));
+    }
+
+    @Test
+    public void dependsOnTheTablesItReads()
+    {
+        LiveQuery query = query("SELECT * FROM orders");
+        assertTrue(query.dependsOn(new HashSet<String>(Arrays.asList("lines", "orders"))));
+        assertFalse(query.dependsOn(Collections.singleton("lines")));
+    }
+
+    @Test
+    public void findsTheTableWrittenByAStatement()
+    {
+        assertEquals("orders", LiveQuery.getWrittenTable("INSERT INTO orders VALUES (1)"));
+        assertEquals("orders", LiveQuery.getWrittenTable("  insert or replace into main.\"Orders\" VALUES (1)"));
+        assertEquals("orders", LiveQuery.getWrittenTable("REPLACE INTO orders VALUES (1)"));
+        assertEquals("orders", LiveQuery.getWrittenTable("UPDATE OR IGNORE orders SET n = 1"));
+        assertEquals("orders", LiveQuery.getWrittenTable("DELETE FROM [orders]"));
+        assertNull(LiveQuery.getWrittenTable("SELECT * FROM orders"));
+        assertNull(LiveQuery.getWrittenTable("CREATE TABLE orders (id)"));
+    }
+
+    @Test
+    public void findsTheTablesWrittenByATrigger()
+    {
+        String trigger = "CREATE TRIGGER order_lines AFTER DELETE ON orders BEGIN " +
+                "DELETE FROM lines WHERE order_id = old.id; " +
+                "UPDATE totals SET n = n - 1; " +
+                "INSERT INTO audit (id) VALUES (old.id); END";
+        assertEquals(new HashSet<String>(Arrays.asList("lines", "totals", "audit")),
+                LiveQuery.getTriggerWrittenTables(trigger));
+        assertTrue(LiveQuery.getTriggerWrittenTables("CREATE TABLE orders (id)").isEmpty());
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void reportsTheWholeFirstResultAsInserted()
+    {
+        LiveQuery query = query("SELECT id, name FROM items");
+        Map<String, Object> diff = query.update(COLUMNS, rows(new Object[]{1L, "a"}, new Object[]{2L, "b"}));
+
+        assertEquals("q1", diff.get("id"));
+        List<Map<String, Object>> inserted = (List<Map<String, Object>>) diff.get("inserted");
+        assertEquals(2, inserted.size());
+        assertEquals(1L, inserted.get(0).get("id"));
+        assertEquals("b", inserted.get(1).get("name"));
+        assertTrue(((List<?>) diff.get("changed")).isEmpty());
+        assertTrue(((List<?>) diff.get("removed")).isEmpty());
+    }
+
+    @Test
+    public void reportsNothingWhenTheResultDidNotChange()
+    {
+        LiveQuery query = query("SELECT id, name FROM items");
+        query.update(COLUMNS, rows(new Object[]{1L, "a"}));
+        assertNull(query.update(COLUMNS, rows(new Object[]{1L, "a"})));
+        assertNull(query("SELECT 1").update(null, rows()));
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void reportsInsertedChangedAndRemovedRows()
+    {
+        LiveQuery query = query("SELECT id, name FROM items");
+        query.update(COLUMNS, rows(new Object[]{1L, "a"}, new Object[]{2L, "b"}, new Object[]{3L, null}));
+        Map<String, Object> diff = query.update(COLUMNS,
+                rows(new Object[]{1L, "a"}, new Object[]{3L, "c"}, new Object[]{4L, "d"}));
+
+        List<Map<String, Object>> inserted = (List<Map<String, Object>>) diff.get("inserted");
+        List<Map<String, Object>> changed = (List<Map<String, Object>>) diff.get("changed");
+        assertEquals(1, inserted.size());
+        assertEquals(4L, inserted.get(0).get("id"));
+        assertEquals(1, changed.size());
+        assertEquals("c", changed.get(0).get("name"));
+        assertEquals(Arrays.<Object>asList(2L), diff.get("removed"));
+
+        diff = query.update(null, rows());
+        assertEquals(new HashSet<Object>(Arrays.<Object>asList(1L, 3L, 4L)),
+                new HashSet<Object>((List<?>) diff.get("removed")));
+    }
+
+    @Test
+    public void keepsKeysOfDifferentTypesApart()
+    {
+        LiveQuery query = query("SELECT id, name FROM items");
+        query.update(COLUMNS, rows(new Object[]{5L, "integer"}, new Object[]{null, "null"}));
+        Map<String, Object> diff = query.update(COLUMNS,
+                rows(new Object[]{"5", "text"}, new Object[]{"null", "text"}));
+
+        assertEquals(2, ((List<?>) diff.get("inserted")).size());
+        assertTrue(((List<?>) diff.get("changed")).isEmpty());
+        assertEquals(new HashSet<Object>(Arrays.<Object>asList(5L, null)),
+                new HashSet<Object>((List<?>) diff.get("removed")));
+    }
+
+    @Test
+    public void rejectsAResultWithoutTheKeyColumn()
+    {
+        LiveQuery query = query("SELECT id, name FROM items");
+        query.update(COLUMNS, rows(new Object[]{1L, "a"}));
+        try
+        {
+            query.update(new String[]{"name"}, rows(new Object[]{"a"}));
+            fail("the key column is missing");
+        } catch (IllegalArgumentException e)
+        {
+            assertEquals("key column not in result: id", e.getMessage());
+        }
+        // (the previous result is kept)
+        assertNull(query.update(COLUMNS, rows(new Object[]{1L, "a"})));
+    }
+
+    @Test
+    public void rejectsDuplicateKeys()
+    {
+        LiveQuery query = query("SELECT id, name FROM items");
+        try
+        {
+            query.update(COLUMNS, rows(new Object[]{1L, "a"}, new Object[]{1L, "b"}));
+            fail("the key is duplicated");
+        } catch (IllegalArgumentException e)
+        {
+            assertEquals("duplicate key in result: 1", e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,179 @@
+/**
+ * Copyright (c) 2020, Axsy
+ */
+
+package com.axsy;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class LoadGeneratorTest
+{
+    /**
+     * Engine answering every request at once, failing the statements that start with failPrefix.
+     */
+    private static final class FakeEngine implements SQLiteEngine
+    {
+        final Set<String> open = new HashSet<String>();
+        final List<String> opened = new ArrayList<String>();
+        final List<String> deleted = new ArrayList<String>();
+        int reads = 0;
+        int updates = 0;
+        int inserts = 0;
+        String failPrefix = null;
+
+        public synchronized void open(String dbname, String key, Map<String, Object> options, ResultCallback callback)
+        {
+            this.open.add(dbname);
+            this.opened.add(dbname);
+            callback.success("database open");
+        }
+
+        public synchronized void executeBatch(String dbname, List<String> queries, List<List<Object>> params,
+                                              ResultCallback callback)
+        {
+            if (!this.open.contains(dbname))
+            {
+                callback.error("database not open");
+                return;
+            }
+
+            List<Object> results = new ArrayList<Object>();
+            for (int i = 0; i < queries.size(); i++)
+            {
+                String query = queries.get(i);
+                if (query.startsWith("SELECT"))
+                    this.reads++;
+                else if (query.startsWith("UPDATE"))
+                    this.updates++;
+                else if (query.startsWith("INSERT"))
+                    this.inserts++;
+
+                Map<String, Object> result = new HashMap<String, Object>();
+                result.put("qid", String.valueOf(i));
+                result.put("type", (this.failPrefix != null && query.startsWith(this.failPrefix)) ? "error" : "success");
+                results.add(result);
+            }
+            callback.success(results);
+        }
+
+        public synchronized void close(String dbname, ResultCallback callback)
+        {
+            this.open.remove(dbname);
+            callback.success("database closed");
+        }
+
+        public synchronized void delete(String dbname, ResultCallback callback)
+        {
+            this.open.remove(dbname);
+            this.deleted.add(dbname);
+            callback.success("database deleted");
+        }
+    }
+
+    private static Map<String, Object> options(Object... keysAndValues)
+    {
+        Map<String, Object> options = new HashMap<String, Object>();
+        for (int i = 0; i < keysAndValues.length; i += 2)
+        {
+            options.put((String) keysAndValues[i], keysAndValues[i + 1]);
+        }
+        return options;
+    }
+
+    @Test
+    public void runsTheRequestedOperationsOnEveryDatabase() throws Exception
+    {
+        FakeEngine engine = new FakeEngine();
+        Map<String, Object> report = new LoadGenerator(engine,
+                options("databases", 3, "operations", 200, "clients", 4, "rows", 50, "writeBatchSize", 5)).run();
+
+        assertEquals(Arrays.asList("loadtest-0.db", "loadtest-1.db", "loadtest-2.db"), engine.opened);
+        assertEquals(3 * 50, engine.inserts);
+        assertEquals(200.0, (Double) report.get("operations"), 0);
+        assertEquals(200.0, (Double) report.get("reads") + (Double) report.get("writes"), 0);
+        assertEquals((Double) report.get("reads"), engine.reads, 0);
+        assertEquals((Double) report.get("writes") * 5, engine.updates, 0);
+        assertEquals(0.0, (Double) report.get("errors"), 0);
+        assertTrue((Double) report.get("throughput") > 0);
+        assertTrue((Double) report.get("p50Millis") <= (Double) report.get("p99Millis"));
+        assertTrue((Double) report.get("p99Millis") <= (Double) report.get("maxMillis"));
+    }
+
+    @Test
+    public void deletesTheDatabasesAfterTheRun() throws Exception
+    {
+        FakeEngine engine = new FakeEngine();
+        new LoadGenerator(engine, options("databases", 2, "operations", 10)).run();
+
+        assertEquals(Arrays.asList("loadtest-0.db", "loadtest-1.db"), engine.deleted);
+        assertTrue(engine.open.isEmpty());
+    }
+
+    @Test
+    public void followsTheReadRatio() throws Exception
+    {
+        Map<String, Object> report = new LoadGenerator(new FakeEngine(),
+                options("operations", 50, "readRatio", 1.0)).run();
+        assertEquals(50.0, (Double) report.get("reads"), 0);
+        assertEquals(0.0, (Double) report.get("writes"), 0);
+
+        report = new LoadGenerator(new FakeEngine(), options("operations", 50, "readRatio", "0")).run();
+        assertEquals(0.0, (Double) report.get("reads"), 0);
+        assertEquals(50.0, (Double) report.get("writes"), 0);
+    }
+
+    @Test
+    public void countsFailedStatements() throws Exception
+    {
+        FakeEngine engine = new FakeEngine();
+        engine.failPrefix = "UPDATE";
+        Map<String, Object> report = new LoadGenerator(engine,
+                options("operations", 40, "readRatio", 0.5, "writeBatchSize", 3)).run();
+
+        assertEquals((Double) report.get("writes") * 3, (Double) report.get("errors"), 0);
+    }
+
+    @Test
+    public void failsWhenTheSetUpFails() throws Exception
+    {
+        FakeEngine engine = new FakeEngine();
+        engine.failPrefix = "INSERT";
+        try
+        {
+            new LoadGenerator(engine, options("databases", 2, "operations", 10)).run();
+            fail("set up should have failed");
+        } catch (IllegalStateException e)
+        {
+            assertEquals("couldn't set up loadtest-0.db", e.getMessage());
+        }
+        assertEquals(Arrays.asList("loadtest-0.db", "loadtest-1.db"), engine.deleted);
+    }
+
+    @Test
+    public void reportsPercentiles()
+    {
+        List<Long> latencies = new ArrayList<Long>();
+        for (long ms = 100; ms >= 1; ms--)
+        {
+            latencies.add(ms * 1000000);
+        }
+        Map<String, Object> report = new HashMap<String, Object>();
+        LoadGenerator.putPercentiles(report, "read", latencies);
+
+        assertEquals(50.0, (Double) report.get("readP50Millis"), 0);
+        assertEquals(99.0, (Double) report.get("readP99Millis"), 0);
+        assertEquals(100.0, (Double) report.get("readMaxMillis"), 0);
+    }
+}
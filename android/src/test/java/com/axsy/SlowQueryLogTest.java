@@ -0,0 +1,126 @@
+/**
+ * Copyright (c) 2020, Axsy
+ */
+
+package com.axsy;
+
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class SlowQueryLogTest
+{
+    private File file;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        this.file = File.createTempFile("slow", ".ndjson");
+    }
+
+    @After
+    public void tearDown()
+    {
+        this.file.delete();
+    }
+
+    private static SlowQueryLog.Entry entry(String sql, String... plan)
+    {
+        return new SlowQueryLog.Entry(sql, "[]", 12.5, 3, 0, Arrays.asList(plan));
+    }
+
+    private List<JSONObject> dump(SlowQueryLog log) throws Exception
+    {
+        List<JSONObject> entries = new ArrayList<JSONObject>();
+        int written = log.writeTo(this.file);
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(this.file), "UTF-8"));
+        try
+        {
+            String line;
+            while ((line = reader.readLine()) != null)
+            {
+                entries.add(new JSONObject(line));
+            }
+        } finally
+        {
+            reader.close();
+        }
+        assertEquals(written, entries.size());
+        return entries;
+    }
+
+    @Test
+    public void keepsTheMostRecentEntries() throws Exception
+    {
+        SlowQueryLog log = new SlowQueryLog(100, 2);
+        log.add(entry("SELECT 1"));
+        log.add(entry("SELECT 2"));
+        log.add(entry("SELECT 3"));
+
+        List<JSONObject> entries = dump(log);
+        assertEquals(2, entries.size());
+        assertEquals("SELECT 2", entries.get(0).getString("sql"));
+        assertEquals("SELECT 3", entries.get(1).getString("sql"));
+
+        log.clear();
+        assertTrue(dump(log).isEmpty());
+    }
+
+    @Test
+    public void keepsAtLeastOneEntry() throws Exception
+    {
+        SlowQueryLog log = new SlowQueryLog(100, 0);
+        log.add(entry("SELECT 1"));
+        log.add(entry("SELECT 2"));
+        assertEquals(1, dump(log).size());
+    }
+
+    @Test
+    public void writesEveryField() throws Exception
+    {
+        SlowQueryLog log = new SlowQueryLog(100, 10);
+        log.add(new SlowQueryLog.Entry("SELECT * FROM t WHERE name = ?", "[string(3)]", 12.5, 3, 1,
+                Arrays.asList("SCAN TABLE t")));
+
+        JSONObject entry = dump(log).get(0);
+        assertEquals("SELECT * FROM t WHERE name = ?", entry.getString("sql"));
+        assertEquals("[string(3)]", entry.getString("params"));
+        assertEquals(12.5, entry.getDouble("durationMillis"), 0);
+        assertEquals(3.0, entry.getDouble("rowsReturned"), 0);
+        assertEquals(1.0, entry.getDouble("rowsAffected"), 0);
+        assertTrue(entry.optBoolean("fullScan", false));
+        assertEquals("SCAN TABLE t", entry.getJSONArray("plan").getString(0));
+        assertTrue(entry.getDouble("timestamp") > 0);
+    }
+
+    @Test
+    public void findsFullTableScans()
+    {
+        assertTrue(entry("SELECT", "SEARCH TABLE a USING INDEX a_id (id=?)", "SCAN TABLE b").hasFullScan());
+        assertFalse(entry("SELECT", "SCAN TABLE a USING COVERING INDEX a_name").hasFullScan());
+        assertFalse(entry("SELECT", "SEARCH TABLE a USING INTEGER PRIMARY KEY (rowid=?)").hasFullScan());
+        assertFalse(new SlowQueryLog.Entry("SELECT 1", "[]", 1, 1, 0, Collections.<String>emptyList()).hasFullScan());
+    }
+
+    @Test
+    public void redactsTheParameterValues()
+    {
+        assertEquals("[number, string(6), null]",
+                SlowQueryLog.redact(StatementParams.of(new Object[]{42, "secret", null})));
+        assertEquals("[]", SlowQueryLog.redact(null));
+    }
+}
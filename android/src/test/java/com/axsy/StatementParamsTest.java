@@ -0,0 +1,66 @@
+/**
+ * Copyright (c) 2020, Axsy
+ */
+
+package com.axsy;
+
+import com.facebook.react.bridge.JavaOnlyArray;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class StatementParamsTest
+{
+    @Test
+    public void decodesTheBridgeArray()
+    {
+        StatementParams params = StatementParams.decode(JavaOnlyArray.of(1, 2.5, null, "a", true, 3.0, 1e20));
+
+        assertEquals(7, params.size());
+        assertEquals(StatementParams.LONG, params.getType(0));
+        assertEquals(StatementParams.DOUBLE, params.getType(1));
+        assertEquals(StatementParams.NULL, params.getType(2));
+        assertEquals(StatementParams.STRING, params.getType(3));
+        assertEquals(StatementParams.STRING, params.getType(4));
+        assertEquals(StatementParams.LONG, params.getType(5));
+        assertEquals(StatementParams.DOUBLE, params.getType(6));
+        assertEquals(Arrays.<Object>asList(1L, 2.5, null, "a", "true", 3L, 1e20), Arrays.asList(params.toArray()));
+    }
+
+    @Test
+    public void decodesNoParameters()
+    {
+        assertNull(StatementParams.decode(null));
+        assertEquals(0, StatementParams.decode(new JavaOnlyArray()).size());
+    }
+
+    @Test
+    public void wrapsValues()
+    {
+        StatementParams params = StatementParams.of(new Object[]{7, 0.5f, Long.MAX_VALUE, null, "b", 'c'});
+
+        assertEquals(Arrays.<Object>asList(7L, 0.5, Long.MAX_VALUE, null, "b", "c"), Arrays.asList(params.toArray()));
+        assertEquals("b", params.get(4));
+        assertNull(params.get(3));
+    }
+
+    @Test
+    public void convertsTheValuesToStrings()
+    {
+        StatementParams params = StatementParams.of(new Object[]{1, 2.5, null, "x"});
+        assertArrayEquals(new String[]{"1", "2.5", "", "x"}, params.toStringArray());
+    }
+
+    @Test
+    public void describesTheShapeWithoutTheValues()
+    {
+        StatementParams params = StatementParams.decode(JavaOnlyArray.of(42, 0.5, "secret", null, false));
+        assertEquals("[number, number, string(6), null, string(5)]", params.shape());
+        assertEquals("[]", StatementParams.of(new Object[0]).shape());
+    }
+}
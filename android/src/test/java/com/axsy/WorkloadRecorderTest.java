@@ -0,0 +1,125 @@
+/**
+ * Copyright (c) 2020, Axsy
+ */
+
+package com.axsy;
+
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class WorkloadRecorderTest
+{
+    private File file;
+    private WorkloadRecorder recorder;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        this.file = File.createTempFile("workload", ".ndjson");
+        this.recorder = new WorkloadRecorder();
+    }
+
+    @After
+    public void tearDown()
+    {
+        this.file.delete();
+    }
+
+    private List<String> readLines() throws Exception
+    {
+        List<String> lines = new ArrayList<String>();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(this.file), "UTF-8"));
+        try
+        {
+            String line;
+            while ((line = reader.readLine()) != null)
+            {
+                lines.add(line);
+            }
+        } finally
+        {
+            reader.close();
+        }
+        return lines;
+    }
+
+    @Test
+    public void recordsParameterShapesByDefault() throws Exception
+    {
+        this.recorder.start(this.file, false);
+        assertTrue(this.recorder.isEnabled());
+        long now = System.nanoTime();
+        this.recorder.record("test.db", new String[]{"INSERT INTO t VALUES (?, ?, ?)"},
+                new StatementParams[]{StatementParams.of(new Object[]{1, "secret", null})}, now, 2, now);
+        assertEquals(1, this.recorder.stop());
+        assertFalse(this.recorder.isEnabled());
+
+        List<String> lines = readLines();
+        assertEquals(2, lines.size());
+        assertFalse(new JSONObject(lines.get(0)).optBoolean("values", true));
+
+        JSONObject batch = new JSONObject(lines.get(1));
+        assertEquals("test.db", batch.getString("db"));
+        assertEquals(2.0, batch.getDouble("depth"), 0);
+        assertEquals("INSERT INTO t VALUES (?, ?, ?)", batch.getJSONArray("sql").getString(0));
+        assertEquals("[number, string(6), null]", batch.getJSONArray("params").getString(0));
+        assertFalse(lines.get(1).contains("secret"));
+    }
+
+    @Test
+    public void recordsParameterValuesWhenAsked() throws Exception
+    {
+        this.recorder.start(this.file, true);
+        long now = System.nanoTime();
+        this.recorder.record("test.db", new String[]{"SELECT ?", "SELECT 1"},
+                new StatementParams[]{StatementParams.of(new Object[]{1.5, "a\"b", null}), null}, now, 0, now);
+        this.recorder.stop();
+
+        List<String> lines = readLines();
+        assertTrue(new JSONObject(lines.get(0)).optBoolean("values", false));
+        JSONObject batch = new JSONObject(lines.get(1));
+        assertEquals("[1.5,\"a\\\"b\",null]", batch.getJSONArray("params").getJSONArray(0).toString());
+        assertEquals(0, batch.getJSONArray("params").getJSONArray(1).length());
+    }
+
+    @Test
+    public void ignoresBatchesWhenNotRecording() throws Exception
+    {
+        long now = System.nanoTime();
+        this.recorder.record("test.db", new String[]{"SELECT 1"}, null, now, 0, now);
+        assertFalse(this.recorder.isEnabled());
+        assertEquals(0, this.file.length());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void refusesToStartTwice() throws Exception
+    {
+        this.recorder.start(this.file, false);
+        try
+        {
+            this.recorder.start(this.file, false);
+        } finally
+        {
+            this.recorder.stop();
+        }
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void refusesToStopWhenNotRecording() throws Exception
+    {
+        this.recorder.stop();
+    }
+}
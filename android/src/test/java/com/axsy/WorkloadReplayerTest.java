@@ -0,0 +1,186 @@
+/**
+ * Copyright (c) 2020, Axsy
+ */
+
+package com.axsy;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class WorkloadReplayerTest
+{
+    /**
+     * Engine answering every request at once, recording what it was sent.
+     */
+    private final class RecordingEngine implements SQLiteEngine
+    {
+        final List<String> opened = new ArrayList<String>();
+        final Map<String, String> keys = new HashMap<String, String>();
+        final List<String> deleted = new ArrayList<String>();
+        final List<String> batches = new ArrayList<String>();
+        final List<List<Object>> params = new ArrayList<List<Object>>();
+        boolean copyFound = false;
+
+        public synchronized void open(String dbname, String key, Map<String, Object> options, ResultCallback callback)
+        {
+            this.opened.add(dbname);
+            this.keys.put(dbname, key);
+            this.copyFound |= new File(directory, dbname).exists();
+            callback.success("database open");
+        }
+
+        public synchronized void executeBatch(String dbname, List<String> queries, List<List<Object>> params,
+                                              ResultCallback callback)
+        {
+            this.batches.add(dbname + ": " + queries);
+            this.params.addAll(params);
+
+            List<Object> results = new ArrayList<Object>();
+            for (String query : queries)
+            {
+                Map<String, Object> result = new HashMap<String, Object>();
+                result.put("type", query.startsWith("FAIL") ? "error" : "success");
+                results.add(result);
+            }
+            callback.success(results);
+        }
+
+        public synchronized void close(String dbname, ResultCallback callback)
+        {
+            callback.success("database closed");
+        }
+
+        public synchronized void delete(String dbname, ResultCallback callback)
+        {
+            this.deleted.add(dbname);
+            new File(directory, dbname).delete();
+            callback.success("database deleted");
+        }
+    }
+
+    private File directory;
+    private File trace;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        this.directory = File.createTempFile("replay", "");
+        this.directory.delete();
+        this.directory.mkdirs();
+        this.trace = new File(this.directory, "trace.ndjson");
+    }
+
+    @After
+    public void tearDown()
+    {
+        for (File file : this.directory.listFiles())
+        {
+            file.delete();
+        }
+        this.directory.delete();
+    }
+
+    private void writeTrace(String... lines) throws Exception
+    {
+        Writer writer = new OutputStreamWriter(new FileOutputStream(this.trace), "UTF-8");
+        try
+        {
+            for (String line : lines)
+            {
+                writer.write(line + "\n");
+            }
+        } finally
+        {
+            writer.close();
+        }
+    }
+
+    private static Map<String, Object> options(Object... keysAndValues)
+    {
+        Map<String, Object> options = new HashMap<String, Object>();
+        for (int i = 0; i < keysAndValues.length; i += 2)
+        {
+            options.put((String) keysAndValues[i], keysAndValues[i + 1]);
+        }
+        return options;
+    }
+
+    @Test
+    public void replaysBatchesInArrivalOrderOnCopies() throws Exception
+    {
+        Writer db = new OutputStreamWriter(new FileOutputStream(new File(this.directory, "a.db")), "UTF-8");
+        db.write("database");
+        db.close();
+        writeTrace("{\"version\":1,\"values\":true}",
+                "{\"t\":5,\"db\":\"b.db\",\"wait\":1,\"ms\":2,\"sql\":[\"SELECT 2\"],\"params\":[[]]}",
+                "{\"t\":1,\"db\":\"a.db\",\"wait\":0,\"ms\":1,\"sql\":[\"SELECT ?\",\"FAIL\"],\"params\":[[1,\"x\",null],[]]}");
+
+        RecordingEngine engine = new RecordingEngine();
+        Map<String, Object> report = new WorkloadReplayer(engine, this.trace, this.directory,
+                options("key", "secret", "keys", options("b.db", "other"))).run();
+
+        assertEquals(Arrays.asList("replay-a.db", "replay-b.db"), engine.opened);
+        assertEquals("secret", engine.keys.get("replay-a.db"));
+        assertEquals("other", engine.keys.get("replay-b.db"));
+        assertTrue(engine.copyFound);
+        assertEquals(Arrays.asList("replay-a.db: [SELECT ?, FAIL]", "replay-b.db: [SELECT 2]"), engine.batches);
+        assertEquals(Arrays.<Object>asList(1, "x", null), engine.params.get(0));
+        assertEquals(Arrays.asList("replay-a.db", "replay-b.db"), engine.deleted);
+        assertFalse(new File(this.directory, "replay-a.db").exists());
+
+        assertEquals(2.0, (Double) report.get("batches"), 0);
+        assertEquals(1.0, (Double) report.get("errors"), 0);
+        assertEquals(3.0, (Double) report.get("recordedMaxMillis"), 0);
+        assertEquals(Boolean.FALSE, report.get("pacing"));
+    }
+
+    @Test
+    public void synthesizesValuesFromParameterShapes() throws Exception
+    {
+        writeTrace("{\"version\":1,\"values\":false}",
+                "{\"t\":0,\"db\":\"a.db\",\"sql\":[\"INSERT\",\"SELECT 1\"],\"params\":[\"[number, string(3), null]\",\"[]\"]}");
+
+        RecordingEngine engine = new RecordingEngine();
+        new WorkloadReplayer(engine, this.trace, this.directory, null).run();
+
+        assertEquals(Arrays.<Object>asList(0, "xxx", null), engine.params.get(0));
+        assertTrue(engine.params.get(1).isEmpty());
+    }
+
+    @Test
+    public void pacesBatchesAtTheirRecordedArrivalTimes() throws Exception
+    {
+        writeTrace("{\"version\":1,\"values\":false}",
+                "{\"t\":0,\"db\":\"a.db\",\"sql\":[\"SELECT 1\"],\"params\":[\"[]\"]}",
+                "{\"t\":50,\"db\":\"a.db\",\"sql\":[\"SELECT 2\"],\"params\":[\"[]\"]}");
+
+        Map<String, Object> report = new WorkloadReplayer(new RecordingEngine(), this.trace, this.directory,
+                options("pacing", true)).run();
+
+        assertEquals(Boolean.TRUE, report.get("pacing"));
+        assertTrue((Double) report.get("elapsedMillis") >= 50);
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsAnInvalidTrace() throws Exception
+    {
+        writeTrace("{\"version\":1,\"values\":false}", "{\"t\":0,");
+        new WorkloadReplayer(new RecordingEngine(), this.trace, this.directory, null).run();
+    }
+}
@@ -13,20 +13,74 @@ import plugin, { SQLiteFactory } from "./sqlite.core.js";
 var config = [
   [false, "SQLitePlugin", "transaction", false, true],
   [false, "SQLitePlugin", "readTransaction", false, true],
+  [false, "SQLitePlugin", "atomicTransaction", false, true],
   [false, "SQLitePlugin", "close", false, false],
   [false, "SQLitePlugin", "executeSql", true, false],
+  [false, "SQLitePlugin", "registerLiveQuery", false, false],
+  [false, "SQLitePlugin", "unregisterLiveQuery", false, false],
+  [false, "SQLitePlugin", "migrateCipher", false, false],
+  [false, "SQLitePlugin", "rekey", false, false],
+  [false, "SQLitePlugin", "backup", false, false],
+  [false, "SQLitePlugin", "importFile", false, false],
+  [false, "SQLitePlugin", "exportQuery", false, false],
+  [false, "SQLitePlugin", "writeBlobFromFile", false, false],
+  [false, "SQLitePlugin", "readBlobToFile", false, false],
+  [false, "SQLitePlugin", "getMetrics", false, false],
+  [false, "SQLitePlugin", "getSlowQueries", false, false],
+  [false, "SQLitePlugin", "getEngineStats", false, false],
+  [false, "SQLitePlugin", "registerQueries", false, false],
+  [false, "SQLitePlugin", "attachDatabase", false, false],
+  [false, "SQLitePlugin", "detachDatabase", false, false],
   [false, "SQLitePluginTransaction", "executeSql", true, false],
+  [false, "SQLitePluginTransaction", "executeSqlWithOptions", true, false],
+  [false, "SQLitePluginTransaction", "executeRegistered", true, false],
   [false, "SQLiteFactory", "deleteDatabase", false, false],
+  [false, "SQLiteFactory", "restoreDatabase", false, false],
+  [false, "SQLiteFactory", "startTracing", false, false],
+  [false, "SQLiteFactory", "stopTracing", false, false],
+  [false, "SQLiteFactory", "runLoadTest", false, false],
+  [false, "SQLiteFactory", "startRecording", false, false],
+  [false, "SQLiteFactory", "stopRecording", false, false],
+  [false, "SQLiteFactory", "replayWorkload", false, false],
+  [false, "SQLiteFactory", "submitTransactions", false, false],
+  [false, "SQLiteFactory", "copyTable", false, false],
   [true, "SQLiteFactory", "openDatabase", false, false],
 ];
 
 var config2 = [
   [false, "SQLitePlugin", "transactionCb", false, true],
   [false, "SQLitePlugin", "readTransactionCb", false, true],
+  [false, "SQLitePlugin", "atomicTransactionCb", false, true],
   [false, "SQLitePlugin", "closeCb", false, false],
   [false, "SQLitePlugin", "executeSqlCb", true, false],
+  [false, "SQLitePlugin", "registerLiveQueryCb", false, false],
+  [false, "SQLitePlugin", "unregisterLiveQueryCb", false, false],
+  [false, "SQLitePlugin", "migrateCipherCb", false, false],
+  [false, "SQLitePlugin", "rekeyCb", false, false],
+  [false, "SQLitePlugin", "backupCb", false, false],
+  [false, "SQLitePlugin", "importFileCb", false, false],
+  [false, "SQLitePlugin", "exportQueryCb", false, false],
+  [false, "SQLitePlugin", "writeBlobFromFileCb", false, false],
+  [false, "SQLitePlugin", "readBlobToFileCb", false, false],
+  [false, "SQLitePlugin", "getMetricsCb", false, false],
+  [false, "SQLitePlugin", "getSlowQueriesCb", false, false],
+  [false, "SQLitePlugin", "getEngineStatsCb", false, false],
+  [false, "SQLitePlugin", "registerQueriesCb", false, false],
+  [false, "SQLitePlugin", "attachDatabaseCb", false, false],
+  [false, "SQLitePlugin", "detachDatabaseCb", false, false],
   [false, "SQLitePluginTransaction", "executeSqlCb", true, false],
+  [false, "SQLitePluginTransaction", "executeSqlWithOptionsCb", true, false],
+  [false, "SQLitePluginTransaction", "executeRegisteredCb", true, false],
   [false, "SQLiteFactory", "deleteDatabaseCb", false, false],
+  [false, "SQLiteFactory", "restoreDatabaseCb", false, false],
+  [false, "SQLiteFactory", "startTracingCb", false, false],
+  [false, "SQLiteFactory", "stopTracingCb", false, false],
+  [false, "SQLiteFactory", "runLoadTestCb", false, false],
+  [false, "SQLiteFactory", "startRecordingCb", false, false],
+  [false, "SQLiteFactory", "stopRecordingCb", false, false],
+  [false, "SQLiteFactory", "replayWorkloadCb", false, false],
+  [false, "SQLiteFactory", "submitTransactionsCb", false, false],
+  [false, "SQLiteFactory", "copyTableCb", false, false],
   [true, "SQLiteFactory", "openDatabaseCb", false, false],
 ];
 
@@ -14,9 +14,9 @@
  */
 
 import base64 from 'base-64';
-import{ NativeModules } from "react-native";
+import{ NativeModules, DeviceEventEmitter } from "react-native";
 
-var DB_STATE_INIT, DB_STATE_OPEN, READ_ONLY_REGEX, SQLiteFactory, SQLitePlugin, SQLitePluginTransaction, argsArray, dblocations, newSQLError, nextTick, root, txLocks;
+var DB_STATE_INIT, DB_STATE_OPEN, READ_ONLY_REGEX, SQLiteFactory, SQLitePlugin, SQLitePluginTransaction, argsArray, dblocations, liveQueries, liveQueryCounter, liveQuerySubscription, newSQLError, nextTick, root, txLocks;
 
 var plugin = {};
 
@@ -28,6 +28,12 @@ DB_STATE_OPEN = "OPEN";
 
 txLocks = {};
 
+liveQueries = {};
+
+liveQueryCounter = 0;
+
+liveQuerySubscription = null;
+
 newSQLError = function(error, code) {
   var sqlError;
   sqlError = error;
@@ -80,10 +86,20 @@ argsArray = function(fun) {
 };
 
 plugin.exec = function(method, options, success, error) {
+  var nativeModule = NativeModules["SQLite"];
   if (plugin.sqlitePlugin.DEBUG){
     console.log('SQLite.' + method + '(' + JSON.stringify(options) + ')');
   }
-  NativeModules["SQLite"][method](options,success,error);
+  if (!nativeModule || typeof nativeModule[method] !== "function") {
+    // (most methods beyond the transaction API are implemented on Android only)
+    nextTick(function() {
+      if (!!error) {
+        error("SQLite." + method + " is not supported on this platform");
+      }
+    });
+    return;
+  }
+  nativeModule[method](options,success,error);
 };
 
 SQLitePlugin = function(openargs, openSuccess, openError) {
@@ -149,6 +165,24 @@ SQLitePlugin.prototype.readTransaction = function(fn, error, success) {
   this.addTransaction(new SQLitePluginTransaction(this, fn, error, success, false, true));
 };
 
+/*
+  Transaction executed natively in one round trip: the statements queued by fn are sent as one
+  atomic batch, run in a native transaction (a savepoint when nested in an open one) and rolled
+  back as a whole on the first error, whatever the statement error callbacks return.
+  BEGIN, COMMIT and ROLLBACK statements in it open, release and roll back nested savepoints.
+  Statements queued from the statement callbacks are sent as a further atomic batch.
+ */
+SQLitePlugin.prototype.atomicTransaction = function(fn, error, success) {
+  var tx;
+  if (!this.openDBs[this.dbname]) {
+    error(newSQLError('database not open'));
+    return;
+  }
+  tx = new SQLitePluginTransaction(this, fn, error, success, false, false);
+  tx.atomic = true;
+  this.addTransaction(tx);
+};
+
 SQLitePlugin.prototype.startNextTransaction = function() {
   var self;
   self = this;
@@ -288,6 +322,442 @@ SQLitePlugin.prototype.executeSql = function(statement, params, success, error)
   this.addTransaction(new SQLitePluginTransaction(this, myfn, null, null, false, false));
 };
 
+/*
+  Register a read query as live: it is re-evaluated natively whenever one of the tables
+  it reads is written, and onChange receives only the rows inserted, changed and removed
+  (by options.key) since the previous evaluation: { id, inserted: [row], changed: [row],
+  removed: [key value] }, with the key values as read (number, string or null).
+  success receives the initial rows.
+  If a re-evaluation fails (e.g. the key is not unique anymore), onChange receives { id, error }.
+  options: { sql, params, key, tables (optional, derived from the sql by default) }
+  Returns the id of the live query, to be passed to unregisterLiveQuery.
+ */
+SQLitePlugin.prototype.registerLiveQuery = function(options, onChange, success, error) {
+  var id, mysuccess, myerror;
+  if (!liveQuerySubscription) {
+    liveQuerySubscription = DeviceEventEmitter.addListener("SQLiteLiveQuery", function(diff) {
+      var listener = liveQueries[diff.id];
+      if (!!listener) {
+        listener(diff);
+      }
+    });
+  }
+  id = this.dbname + ":" + (++liveQueryCounter);
+  liveQueries[id] = onChange;
+  mysuccess = function(r) {
+    if (!!success) {
+      return success(r);
+    }
+  };
+  myerror = function(e) {
+    delete liveQueries[id];
+    if (!!error) {
+      return error(newSQLError(e));
+    } else {
+      console.log("Error handler not provided: ",e);
+    }
+  };
+  plugin.exec("registerLiveQuery",{
+    dbname: this.dbname,
+    id: id,
+    sql: options.sql,
+    params: options.params || [],
+    key: options.key || "id",
+    tables: options.tables || []
+  }, mysuccess, myerror);
+  return id;
+};
+
+SQLitePlugin.prototype.unregisterLiveQuery = function(id, success, error) {
+  var mysuccess, myerror;
+  delete liveQueries[id];
+  mysuccess = function(r) {
+    if (!!success) {
+      return success(r);
+    }
+  };
+  myerror = function(e) {
+    if (!!error) {
+      return error(newSQLError(e));
+    } else {
+      console.log("Error handler not provided: ",e);
+    }
+  };
+  plugin.exec("unregisterLiveQuery",{dbname: this.dbname, id: id}, mysuccess, myerror);
+};
+
+/*
+  Migrate a database opened with cipherMigrate: false from an older SQLCipher format
+  to the current one. Runs in the database thread, after any queued work.
+ */
+SQLitePlugin.prototype.migrateCipher = function(success, error) {
+  var mysuccess, myerror;
+  mysuccess = function(r) {
+    if (!!success) {
+      return success(r);
+    }
+  };
+  myerror = function(e) {
+    if (!!error) {
+      return error(newSQLError(e));
+    } else {
+      console.log("Error handler not provided: ",e);
+    }
+  };
+  plugin.exec("migrateCipher",{dbname: this.dbname}, mysuccess, myerror);
+};
+
+/*
+  Re-encrypt the database in the background with a new key and/or cipher settings.
+  options: { key, cipherPageSize, kdfIter } - omitted values keep the key and use the default settings
+  onProgress receives { dbname, phase: "export" | "swap", progress } events.
+  Reads are served from the old database until the swap; writes wait for it.
+ */
+SQLitePlugin.prototype.rekey = function(options, onProgress, success, error) {
+  var dbname, mysuccess, myerror, subscription;
+  dbname = this.dbname;
+  if (!!onProgress) {
+    subscription = DeviceEventEmitter.addListener("SQLiteRekeyProgress", function(event) {
+      if (event.dbname === dbname) {
+        onProgress(event);
+      }
+    });
+  }
+  mysuccess = function(r) {
+    if (!!subscription) {
+      subscription.remove();
+    }
+    if (!!success) {
+      return success(r);
+    }
+  };
+  myerror = function(e) {
+    if (!!subscription) {
+      subscription.remove();
+    }
+    if (!!error) {
+      return error(newSQLError(e));
+    } else {
+      console.log("Error handler not provided: ",e);
+    }
+  };
+  options = options || {};
+  plugin.exec("rekey",{
+    dbname: dbname,
+    key: options.key,
+    cipherPageSize: options.cipherPageSize,
+    kdfIter: options.kdfIter
+  }, mysuccess, myerror);
+};
+
+/*
+  Online backup of the database to path (absolute, or relative to the app files directory).
+  The backup stays encrypted with the database key. The copy runs in small steps between
+  queued work; reads keep running meanwhile, while writes are held back until the copy is done.
+  onProgress receives { dbname, phase: "backup", progress } events.
+ */
+SQLitePlugin.prototype.backup = function(path, onProgress, success, error) {
+  var dbname, mysuccess, myerror, subscription;
+  dbname = this.dbname;
+  if (!!onProgress) {
+    subscription = DeviceEventEmitter.addListener("SQLiteBackupProgress", function(event) {
+      if (event.dbname === dbname && event.phase === "backup") {
+        onProgress(event);
+      }
+    });
+  }
+  mysuccess = function(r) {
+    if (!!subscription) {
+      subscription.remove();
+    }
+    if (!!success) {
+      return success(r);
+    }
+  };
+  myerror = function(e) {
+    if (!!subscription) {
+      subscription.remove();
+    }
+    if (!!error) {
+      return error(newSQLError(e));
+    } else {
+      console.log("Error handler not provided: ",e);
+    }
+  };
+  plugin.exec("backup",{dbname: dbname, path: path}, mysuccess, myerror);
+};
+
+/*
+  Bulk import of a file (absolute path, or relative to the app files directory) into a table,
+  parsed natively.
+  options: {
+    format: "ndjson" (default) | "csv" (empty fields are imported as NULL, quoted empty fields "" as ''),
+    columnMap: { column: field } (optional, all the fields of the file by default),
+    chunkSize: rows per transaction (default 5000),
+    deferIndexes: drop the indexes of the table during the import and re-create them at the end,
+    onConflict: "replace" | "ignore"
+  }
+  onProgress receives { dbname, table, phase: "import", progress, rows, rowsPerSecond } events.
+ */
+SQLitePlugin.prototype.importFile = function(table, path, options, onProgress, success, error) {
+  var dbname, mysuccess, myerror, subscription;
+  dbname = this.dbname;
+  options = options || {};
+  if (!!onProgress) {
+    subscription = DeviceEventEmitter.addListener("SQLiteImportProgress", function(event) {
+      if (event.dbname === dbname && event.table === table) {
+        onProgress(event);
+      }
+    });
+  }
+  mysuccess = function(r) {
+    if (!!subscription) {
+      subscription.remove();
+    }
+    if (!!success) {
+      return success(r);
+    }
+  };
+  myerror = function(e) {
+    if (!!subscription) {
+      subscription.remove();
+    }
+    if (!!error) {
+      return error(newSQLError(e));
+    } else {
+      console.log("Error handler not provided: ",e);
+    }
+  };
+  plugin.exec("importFile",{
+    dbname: dbname,
+    table: table,
+    path: path,
+    format: options.format || "ndjson",
+    columnMap: options.columnMap,
+    chunkSize: options.chunkSize,
+    deferIndexes: !!options.deferIndexes,
+    onConflict: options.onConflict
+  }, mysuccess, myerror);
+};
+
+/*
+  Stream the results of a query to a file (absolute path, or relative to the app files directory)
+  without sending the rows over the bridge.
+  options: { format: "ndjson" (default) | "csv" (NULL is written as an empty field, '' as ""), gzip: false }
+  success receives { path, rows, bytes }.
+ */
+SQLitePlugin.prototype.exportQuery = function(sql, params, path, options, success, error) {
+  var mysuccess, myerror;
+  options = options || {};
+  mysuccess = function(r) {
+    if (!!success) {
+      return success(r);
+    }
+  };
+  myerror = function(e) {
+    if (!!error) {
+      return error(newSQLError(e));
+    } else {
+      console.log("Error handler not provided: ",e);
+    }
+  };
+  plugin.exec("exportQuery",{
+    dbname: this.dbname,
+    sql: sql,
+    params: params || [],
+    path: path,
+    format: options.format || "ndjson",
+    gzip: !!options.gzip
+  }, mysuccess, myerror);
+};
+
+/*
+  Stream large attachments between files (absolute path, or relative to the app files directory)
+  and a BLOB column of the row with the given rowid, in fixed-size chunks, without passing
+  them over the bridge. The value stays a plain BLOB of the column, also readable with SQL.
+  Without incremental blob I/O, writeBlobFromFile appends the chunks to the value with SQL in a
+  single transaction: SQLite rewrites the value on every append, so very large files are slow
+  to write, and are held in native memory while they are written or read.
+  success receives { path, bytes }.
+ */
+SQLitePlugin.prototype.writeBlobFromFile = function(table, column, rowid, path, success, error) {
+  this.execBlob("writeBlobFromFile", table, column, rowid, path, success, error);
+};
+
+SQLitePlugin.prototype.readBlobToFile = function(table, column, rowid, path, success, error) {
+  this.execBlob("readBlobToFile", table, column, rowid, path, success, error);
+};
+
+SQLitePlugin.prototype.execBlob = function(method, table, column, rowid, path, success, error) {
+  var mysuccess, myerror;
+  mysuccess = function(r) {
+    if (!!success) {
+      return success(r);
+    }
+  };
+  myerror = function(e) {
+    if (!!error) {
+      return error(newSQLError(e));
+    } else {
+      console.log("Error handler not provided: ",e);
+    }
+  };
+  plugin.exec(method,{
+    dbname: this.dbname,
+    table: table,
+    column: column,
+    rowid: rowid,
+    path: path
+  }, mysuccess, myerror);
+};
+
+SQLitePlugin.prototype.getMetrics = function(success, error) {
+  var mysuccess, myerror;
+  mysuccess = function(r) {
+    if (!!success) {
+      return success(r);
+    }
+  };
+  myerror = function(e) {
+    if (!!error) {
+      return error(newSQLError(e));
+    } else {
+      console.log("Error handler not provided: ",e);
+    }
+  };
+  plugin.exec("getMetrics",{dbname: this.dbname}, mysuccess, myerror);
+};
+
+/*
+  Storage engine statistics of the database: page size and count, freelist (and the share
+  of the file that VACUUM would reclaim), cache settings, journal mode, file/WAL sizes,
+  native heap usage and the runner metrics.
+ */
+SQLitePlugin.prototype.getEngineStats = function(success, error) {
+  var mysuccess, myerror;
+  mysuccess = function(r) {
+    if (!!success) {
+      return success(r);
+    }
+  };
+  myerror = function(e) {
+    if (!!error) {
+      return error(newSQLError(e));
+    } else {
+      console.log("Error handler not provided: ",e);
+    }
+  };
+  plugin.exec("getEngineStats",{dbname: this.dbname}, mysuccess, myerror);
+};
+
+/*
+  Statements slower than the slowQueryThreshold open option (ms), most recent last.
+  options: { path, clear } - with path the log is dumped to that file (NDJSON) and success
+  receives { path, count }, otherwise success receives the entries
+  ({ timestamp, sql, params, durationMillis, rowsReturned, rowsAffected, fullScan, plan }).
+  Parameter values are redacted, only their types are recorded.
+ */
+SQLitePlugin.prototype.getSlowQueries = function(options, success, error) {
+  var mysuccess, myerror;
+  mysuccess = function(r) {
+    if (!!success) {
+      return success(r);
+    }
+  };
+  myerror = function(e) {
+    if (!!error) {
+      return error(newSQLError(e));
+    } else {
+      console.log("Error handler not provided: ",e);
+    }
+  };
+  options = options || {};
+  plugin.exec("getSlowQueries",{
+    dbname: this.dbname,
+    path: options.path,
+    clear: !!options.clear
+  }, mysuccess, myerror);
+};
+
+/*
+  Register queries by name ({name: sql}), compiled and classified once natively (Android):
+  executeRegistered then sends only the name and the parameters over the bridge.
+  Registering a name again replaces its query.
+ */
+SQLitePlugin.prototype.registerQueries = function(queries, success, error) {
+  var mysuccess, myerror;
+  mysuccess = function(r) {
+    if (!!success) {
+      return success(r);
+    }
+  };
+  myerror = function(e) {
+    if (!!error) {
+      return error(newSQLError(e));
+    } else {
+      console.log("Error handler not provided: ",e);
+    }
+  };
+  this.registeredQueries = Object.assign({}, this.registeredQueries, queries);
+  plugin.exec("registerQueries",{
+    dbname: this.dbname,
+    queries: queries
+  }, mysuccess, myerror);
+};
+
+/*
+  Attach another database (or its name) to the connection of this one under an alias (Android),
+  so that queries can join its tables as alias.table. The key of the attached database is the
+  one it was opened with, or options.key if it isn't open. The attachment lasts until detachDatabase.
+ */
+SQLitePlugin.prototype.attachDatabase = function(db, alias, options, success, error) {
+  var mysuccess, myerror;
+  if (typeof options === "function") {
+    error = success;
+    success = options;
+    options = {};
+  }
+  mysuccess = function(r) {
+    if (!!success) {
+      return success(r);
+    }
+  };
+  myerror = function(e) {
+    if (!!error) {
+      return error(newSQLError(e));
+    } else {
+      console.log("Error handler not provided: ",e);
+    }
+  };
+  options = options || {};
+  plugin.exec("attachDatabase",{
+    dbname: this.dbname,
+    attach: (typeof db === "string") ? db : db.dbname,
+    alias: alias,
+    key: options.key
+  }, mysuccess, myerror);
+};
+
+SQLitePlugin.prototype.detachDatabase = function(alias, success, error) {
+  var mysuccess, myerror;
+  mysuccess = function(r) {
+    if (!!success) {
+      return success(r);
+    }
+  };
+  myerror = function(e) {
+    if (!!error) {
+      return error(newSQLError(e));
+    } else {
+      console.log("Error handler not provided: ",e);
+    }
+  };
+  plugin.exec("detachDatabase",{
+    dbname: this.dbname,
+    alias: alias
+  }, mysuccess, myerror);
+};
+
 SQLitePluginTransaction = function(db, fn, error, success, txlock, readOnly) {
   if (typeof fn !== "function") {
     /*
@@ -309,6 +779,7 @@ SQLitePluginTransaction = function(db, fn, error, success, txlock, readOnly) {
   this.success = success;
   this.txlock = txlock;
   this.readOnly = readOnly;
+  this.atomic = false;
   this.executes = [];
   if (txlock) {
     this.addStatement("BEGIN", [], null, function(tx, err) {
@@ -333,6 +804,37 @@ SQLitePluginTransaction.prototype.start = function() {
 };
 
 SQLitePluginTransaction.prototype.executeSql = function(sql, values, success, error) {
+  this.addUserStatement(sql, values, null, success, error);
+};
+
+/*
+  executeSql with per-statement options:
+  - cursorWindowSize: size in bytes of the cursor window used to read the results (Android),
+    large enough for the whole result to avoid re-running the query when the window overflows.
+    Defaults to the cursorWindowSize open option.
+  - refs: parameters of the form "$ref:N.path" are replaced natively by a value of the result
+    of an earlier statement of the same batch (Android): N is its position in the batch (the BEGIN
+    of a transaction first), or relative when negative; e.g. "$ref:-1.insertId", "$ref:2.rows[0].id".
+  - skipIf: "$ref:N.path" (or "!$ref:N.path"), the statement is skipped when the value is truthy
+    (falsy), e.g. "$ref:-1.rowsAffected" for an INSERT after an UPDATE of the same row (Android).
+    A skipped statement succeeds with rowsAffected 0 and skipped true.
+ */
+SQLitePluginTransaction.prototype.executeSqlWithOptions = function(sql, values, options, success, error) {
+  this.addUserStatement(sql, values, options, success, error);
+};
+
+/*
+  executeSql of a query registered with registerQueries, by name.
+ */
+SQLitePluginTransaction.prototype.executeRegistered = function(name, values, success, error) {
+  var sql = (this.db.registeredQueries || {})[name];
+  if (sql === void 0) {
+    throw newSQLError("query not registered: " + name);
+  }
+  this.addUserStatement(sql, values, {name: name}, success, error);
+};
+
+SQLitePluginTransaction.prototype.addUserStatement = function(sql, values, options, success, error) {
   var that = this;
   var mysuccess, myerror;
   if (that.finalized) {
@@ -363,10 +865,10 @@ SQLitePluginTransaction.prototype.executeSql = function(sql, values, success, er
       console.log("Error handler not provided: ",e);
     }
   };
-  that.addStatement(sql, values, mysuccess, myerror);
+  that.addStatement(sql, values, mysuccess, myerror, options);
 };
 
-SQLitePluginTransaction.prototype.addStatement = function(sql, values, success, error) {
+SQLitePluginTransaction.prototype.addStatement = function(sql, values, success, error, options) {
   var j, len1, params, t, v;
   params = [];
   if (!!values && values.constructor === Array) {
@@ -396,7 +898,11 @@ SQLitePluginTransaction.prototype.addStatement = function(sql, values, success,
     success: success,
     error: error,
     sql: sql,
-    params: params
+    params: params,
+    cursorWindowSize: !!options ? options.cursorWindowSize : void 0,
+    name: !!options ? options.name : void 0,
+    refs: (!!options && !!options.refs) || void 0,
+    skipIf: !!options ? options.skipIf : void 0
   });
 };
 
@@ -423,6 +929,7 @@ SQLitePluginTransaction.prototype.handleStatementSuccess = function(handler, res
       length: rows.length
     },
     rowsAffected: response.rowsAffected || 0,
+    skipped: !!response.skipped,
     insertId: response.insertId || void 0
   };
   // console.log('handler response payload:',payload);
@@ -482,8 +989,12 @@ SQLitePluginTransaction.prototype.run = function() {
     };
     tropts.push({
       qid: 1111,
-      sql: request.sql,
-      params: request.params
+      sql: request.name ? void 0 : request.sql,
+      name: request.name,
+      params: request.params,
+      cursorWindowSize: request.cursorWindowSize,
+      refs: request.refs,
+      skipIf: request.skipIf
     });
     i++;
   }
@@ -511,7 +1022,8 @@ SQLitePluginTransaction.prototype.run = function() {
       dbargs: {
         dbname: this.db.dbname
       },
-      executes: tropts
+      executes: tropts,
+      atomic: this.atomic
     },mycb, myerror);
 };
 
@@ -677,6 +1189,295 @@ SQLiteFactory.prototype.deleteDatabase = function(first,success, error) {
   plugin.exec("delete",args,success,error);
 };
 
+/*
+  Restore a database from a backup made with backup(). If the database is open, it keeps
+  being served until the restored copy is swapped in.
+ */
+SQLiteFactory.prototype.restoreDatabase = function(first, path, onProgress, success, error) {
+  var dbname, mysuccess, myerror, subscription;
+  dbname = first.constructor === String ? first : first.name;
+  if (!dbname) {
+    throw new Error("Please specify db name");
+  }
+  if (!!onProgress) {
+    subscription = DeviceEventEmitter.addListener("SQLiteBackupProgress", function(event) {
+      if (event.dbname === dbname && event.phase === "restore") {
+        onProgress(event);
+      }
+    });
+  }
+  mysuccess = function(r) {
+    if (!!subscription) {
+      subscription.remove();
+    }
+    if (!!success) {
+      return success(r);
+    }
+  };
+  myerror = function(e) {
+    if (!!subscription) {
+      subscription.remove();
+    }
+    if (!!error) {
+      return error(newSQLError(e));
+    } else {
+      console.log("Error handler not provided: ",e);
+    }
+  };
+  plugin.exec("restore",{dbname: dbname, path: path}, mysuccess, myerror);
+};
+
+/*
+  Record a timeline of every request (bridge call, queue wait, batch or task, and the compile,
+  bind, step and result phases of each statement) for all databases, into a ring buffer of
+  options.capacity events (default 100000).
+ */
+SQLiteFactory.prototype.startTracing = function(options, success, error) {
+  var mysuccess, myerror;
+  mysuccess = function(r) {
+    if (!!success) {
+      return success(r);
+    }
+  };
+  myerror = function(e) {
+    if (!!error) {
+      return error(newSQLError(e));
+    } else {
+      console.log("Error handler not provided: ",e);
+    }
+  };
+  options = options || {};
+  plugin.exec("startTracing",{capacity: options.capacity}, mysuccess, myerror);
+};
+
+/*
+  Stop tracing and write the events to path (absolute, or relative to the app files directory)
+  in the Chrome trace event format, for chrome://tracing or Perfetto.
+  success receives { path, count }.
+ */
+SQLiteFactory.prototype.stopTracing = function(path, success, error) {
+  var mysuccess, myerror;
+  mysuccess = function(r) {
+    if (!!success) {
+      return success(r);
+    }
+  };
+  myerror = function(e) {
+    if (!!error) {
+      return error(newSQLError(e));
+    } else {
+      console.log("Error handler not provided: ",e);
+    }
+  };
+  plugin.exec("stopTracing",{path: path}, mysuccess, myerror);
+};
+
+/*
+  Run a synthetic mixed read/write workload on scratch databases (loadtest-N.db, deleted afterwards).
+  options: { databases, operations, clients, readRatio, writeBatchSize, rows, valueSize, key }
+  success receives the report: throughput (operations/s), p50/p99/max latencies in ms
+  (overall, reads and writes), error count and elapsed time.
+ */
+SQLiteFactory.prototype.runLoadTest = function(options, success, error) {
+  var mysuccess, myerror;
+  mysuccess = function(r) {
+    if (!!success) {
+      return success(r);
+    }
+  };
+  myerror = function(e) {
+    if (!!error) {
+      return error(newSQLError(e));
+    } else {
+      console.log("Error handler not provided: ",e);
+    }
+  };
+  plugin.exec("runLoadTest",options || {}, mysuccess, myerror);
+};
+
+/*
+  Capture every executed batch (database, SQL, parameters, queue depth and timings) to path
+  (absolute, or relative to the app files directory), one JSON object per line.
+  Parameter values are only recorded with options.values, otherwise just their types and sizes.
+ */
+SQLiteFactory.prototype.startRecording = function(path, options, success, error) {
+  var mysuccess, myerror;
+  mysuccess = function(r) {
+    if (!!success) {
+      return success(r);
+    }
+  };
+  myerror = function(e) {
+    if (!!error) {
+      return error(newSQLError(e));
+    } else {
+      console.log("Error handler not provided: ",e);
+    }
+  };
+  options = options || {};
+  plugin.exec("startRecording",{path: path, values: !!options.values}, mysuccess, myerror);
+};
+
+/*
+  Stop capturing. success receives { count } (number of batches recorded).
+ */
+SQLiteFactory.prototype.stopRecording = function(success, error) {
+  var mysuccess, myerror;
+  mysuccess = function(r) {
+    if (!!success) {
+      return success(r);
+    }
+  };
+  myerror = function(e) {
+    if (!!error) {
+      return error(newSQLError(e));
+    } else {
+      console.log("Error handler not provided: ",e);
+    }
+  };
+  plugin.exec("stopRecording",{}, mysuccess, myerror);
+};
+
+/*
+  Re-run a recorded workload against copies of its databases (deleted afterwards).
+  options: { key, keys: {dbname: key}, pacing } - with pacing the batches are sent at their
+  recorded times, otherwise back to back.
+  success receives the replayed and recorded p50/p99/max latencies in ms, errors and elapsed time.
+ */
+SQLiteFactory.prototype.replayWorkload = function(path, options, success, error) {
+  var mysuccess, myerror;
+  mysuccess = function(r) {
+    if (!!success) {
+      return success(r);
+    }
+  };
+  myerror = function(e) {
+    if (!!error) {
+      return error(newSQLError(e));
+    } else {
+      console.log("Error handler not provided: ",e);
+    }
+  };
+  options = options || {};
+  plugin.exec("replayWorkload",{
+    path: path,
+    key: options.key,
+    keys: options.keys,
+    pacing: !!options.pacing
+  }, mysuccess, myerror);
+};
+
+/*
+  Submit independent transactions, possibly on different databases, in one bridge call.
+  transactions: [{db: database (or its name), statements: [sql, or [sql, params]]}]
+  Each transaction runs atomically on the thread of its database (Android), outside the JS
+  transaction queue: it fails if a transaction is in progress on its database.
+  success receives one entry per transaction, in order: {results: [{rows, rowsAffected, insertId}]},
+  or {error} if the transaction was rolled back.
+ */
+SQLiteFactory.prototype.submitTransactions = function(transactions, success, error) {
+  var batches, mysuccess, myerror;
+  batches = transactions.map(function(transaction) {
+    var dbname, tx;
+    dbname = (typeof transaction.db === "string") ? transaction.db : transaction.db.dbname;
+    tx = new SQLitePluginTransaction({dbname: dbname}, function() {}, null, null, false, false);
+    (transaction.statements || []).forEach(function(statement) {
+      if (typeof statement === "string") {
+        tx.addStatement(statement, [], null, null);
+      } else {
+        tx.addStatement(statement[0], statement[1], null, null);
+      }
+    });
+    return {
+      dbargs: {
+        dbname: dbname
+      },
+      executes: tx.executes.map(function(request) {
+        return {
+          qid: 1111,
+          sql: request.sql,
+          params: request.params
+        };
+      })
+    };
+  });
+  mysuccess = function(submitted) {
+    var results = submitted.map(function(r) {
+      var failed;
+      if (r.type === "error") {
+        return {error: newSQLError(r.result)};
+      }
+      failed = r.result.filter(function(s) {
+        return s.type === "error";
+      });
+      if (failed.length > 0) {
+        return {error: newSQLError(failed[0].result)};
+      }
+      return {
+        results: r.result.map(function(s) {
+          return {
+            rows: s.result.rows || [],
+            rowsAffected: s.result.rowsAffected || 0,
+            insertId: s.result.insertId
+          };
+        })
+      };
+    });
+    if (!!success) {
+      return success(results);
+    }
+  };
+  myerror = function(e) {
+    if (!!error) {
+      return error(newSQLError(e));
+    } else {
+      console.log("Error handler not provided: ",e);
+    }
+  };
+  plugin.exec("submitTransactions",{
+    transactions: batches
+  }, mysuccess, myerror);
+};
+
+/*
+  Copy the rows of a table from a database into another one (databases or their names, both open),
+  natively with INSERT ... SELECT (Android); the target table is created like the source one if missing.
+  options: a WHERE condition on the source rows, or {where, params, onConflict: "ignore" or "replace"}.
+  The condition is SQL, inserted as is: never build it from user input, pass values in params.
+  The copy fails, rather than waiting, if the target database doesn't start it within 2 seconds
+  (busy with earlier work).
+  success receives {rowsAffected}.
+ */
+SQLiteFactory.prototype.copyTable = function(source, target, table, options, success, error) {
+  var mysuccess, myerror;
+  if (typeof options === "function") {
+    error = success;
+    success = options;
+    options = {};
+  }
+  mysuccess = function(r) {
+    if (!!success) {
+      return success(r);
+    }
+  };
+  myerror = function(e) {
+    if (!!error) {
+      return error(newSQLError(e));
+    } else {
+      console.log("Error handler not provided: ",e);
+    }
+  };
+  options = (typeof options === "string") ? {where: options} : (options || {});
+  plugin.exec("copyTable",{
+    source: (typeof source === "string") ? source : source.dbname,
+    dbname: (typeof target === "string") ? target : target.dbname,
+    table: table,
+    where: options.where,
+    params: options.params,
+    onConflict: options.onConflict
+  }, mysuccess, myerror);
+};
+
 plugin.sqlitePlugin = {
   SQLiteFactory : SQLiteFactory,
   SQLitePluginTransaction : SQLitePluginTransaction,